@@ -0,0 +1,186 @@
+/*
+ * Copyright (c) 2011, Åpen sone for eksperimentell informatikk
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *    - Redistributions of source code must retain the above copyright
+ *      notice, this list of conditions and the following disclaimer.
+ *    - Redistributions in binary form must reproduce the above copyright
+ *      notice, this list of conditions and the following disclaimer in the
+ *      documentation and/or other materials provided with the distribution.
+ *    - Neither the name of the <organization> nor the
+ *      names of its contributors may be used to endorse or promote products
+ *      derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package no.uio.ifi.sonen.aicycles;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import no.uio.ifi.sonen.aicycles.net.Connection;
+import no.uio.ifi.sonen.aicycles.net.LocalTransport;
+import no.uio.ifi.sonen.aicycles.net.Packet;
+import no.uio.ifi.sonen.aicycles.server.AllocationBudget;
+import no.uio.ifi.sonen.aicycles.server.Arena;
+
+/**
+ * Measures the bytes a bot allocates handling the packets of a tick,
+ * for the allocation budget.
+ * 
+ * A bot is connected to a stand-in server in this process,
+ * which only does the handshake. The packets of a long two player match
+ * are then created up front from an arena, with checksums and deadlines
+ * in the updates, and handed to the bot one tick at a time.
+ *
+ * @author Sigmund Hansen <sigmund@chickensoft.com>
+ */
+public class BotAllocation {
+    
+    /** The width and height of the map, room for a long match. */
+    private static final int SIZE = 400;
+    
+    /**
+     * A bot that only keeps track of the state.
+     */
+    private static class Bot extends BotBase {
+        
+        /**
+         * Creates and connects a bot.
+         * 
+         * @param con The connection to the server.
+         */
+        Bot(Connection con) {
+            super(con);
+        }
+        
+        /**
+         * Gets the bot's name.
+         * 
+         * @return The name given in the handshake.
+         */
+        @Override
+        public String getName() {
+            return "budget";
+        }
+    }
+    
+    /**
+     * Hands a bot the packets of a match, twice as many ticks as measured,
+     * measuring the second half.
+     * 
+     * @param ticks The number of ticks to measure.
+     * @return The average bytes allocated per tick.
+     * @throws IOException if the bot could not be connected.
+     */
+    public static double measure(int ticks) throws IOException {
+        int[] startX = {SIZE / 4, SIZE * 3 / 4};
+        int[] startY = {SIZE / 2, SIZE / 2};
+        Bot bot = connect(startX, startY);
+        List<Packet[]> match = play(startX, startY, ticks * 2);
+        
+        allocated();
+        long first = AllocationBudget.allocated();
+        long overhead = AllocationBudget.allocated() - first;
+        long bytes = 0;
+        int measured = 0;
+        for (int i = 0; i < match.size(); i++) {
+            Packet[] tick = match.get(i);
+            long before = AllocationBudget.allocated();
+            for (Packet p : tick) {
+                bot.handlePacket(p);
+            }
+            long after = AllocationBudget.allocated();
+            if (i >= match.size() / 2) {
+                bytes += after - before - overhead;
+                measured++;
+            }
+        }
+        return measured == 0 ? 0 : (double) bytes / measured;
+    }
+    
+    /**
+     * Reads the allocation counter once, since it may allocate the first time.
+     */
+    private static void allocated() {
+        AllocationBudget.allocated();
+    }
+    
+    /**
+     * Connects a bot to a stand-in server doing the handshake of a two player match.
+     * The server's half of the handshake is sent up front,
+     * and waits in the bot's end of the local connection.
+     * 
+     * @param startX The horizontal start positions.
+     * @param startY The vertical start positions.
+     * @return The connected bot.
+     * @throws IOException if the handshake fails.
+     */
+    private static Bot connect(int[] startX, int[] startY) throws IOException {
+        LocalTransport[] pair = LocalTransport.createPair();
+        Connection server = new Connection(pair[1]);
+        server.sendPacket(new Packet.SimplePacket("Who's your user?", Packet.SHK_PKT));
+        server.sendPacket(new Packet.IntPacket(1, Packet.PID_PKT));
+        server.sendPacket(new Packet.MapPacket(SIZE, SIZE, startX.length));
+        server.sendPacket(new Packet.IntPacket(0, Packet.RND_PKT));
+        for (int i = 0; i < startX.length; i++) {
+            server.sendPacket(new Packet.PositionPacket(i + 1, startX[i], startY[i]));
+        }
+        
+        try {
+            return new Bot(new Connection(pair[0]));
+        } finally {
+            server.close();
+        }
+    }
+    
+    /**
+     * Plays a match in an arena, steering the cycles around taken squares,
+     * and creates the packets the server would send for it.
+     * 
+     * @param startX The horizontal start positions.
+     * @param startY The vertical start positions.
+     * @param ticks The number of ticks to play, unless the match ends first.
+     * @return The packets of every tick.
+     */
+    private static List<Packet[]> play(int[] startX, int[] startY, int ticks) {
+        final Arena arena = new Arena(SIZE, SIZE, startX, startY);
+        final List<Packet> packets = new ArrayList<Packet>();
+        Arena.Listener listener = new Arena.Listener() {
+            public void moved(int player, Direction dir) {
+                packets.add(new Packet.MovePacket(player + 1, dir));
+            }
+            
+            public void died(int player) {
+                packets.add(new Packet.IntPacket(player + 1, Packet.DIE_PKT));
+            }
+        };
+        
+        List<Packet[]> match = new ArrayList<Packet[]>();
+        for (int i = 0; i < ticks && arena.getLiveCount() > 1; i++) {
+            for (int j = 0; j < startX.length; j++) {
+                if (arena.getCycle(j).isAlive()) {
+                    AllocationBudget.steer(arena, arena.getCycle(j));
+                }
+            }
+            arena.step(listener);
+            long start = i * 50000L;
+            packets.add(new Packet.UpdatePacket(arena.getTick(), start, start + 50000,
+                                                Long.valueOf(arena.getChecksum())));
+            match.add(packets.toArray(new Packet[packets.size()]));
+            packets.clear();
+        }
+        return match;
+    }
+}
@@ -0,0 +1,249 @@
+/*
+ * Copyright (c) 2011, Åpen sone for eksperimentell informatikk
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *    - Redistributions of source code must retain the above copyright
+ *      notice, this list of conditions and the following disclaimer.
+ *    - Redistributions in binary form must reproduce the above copyright
+ *      notice, this list of conditions and the following disclaimer in the
+ *      documentation and/or other materials provided with the distribution.
+ *    - Neither the name of the <organization> nor the
+ *      names of its contributors may be used to endorse or promote products
+ *      derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package no.uio.ifi.sonen.aicycles.load;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import no.uio.ifi.sonen.aicycles.server.Match;
+import no.uio.ifi.sonen.aicycles.server.QuantileSketch;
+
+/**
+ * Drives synthetic bots on a single selector thread,
+ * and plays matches in this process with them.
+ * 
+ * Matches are played from other threads, which hand their bots
+ * to the selector thread once they have connected.
+ *
+ * @author Sigmund Hansen <sigmunha@ifi.uio.no>
+ */
+class BotDriver {
+    
+    /** The number of milliseconds to keep trying to reach a match's port. */
+    private static final long CONNECT_TIMEOUT = 5000;
+    
+    /** Drives every bot. */
+    private final Selector selector;
+    /** Bots that have connected, waiting to be registered with the selector. */
+    private final ConcurrentLinkedQueue<SyntheticBot> pending =
+            new ConcurrentLinkedQueue<SyntheticBot>();
+    /** How long after the start of each tick the bots answered, in microseconds. */
+    private final QuantileSketch latency;
+    /** The selector thread. */
+    private final Thread thread;
+    /** Whether the selector thread should stop. */
+    private volatile boolean closed = false;
+    
+    /**
+     * Creates a bot driver and starts its selector thread.
+     * 
+     * @param latency Where the bots record how fast they answered updates.
+     * @throws IOException if the selector could not be opened.
+     */
+    BotDriver(QuantileSketch latency) throws IOException {
+        this.latency = latency;
+        this.selector = Selector.open();
+        this.thread = new Thread(new Runnable() {
+            /**
+             * Drives the bots until the driver is closed.
+             */
+            public void run() {
+                drive();
+            }
+        }, "bots");
+        thread.start();
+    }
+    
+    /**
+     * Selects and lets ready bots read and write until the driver is closed,
+     * then closes every bot that is left and the selector.
+     */
+    private void drive() {
+        try {
+            while (!closed) {
+                selector.select();
+                SyntheticBot bot;
+                while ((bot = pending.poll()) != null) {
+                    register(bot);
+                }
+                for (SelectionKey key : selector.selectedKeys()) {
+                    handle(key);
+                }
+                selector.selectedKeys().clear();
+            }
+        } catch (IOException ioe) {
+            System.err.printf("Bot selector failed: %s%n", ioe.getMessage());
+        }
+        
+        SyntheticBot bot;
+        while ((bot = pending.poll()) != null) {
+            bot.close();
+        }
+        for (SelectionKey key : selector.keys()) {
+            ((SyntheticBot) key.attachment()).close();
+        }
+        try {
+            selector.close();
+        } catch (IOException ioe) {
+        }
+    }
+    
+    /**
+     * Registers a bot's channel with the selector.
+     * 
+     * @param bot The bot to register.
+     */
+    private void register(SyntheticBot bot) {
+        try {
+            bot.getChannel().register(selector, SelectionKey.OP_READ, bot);
+        } catch (IOException ioe) {
+            bot.close();
+        }
+    }
+    
+    /**
+     * Lets a bot read or write.
+     * 
+     * @param key The bot's selection key.
+     */
+    private void handle(SelectionKey key) {
+        SyntheticBot bot = (SyntheticBot) key.attachment();
+        try {
+            if (key.isValid() && key.isWritable()) {
+                bot.write(key);
+            }
+            if (key.isValid() && key.isReadable()) {
+                bot.read(key);
+            }
+        } catch (IOException ioe) {
+            bot.close();
+        }
+        if (bot.isFinished()) {
+            key.cancel();
+        }
+    }
+    
+    /**
+     * Plays a match with synthetic bots, returning when it is over.
+     * 
+     * @param size The width and height of the map.
+     * @param players The number of players.
+     * @param seed The match's seed, the bots' seeds are derived from it.
+     * @param port The port to run the match on.
+     * @param prefix The start of every bot's name.
+     * @return The match, or null if a bot could not connect.
+     * @throws InterruptedException if interrupted while waiting for the match.
+     */
+    Match playMatch(int size, int players, int seed, int port, String prefix)
+            throws InterruptedException {
+        String[] names = new String[players];
+        for (int i = 0; i < players; i++) {
+            names[i] = prefix + i;
+        }
+        
+        final Match m = new Match(size, size, seed, names, null, port);
+        Thread t = new Thread(new Runnable() {
+            /**
+             * Runs the match.
+             */
+            public void run() {
+                m.run();
+            }
+        }, "match-" + port);
+        t.start();
+        
+        boolean connected = true;
+        for (int i = 0; i < players && connected; i++) {
+            SocketChannel channel = connect(port);
+            if (channel == null) {
+                System.err.printf("Could not connect %s to port %d.%n", names[i], port);
+                connected = false;
+            } else {
+                pending.add(new SyntheticBot(names[i], channel, seed * 101L + i, latency));
+                selector.wakeup();
+            }
+        }
+        
+        // Without all its players, the match gives up after its connection timeout.
+        t.join();
+        return connected ? m : null;
+    }
+    
+    /**
+     * Connects to a match, retrying until it has opened its port.
+     * 
+     * @param port The match's port.
+     * @return A non-blocking channel, or null if the match never answered.
+     */
+    private static SocketChannel connect(int port) {
+        InetSocketAddress address = new InetSocketAddress(InetAddress.getLoopbackAddress(), port);
+        long giveUp = System.currentTimeMillis() + CONNECT_TIMEOUT;
+        while (System.currentTimeMillis() < giveUp) {
+            try {
+                SocketChannel channel = SocketChannel.open(address);
+                channel.socket().setTcpNoDelay(true);
+                channel.configureBlocking(false);
+                return channel;
+            } catch (ConnectException ce) {
+                try {
+                    Thread.sleep(10);
+                } catch (InterruptedException e) {
+                    return null;
+                }
+            } catch (IOException ioe) {
+                return null;
+            }
+        }
+        return null;
+    }
+    
+    /**
+     * Gets the CPU time used by the selector thread.
+     * 
+     * @return The thread's CPU time in nanoseconds.
+     */
+    long getCpuTime() {
+        return ManagementFactory.getThreadMXBean().getThreadCpuTime(thread.getId());
+    }
+    
+    /**
+     * Stops the selector thread and closes every bot left.
+     * 
+     * @throws InterruptedException if interrupted while waiting for the thread.
+     */
+    void close() throws InterruptedException {
+        closed = true;
+        selector.wakeup();
+        thread.join();
+    }
+}
@@ -0,0 +1,285 @@
+/*
+ * Copyright (c) 2011, Åpen sone for eksperimentell informatikk
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *    - Redistributions of source code must retain the above copyright
+ *      notice, this list of conditions and the following disclaimer.
+ *    - Redistributions in binary form must reproduce the above copyright
+ *      notice, this list of conditions and the following disclaimer in the
+ *      documentation and/or other materials provided with the distribution.
+ *    - Neither the name of the <organization> nor the
+ *      names of its contributors may be used to endorse or promote products
+ *      derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package no.uio.ifi.sonen.aicycles.load;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import no.uio.ifi.sonen.aicycles.metrics.Metric;
+import no.uio.ifi.sonen.aicycles.metrics.Metrics;
+import no.uio.ifi.sonen.aicycles.server.QuantileSketch;
+
+/**
+ * Runs many matches at once in this process, each on its own port,
+ * and plays them with synthetic bots over the loopback interface,
+ * reporting how fast the server keeps up.
+ * 
+ * Every few seconds it prints the ticks per second of all matches,
+ * how long after the start of a tick the bots got to answer it,
+ * and the CPU time and heap used by the server.
+ * The bots all run on one selector thread,
+ * whose CPU time is left out of the server's.
+ * When a match is over, a new one starts on its port with new bots,
+ * until the time is up.
+ * 
+ * Usage: LoadGenerator [matches] [players] [seconds] [first port]
+ *
+ * @author Sigmund Hansen <sigmunha@ifi.uio.no>
+ */
+public class LoadGenerator {
+    
+    /** The number of milliseconds between reports. */
+    private static final long REPORT_INTERVAL = 5000;
+    
+    /** The number of matches running at once. */
+    private final int matches;
+    /** The number of players in each match. */
+    private final int players;
+    /** The width and height of each match's map. */
+    private final int size;
+    /** The port of the first match, the others use the ports after it. */
+    private final int firstPort;
+    /** Where to print reports. */
+    private final PrintStream report;
+    /** The number of matches finished. */
+    private final AtomicInteger finished = new AtomicInteger();
+    /** How long after the start of each tick the bots answered, in microseconds. */
+    private final QuantileSketch latency = new QuantileSketch(10000000);
+    /** Drives every bot. */
+    private BotDriver driver;
+    /** Whether to stop starting new matches. */
+    private volatile boolean stopping = false;
+    
+    /**
+     * Creates a load generator.
+     * 
+     * @param matches The number of matches to run at once.
+     * @param players The number of players in each match.
+     * @param firstPort The port of the first match.
+     * @param report Where to print reports.
+     */
+    public LoadGenerator(int matches, int players, int firstPort, PrintStream report) {
+        this.matches = matches;
+        this.players = players;
+        this.firstPort = firstPort;
+        this.report = report;
+        // About as much room per player as two players on the default map.
+        this.size = (int) Math.ceil(47 * Math.sqrt(Math.max(2, players) / 2.0));
+    }
+    
+    /**
+     * Runs the load test.
+     * 
+     * @param args The number of matches, players per match,
+     *             seconds to run and the first port, all optional.
+     * @throws IOException if the selector could not be opened.
+     */
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (System.getProperty("aicycles.deadlines") == null) {
+            // The bots measure their latency from the tick start in each update.
+            System.setProperty("aicycles.deadlines", "true");
+        }
+        
+        int matches = args.length > 0 ? Integer.parseInt(args[0]) : 10;
+        int players = args.length > 1 ? Integer.parseInt(args[1]) : 12;
+        int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 60;
+        int port = args.length > 3 ? Integer.parseInt(args[3]) : 2000;
+        
+        // Matches print a lot about every player, only the reports are wanted.
+        PrintStream out = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        LoadGenerator generator = new LoadGenerator(matches, players, port, out);
+        out.printf("%d matches of %d players on %dx%d maps for %d s, ports %d to %d%n",
+                   matches, players, generator.size, generator.size, seconds,
+                   port, port + matches - 1);
+        generator.run(seconds * 1000L);
+        System.exit(0);
+    }
+    
+    /**
+     * Starts the matches and drives the bots until the time is up
+     * and the last matches are over.
+     * 
+     * @param millis The number of milliseconds to keep starting matches.
+     * @throws IOException if the selector could not be opened.
+     * @throws InterruptedException if interrupted while waiting for the matches.
+     */
+    public void run(long millis) throws IOException, InterruptedException {
+        driver = new BotDriver(latency);
+        List<Thread> slots = new ArrayList<Thread>();
+        for (int i = 0; i < matches; i++) {
+            final int slot = i;
+            Thread t = new Thread(new Runnable() {
+                /**
+                 * Plays matches on the slot's port until told to stop.
+                 */
+                public void run() {
+                    playMatches(slot);
+                }
+            }, "slot-" + i);
+            t.start();
+            slots.add(t);
+        }
+        
+        long start = System.currentTimeMillis();
+        long end = start + millis;
+        Sample last = new Sample(driver);
+        long nextReport = start + REPORT_INTERVAL;
+        while (true) {
+            long now = System.currentTimeMillis();
+            if (now >= end && !stopping) {
+                stopping = true;
+            }
+            if (stopping && !isAlive(slots)) {
+                break;
+            }
+            if (now >= nextReport) {
+                last = report(last, (now - start) / 1000);
+                nextReport += REPORT_INTERVAL;
+            }
+            
+            long wake = stopping ? nextReport : Math.min(nextReport, end);
+            Thread.sleep(Math.max(1, Math.min(100, wake - now)));
+        }
+        
+        report(last, (System.currentTimeMillis() - start) / 1000);
+        driver.close();
+    }
+    
+    /**
+     * Checks whether any of the slots are still running.
+     * 
+     * @param slots The threads running matches.
+     * @return true if a thread is still alive.
+     */
+    private static boolean isAlive(List<Thread> slots) {
+        for (Thread t : slots) {
+            if (t.isAlive()) {
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    /**
+     * Runs matches on a slot's port, one after another,
+     * connecting new bots to each.
+     * 
+     * @param slot The number of the slot.
+     */
+    private void playMatches(int slot) {
+        int port = firstPort + slot;
+        for (int round = 0; !stopping; round++) {
+            try {
+                if (driver.playMatch(size, players, slot * 7919 + round, port,
+                                     "bot" + slot + "x") == null) {
+                    stopping = true;
+                    return;
+                }
+            } catch (InterruptedException e) {
+                return;
+            }
+            finished.incrementAndGet();
+        }
+    }
+    
+    /**
+     * Prints a line about the time since the last report,
+     * and starts measuring latency anew.
+     * 
+     * @param last The sample taken at the last report.
+     * @param elapsed The number of seconds since the test started.
+     * @return A sample to compare the next report with.
+     */
+    private Sample report(Sample last, long elapsed) {
+        Sample now = new Sample(driver);
+        QuantileSketch answers;
+        synchronized (latency) {
+            answers = latency.copy();
+            latency.reset();
+        }
+        double seconds = (now.time - last.time) / 1e9;
+        double serverCpu = (now.processCpu - last.processCpu)
+                           - (now.generatorCpu - last.generatorCpu);
+        report.printf("%4d s: %d matches done, %.0f ticks/s, %.0f answers/s, "
+                      + "latency p50 %.1f ms p99 %.1f ms max %.1f ms, "
+                      + "server CPU %.0f%%, bots CPU %.0f%%, heap %d MB, %d GCs%n",
+                      elapsed, finished.get(),
+                      (now.ticks - last.ticks) / seconds,
+                      answers.getCount() / seconds,
+                      answers.getQuantile(0.5) / 1000.0,
+                      answers.getQuantile(0.99) / 1000.0,
+                      answers.getMax() / 1000.0,
+                      100 * serverCpu / 1e9 / seconds,
+                      100 * (now.generatorCpu - last.generatorCpu) / 1e9 / seconds,
+                      now.heap >> 20, now.gcs - last.gcs);
+        return now;
+    }
+    
+    /**
+     * The counters a report compares with the previous report.
+     */
+    private static class Sample {
+        
+        /** When the sample was taken, from System.nanoTime. */
+        final long time = System.nanoTime();
+        /** The ticks run by all matches. */
+        final long ticks;
+        /** The CPU time used by the process, in nanoseconds. */
+        final long processCpu;
+        /** The CPU time used by the selector thread, in nanoseconds. */
+        final long generatorCpu;
+        /** The heap in use, in bytes. */
+        final long heap;
+        /** The number of garbage collections. */
+        final long gcs;
+        
+        /**
+         * Takes a sample.
+         * 
+         * @param driver The driver whose selector thread runs the bots.
+         */
+        Sample(BotDriver driver) {
+            Metric m = Metrics.get("aicycles_ticks_total");
+            ticks = m == null ? 0 : m.getValue();
+            processCpu = ((com.sun.management.OperatingSystemMXBean)
+                          ManagementFactory.getOperatingSystemMXBean()).getProcessCpuTime();
+            generatorCpu = driver.getCpuTime();
+            heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+            long count = 0;
+            for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+                count += Math.max(0, gc.getCollectionCount());
+            }
+            gcs = count;
+        }
+    }
+}
@@ -0,0 +1,386 @@
+/*
+ * Copyright (c) 2011, Åpen sone for eksperimentell informatikk
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *    - Redistributions of source code must retain the above copyright
+ *      notice, this list of conditions and the following disclaimer.
+ *    - Redistributions in binary form must reproduce the above copyright
+ *      notice, this list of conditions and the following disclaimer in the
+ *      documentation and/or other materials provided with the distribution.
+ *    - Neither the name of the <organization> nor the
+ *      names of its contributors may be used to endorse or promote products
+ *      derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package no.uio.ifi.sonen.aicycles.load;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import no.uio.ifi.sonen.aicycles.server.QuantileSketch;
+
+/**
+ * Plays thousands of matches back to back in this process
+ * and checks that every one of them cleans up after itself.
+ * 
+ * Matches are played in batches, a few at a time on their own ports.
+ * After each batch, when the matches' threads have had time to end,
+ * it collects garbage and samples the live threads, open file descriptors
+ * and heap in use. The first sample after a few warm-up batches is the baseline,
+ * and if the last sample has grown past it by more than a small tolerance,
+ * the test fails with exit code 1.
+ * If a batch hasn't ended within a few minutes, a match has hung,
+ * and the test fails with exit code 3.
+ * 
+ * Every sample is written to a CSV file for plotting,
+ * named by the aicycles.soak.report property and soak.csv by default,
+ * and the trend per thousand matches is printed at the end.
+ * 
+ * Usage: SoakTest [matches] [matches at once] [players] [first port]
+ *
+ * @author Sigmund Hansen <sigmunha@ifi.uio.no>
+ */
+public class SoakTest {
+    
+    /** The number of batches to play before taking the baseline. */
+    private static final int WARMUP_BATCHES = 3;
+    /** The number of milliseconds a batch may take before its matches count as hung. */
+    private static final long BATCH_TIMEOUT = 300000;
+    /** The number of milliseconds to wait for threads to end after a batch. */
+    private static final long SETTLE_TIMEOUT = 5000;
+    /** The number of milliseconds between progress lines. */
+    private static final long PROGRESS_INTERVAL = 10000;
+    /** The number of threads more than the baseline that counts as a leak. */
+    private static final int THREAD_TOLERANCE = 2;
+    /** The number of file descriptors more than the baseline that counts as a leak. */
+    private static final long FD_TOLERANCE = 8;
+    /** The least heap growth in bytes that counts as a leak. */
+    private static final long HEAP_TOLERANCE = 16 << 20;
+    
+    /** The number of matches to play. */
+    private final int matches;
+    /** The number of matches played at once. */
+    private final int concurrent;
+    /** The number of players in each match. */
+    private final int players;
+    /** The port of the first match in a batch, the others use the ports after it. */
+    private final int firstPort;
+    /** Where to print progress and the result. */
+    private final PrintStream out;
+    /** Plays the matches. */
+    private BotDriver driver;
+    /** The number of matches played so far. */
+    private int played = 0;
+    /** Whether every bot managed to connect to its match. */
+    private volatile boolean connected = true;
+    /** Whether a match failed to end in time. */
+    private boolean hung = false;
+    
+    /**
+     * Creates a soak test.
+     * 
+     * @param matches The number of matches to play.
+     * @param concurrent The number of matches played at once.
+     * @param players The number of players in each match.
+     * @param firstPort The port of the first match in a batch.
+     * @param out Where to print progress and the result.
+     */
+    public SoakTest(int matches, int concurrent, int players, int firstPort, PrintStream out) {
+        this.matches = matches;
+        this.concurrent = concurrent;
+        this.players = players;
+        this.firstPort = firstPort;
+        this.out = out;
+    }
+    
+    /**
+     * Runs the soak test, exiting with 0 if nothing leaked,
+     * 1 if something did, 2 if the matches could not be played
+     * and 3 if a match hung.
+     * 
+     * @param args The number of matches, matches at once,
+     *             players per match and the first port, all optional.
+     * @throws IOException if the report could not be written.
+     * @throws InterruptedException if interrupted while playing.
+     */
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int matches = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        int concurrent = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+        int players = args.length > 2 ? Integer.parseInt(args[2]) : 4;
+        int port = args.length > 3 ? Integer.parseInt(args[3]) : 3000;
+        String file = System.getProperty("aicycles.soak.report", "soak.csv");
+        
+        // Matches print a lot about every player, only the progress is wanted.
+        PrintStream out = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        out.printf("Soaking %d matches of %d players, %d at a time on ports %d to %d%n",
+                   matches, players, concurrent, port, port + concurrent - 1);
+        
+        SoakTest test = new SoakTest(matches, concurrent, players, port, out);
+        PrintWriter report = new PrintWriter(new FileWriter(file));
+        int status;
+        try {
+            status = test.run(report);
+        } finally {
+            report.close();
+        }
+        out.printf("Trend written to %s%n", file);
+        System.exit(status);
+    }
+    
+    /**
+     * Plays the matches, sampling after every batch.
+     * 
+     * @param report Where to write every sample as CSV.
+     * @return The exit code: 0 if nothing leaked, 1 if something did,
+     *         2 if the matches could not be played and 3 if a match hung.
+     * @throws IOException if the bots' selector could not be opened.
+     * @throws InterruptedException if interrupted while playing.
+     */
+    public int run(PrintWriter report) throws IOException, InterruptedException {
+        driver = new BotDriver(new QuantileSketch(10000000));
+        try {
+            for (int i = 0; i < WARMUP_BATCHES && connected && !hung; i++) {
+                playBatch();
+            }
+            if (hung || !connected) {
+                return hung ? 3 : 2;
+            }
+            
+            Footprint baseline = settle(Integer.MAX_VALUE);
+            int warmup = played;
+            long start = System.currentTimeMillis();
+            long nextProgress = start + PROGRESS_INTERVAL;
+            report.println("matches,seconds,threads,fds,heap_kb");
+            baseline.print(report, 0, 0);
+            out.printf("Baseline after %d matches: %s%n", warmup, baseline);
+            
+            Footprint last = baseline;
+            Trend threads = new Trend();
+            Trend fds = new Trend();
+            Trend heap = new Trend();
+            while (played - warmup < matches && connected && !hung) {
+                playBatch();
+                last = settle(baseline.threads);
+                long now = System.currentTimeMillis();
+                last.print(report, played - warmup, (now - start) / 1000);
+                threads.add(played - warmup, last.threads);
+                fds.add(played - warmup, last.fds);
+                heap.add(played - warmup, last.heap);
+                if (now >= nextProgress) {
+                    out.printf("%5d s: %d matches, %s%n",
+                               (now - start) / 1000, played - warmup, last);
+                    nextProgress += PROGRESS_INTERVAL;
+                }
+            }
+            if (hung || !connected) {
+                return hung ? 3 : 2;
+            }
+            
+            out.printf("After %d matches: %s%n", played - warmup, last);
+            out.printf("Trend per 1000 matches: %+.1f threads, %+.1f fds, %+.0f KB heap%n",
+                       threads.getSlope() * 1000, fds.getSlope() * 1000,
+                       heap.getSlope() * 1000 / 1024);
+            
+            boolean leaked = false;
+            if (last.threads - baseline.threads > THREAD_TOLERANCE) {
+                out.printf("Leaked %d threads.%n", last.threads - baseline.threads);
+                leaked = true;
+            }
+            if (baseline.fds >= 0 && last.fds - baseline.fds > FD_TOLERANCE) {
+                out.printf("Leaked %d file descriptors.%n", last.fds - baseline.fds);
+                leaked = true;
+            }
+            if (last.heap - baseline.heap > Math.max(HEAP_TOLERANCE, baseline.heap / 4)) {
+                out.printf("Leaked %d KB of heap.%n", (last.heap - baseline.heap) >> 10);
+                leaked = true;
+            }
+            if (!leaked) {
+                out.println("No leaks.");
+            }
+            return leaked ? 1 : 0;
+        } finally {
+            driver.close();
+        }
+    }
+    
+    /**
+     * Plays a match on every port at once and waits for them all to end,
+     * noting it if they take too long.
+     * 
+     * @throws InterruptedException if interrupted while waiting for the matches.
+     */
+    private void playBatch() throws InterruptedException {
+        Thread[] slots = new Thread[concurrent];
+        for (int i = 0; i < concurrent; i++) {
+            final int port = firstPort + i;
+            final int seed = played + i;
+            slots[i] = new Thread(new Runnable() {
+                /**
+                 * Plays one match on the slot's port.
+                 */
+                public void run() {
+                    try {
+                        if (driver.playMatch(size(), players, seed, port, "soak" + seed + "x")
+                                == null) {
+                            connected = false;
+                        }
+                    } catch (InterruptedException e) {
+                        connected = false;
+                    }
+                }
+            }, "slot-" + i);
+            slots[i].start();
+        }
+        long giveUp = System.currentTimeMillis() + BATCH_TIMEOUT;
+        for (int i = 0; i < concurrent; i++) {
+            slots[i].join(Math.max(1, giveUp - System.currentTimeMillis()));
+            if (slots[i].isAlive()) {
+                out.printf("The match on port %d hung after %d matches.%n",
+                           firstPort + i, played);
+                hung = true;
+            }
+        }
+        played += concurrent;
+    }
+    
+    /**
+     * Gets the width and height of every map,
+     * about as much room per player as two players on the default map.
+     * 
+     * @return The size of the maps.
+     */
+    private int size() {
+        return (int) Math.ceil(47 * Math.sqrt(Math.max(2, players) / 2.0));
+    }
+    
+    /**
+     * Waits for the threads left by the last batch to end,
+     * collects garbage and takes a sample.
+     * 
+     * @param threads The number of threads to wait for the process to get down to.
+     * @return The process' footprint.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    private Footprint settle(int threads) throws InterruptedException {
+        long giveUp = System.currentTimeMillis() + SETTLE_TIMEOUT;
+        if (threads == Integer.MAX_VALUE) {
+            // Nothing to compare with yet, so give them the whole time.
+            Thread.sleep(SETTLE_TIMEOUT / 5);
+        }
+        while (ManagementFactory.getThreadMXBean().getThreadCount() > threads
+               && System.currentTimeMillis() < giveUp) {
+            Thread.sleep(10);
+        }
+        System.gc();
+        System.gc();
+        return new Footprint();
+    }
+    
+    /**
+     * The resources the process holds when no match is running.
+     */
+    private static class Footprint {
+        
+        /** The number of live threads. */
+        final int threads;
+        /** The number of open file descriptors, -1 if unknown. */
+        final long fds;
+        /** The heap in use after collecting garbage, in bytes. */
+        final long heap;
+        
+        /**
+         * Takes a sample.
+         */
+        Footprint() {
+            threads = ManagementFactory.getThreadMXBean().getThreadCount();
+            OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+            if (os instanceof com.sun.management.UnixOperatingSystemMXBean) {
+                fds = ((com.sun.management.UnixOperatingSystemMXBean) os)
+                        .getOpenFileDescriptorCount();
+            } else {
+                fds = -1;
+            }
+            heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+        }
+        
+        /**
+         * Writes the sample as a line of CSV.
+         * 
+         * @param report Where to write it.
+         * @param matches The number of matches played since the baseline.
+         * @param seconds The number of seconds since the baseline.
+         */
+        void print(PrintWriter report, int matches, long seconds) {
+            report.printf("%d,%d,%d,%d,%d%n", matches, seconds, threads, fds, heap >> 10);
+            report.flush();
+        }
+        
+        /**
+         * Describes the sample.
+         * 
+         * @return The threads, file descriptors and heap in a readable form.
+         */
+        @Override
+        public String toString() {
+            return String.format("%d threads, %d fds, %d KB heap", threads, fds, heap >> 10);
+        }
+    }
+    
+    /**
+     * A least squares line through samples, to tell slow growth from noise.
+     */
+    private static class Trend {
+        
+        /** The number of samples. */
+        private int n = 0;
+        /** The sum of the x values. */
+        private double sumX = 0;
+        /** The sum of the y values. */
+        private double sumY = 0;
+        /** The sum of the squared x values. */
+        private double sumXX = 0;
+        /** The sum of the x values times the y values. */
+        private double sumXY = 0;
+        
+        /**
+         * Adds a sample.
+         * 
+         * @param x The number of matches played.
+         * @param y The value sampled.
+         */
+        void add(double x, double y) {
+            n++;
+            sumX += x;
+            sumY += y;
+            sumXX += x * x;
+            sumXY += x * y;
+        }
+        
+        /**
+         * Gets the slope of the line.
+         * 
+         * @return The growth per match, 0 with fewer than two samples.
+         */
+        double getSlope() {
+            double d = n * sumXX - sumX * sumX;
+            return n < 2 || d == 0 ? 0 : (n * sumXY - sumX * sumY) / d;
+        }
+    }
+}
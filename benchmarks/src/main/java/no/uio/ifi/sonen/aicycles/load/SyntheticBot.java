@@ -0,0 +1,455 @@
+/*
+ * Copyright (c) 2011, Åpen sone for eksperimentell informatikk
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *    - Redistributions of source code must retain the above copyright
+ *      notice, this list of conditions and the following disclaimer.
+ *    - Redistributions in binary form must reproduce the above copyright
+ *      notice, this list of conditions and the following disclaimer in the
+ *      documentation and/or other materials provided with the distribution.
+ *    - Neither the name of the <organization> nor the
+ *      names of its contributors may be used to endorse or promote products
+ *      derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package no.uio.ifi.sonen.aicycles.load;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import no.uio.ifi.sonen.aicycles.Direction;
+import no.uio.ifi.sonen.aicycles.net.Connection;
+import no.uio.ifi.sonen.aicycles.net.Packet;
+import no.uio.ifi.sonen.aicycles.server.QuantileSketch;
+
+/**
+ * A lightweight bot for load testing, driven by a shared selector thread
+ * instead of having threads of its own.
+ * 
+ * It plays like AwesomeBot, turning at random unless that would crash,
+ * but answers every update, tagged with the update's number,
+ * so the server gets one command per bot per tick.
+ * Packets are parsed by hand rather than through Packet objects,
+ * so hundreds of bots can follow their matches from a single thread.
+ *
+ * @author Sigmund Hansen <sigmunha@ifi.uio.no>
+ */
+class SyntheticBot {
+    
+    /** The longest line the bot reads, longer lines like snapshots are cut. */
+    private static final int MAX_LINE = 4096;
+    
+    /** The bot's name, given in the handshake. */
+    private final String name;
+    /** The bot's connection to the server. */
+    private final SocketChannel channel;
+    /** Picks the bot's turns. */
+    private final Random random;
+    /** How long after the start of each tick the bot answered, in microseconds. */
+    private final QuantileSketch latency;
+    /** Bytes received and not yet handled. */
+    private final ByteBuffer in = ByteBuffer.allocate(8192);
+    /** The line being read. */
+    private final byte[] line = new byte[MAX_LINE];
+    /** The length of the line being read. */
+    private int lineLength = 0;
+    /** Bytes waiting to be sent, or null if everything has been sent. */
+    private ByteBuffer out;
+    
+    /** The bot's player ID. */
+    private int id;
+    /** The map, with a border of walls, -1 for walls and the owner or 0 for squares. */
+    private int[][] map;
+    /** The horizontal position of every cycle, in map coordinates. */
+    private int[] xs;
+    /** The vertical position of every cycle, in map coordinates. */
+    private int[] ys;
+    /** Whether the bot's own cycle is alive. */
+    private boolean alive = true;
+    /** The direction the bot's cycle is heading. */
+    private Direction heading = Direction.N;
+    /** The number of updates answered. */
+    private int answers = 0;
+    /** Whether the connection has been closed, after the server closed it. */
+    private boolean finished = false;
+    
+    /**
+     * Creates a bot on a connected channel.
+     * 
+     * @param name The name of the bot.
+     * @param channel The bot's connection, non-blocking.
+     * @param seed The seed for the bot's random turns.
+     * @param latency Where to record how fast the bot answered updates,
+     *                locked while recording.
+     */
+    SyntheticBot(String name, SocketChannel channel, long seed, QuantileSketch latency) {
+        this.name = name;
+        this.channel = channel;
+        this.random = new Random(seed);
+        this.latency = latency;
+    }
+    
+    /**
+     * Reads what's available from the server and handles every complete line.
+     * 
+     * @param key The bot's selection key.
+     * @throws IOException if reading or answering fails.
+     */
+    void read(SelectionKey key) throws IOException {
+        int n = channel.read(in);
+        if (n < 0) {
+            close();
+            return;
+        }
+        
+        in.flip();
+        while (in.hasRemaining()) {
+            byte b = in.get();
+            if (b == '\n') {
+                handle(lineLength);
+                lineLength = 0;
+            } else if (b != '\r' && lineLength < MAX_LINE) {
+                line[lineLength++] = b;
+            }
+        }
+        in.clear();
+        key.interestOps(out != null ? SelectionKey.OP_READ | SelectionKey.OP_WRITE
+                                    : SelectionKey.OP_READ);
+    }
+    
+    /**
+     * Sends what couldn't be sent earlier.
+     * 
+     * @param key The bot's selection key.
+     * @throws IOException if writing fails.
+     */
+    void write(SelectionKey key) throws IOException {
+        if (out != null) {
+            channel.write(out);
+            if (!out.hasRemaining()) {
+                out = null;
+            }
+        }
+        if (out == null) {
+            key.interestOps(SelectionKey.OP_READ);
+        }
+    }
+    
+    /**
+     * Sends a packet, keeping whatever the socket won't take for later.
+     * 
+     * @param p The packet to send.
+     * @throws IOException if writing fails.
+     */
+    private void send(Packet p) throws IOException {
+        byte[] bytes = (p.getPacketType() + " " + p.getData() + "\n")
+                .getBytes(StandardCharsets.UTF_8);
+        if (out == null) {
+            ByteBuffer buf = ByteBuffer.wrap(bytes);
+            channel.write(buf);
+            if (buf.hasRemaining()) {
+                out = buf;
+            }
+        } else {
+            ByteBuffer buf = ByteBuffer.allocate(out.remaining() + bytes.length);
+            buf.put(out).put(bytes).flip();
+            out = buf;
+        }
+    }
+    
+    /**
+     * Parses a non-negative number from the line.
+     * 
+     * @param pos The position of the number's first digit.
+     * @return The number.
+     */
+    private int parseInt(int pos) {
+        int n = 0;
+        while (pos < lineLength && line[pos] >= '0' && line[pos] <= '9') {
+            n = n * 10 + (line[pos++] - '0');
+        }
+        return n;
+    }
+    
+    /**
+     * Finds the start of the next field on the line.
+     * 
+     * @param pos A position within the current field.
+     * @return The position of the next field, or the end of the line.
+     */
+    private int next(int pos) {
+        while (pos < lineLength && line[pos] != ' ') {
+            pos++;
+        }
+        while (pos < lineLength && line[pos] == ' ') {
+            pos++;
+        }
+        return pos;
+    }
+    
+    /**
+     * Looks for a key=value field on the line.
+     * 
+     * @param pos The position to start looking at.
+     * @param key The key to look for, including the equals sign.
+     * @return The position of the value, or -1 if the key isn't there.
+     */
+    private int find(int pos, String key) {
+        for (; pos < lineLength; pos = next(pos)) {
+            int i = 0;
+            while (i < key.length() && pos + i < lineLength
+                   && line[pos + i] == key.charAt(i)) {
+                i++;
+            }
+            if (i == key.length()) {
+                return pos + i;
+            }
+        }
+        return -1;
+    }
+    
+    /**
+     * Handles a line from the server.
+     * 
+     * @param length The length of the line.
+     * @throws IOException if answering fails.
+     */
+    private void handle(int length) throws IOException {
+        if (length == 0) {
+            return;
+        }
+        
+        int type = parseInt(0);
+        int pos = next(0);
+        switch (type) {
+            case Packet.SHK_PKT:
+                send(new Packet.SimplePacket(name, Packet.SHK_PKT));
+                break;
+                
+            case Packet.PID_PKT:
+                id = parseInt(pos);
+                break;
+                
+            case Packet.MAP_PKT: {
+                int w = parseInt(pos);
+                pos = next(pos);
+                int h = parseInt(pos);
+                pos = next(pos);
+                int players = parseInt(pos);
+                map = new int[w + 2][h + 2];
+                for (int x = 0; x < w + 2; x++) {
+                    map[x][0] = -1;
+                    map[x][h + 1] = -1;
+                }
+                for (int y = 0; y < h + 2; y++) {
+                    map[0][y] = -1;
+                    map[w + 1][y] = -1;
+                }
+                xs = new int[players];
+                ys = new int[players];
+                break;
+            }
+                
+            case Packet.POS_PKT: {
+                int p = parseInt(pos) - 1;
+                pos = next(pos);
+                xs[p] = parseInt(pos) + 1;
+                pos = next(pos);
+                ys[p] = parseInt(pos) + 1;
+                map[xs[p]][ys[p]] = p + 1;
+                break;
+            }
+                
+            case Packet.MOV_PKT: {
+                int p = parseInt(pos) - 1;
+                pos = next(pos);
+                Direction d = direction(line[pos]);
+                xs[p] += dx(d);
+                ys[p] += dy(d);
+                if (map[xs[p]][ys[p]] == 0) {
+                    map[xs[p]][ys[p]] = p + 1;
+                }
+                if (p == id - 1) {
+                    heading = d;
+                }
+                break;
+            }
+                
+            case Packet.DIE_PKT:
+                if (parseInt(pos) == id) {
+                    alive = false;
+                }
+                break;
+                
+            case Packet.UPD_PKT: {
+                int tick = parseInt(pos);
+                int start = find(pos, "start=");
+                if (alive && map != null) {
+                    answer(tick);
+                    if (start >= 0) {
+                        long micros = Connection.now() - parseLong(start);
+                        synchronized (latency) {
+                            latency.record(micros);
+                        }
+                    }
+                }
+                break;
+            }
+                
+            case Packet.PNG_PKT:
+                send(new Packet.SimplePacket(new String(line, pos, length - pos,
+                                                        StandardCharsets.UTF_8)
+                                             + " " + Connection.now(), Packet.PON_PKT));
+                break;
+                
+            default:
+                break;
+        }
+    }
+    
+    /**
+     * Parses a non-negative long from the line.
+     * 
+     * @param pos The position of the number's first digit.
+     * @return The number.
+     */
+    private long parseLong(int pos) {
+        long n = 0;
+        while (pos < lineLength && line[pos] >= '0' && line[pos] <= '9') {
+            n = n * 10 + (line[pos++] - '0');
+        }
+        return n;
+    }
+    
+    /**
+     * Picks a direction for the next tick and sends it.
+     * 
+     * @param tick The update being answered.
+     * @throws IOException if sending fails.
+     */
+    private void answer(int tick) throws IOException {
+        Direction[] values = Direction.values();
+        Direction left = values[(heading.ordinal() + 3) % 4];
+        Direction right = values[(heading.ordinal() + 1) % 4];
+        boolean forwardTaken = isTaken(heading);
+        boolean leftTaken = isTaken(left);
+        boolean rightTaken = isTaken(right);
+        
+        double chance = random.nextDouble();
+        Direction dir = heading;
+        if (chance <= 0.3 && !leftTaken) {
+            dir = left;
+        } else if (chance >= 0.7 && !rightTaken) {
+            dir = right;
+        } else if (forwardTaken) {
+            dir = rightTaken ? left : right;
+        }
+        
+        send(new Packet.DirectionPacket(dir, tick));
+        answers++;
+    }
+    
+    /**
+     * Checks whether the square next to the bot's cycle is taken.
+     * 
+     * @param d The direction of the square.
+     * @return true if moving there would crash.
+     */
+    private boolean isTaken(Direction d) {
+        int x = xs[id - 1] + dx(d);
+        int y = ys[id - 1] + dy(d);
+        return x < 0 || x >= map.length || y < 0 || y >= map[x].length || map[x][y] != 0;
+    }
+    
+    /**
+     * Gets a direction from its letter.
+     * 
+     * @param c The first letter of the direction's name.
+     * @return The direction.
+     */
+    private static Direction direction(byte c) {
+        switch (c) {
+            case 'E':
+                return Direction.E;
+            case 'S':
+                return Direction.S;
+            case 'W':
+                return Direction.W;
+            default:
+                return Direction.N;
+        }
+    }
+    
+    /**
+     * Gets the horizontal step of a direction.
+     * 
+     * @param d The direction.
+     * @return -1, 0 or 1.
+     */
+    private static int dx(Direction d) {
+        return d == Direction.E ? 1 : d == Direction.W ? -1 : 0;
+    }
+    
+    /**
+     * Gets the vertical step of a direction.
+     * 
+     * @param d The direction.
+     * @return -1, 0 or 1.
+     */
+    private static int dy(Direction d) {
+        return d == Direction.S ? 1 : d == Direction.N ? -1 : 0;
+    }
+    
+    /**
+     * Closes the bot's connection.
+     */
+    void close() {
+        finished = true;
+        try {
+            channel.close();
+        } catch (IOException ioe) {
+        }
+    }
+    
+    /**
+     * Gets the bot's connection.
+     * 
+     * @return The channel to the server.
+     */
+    SocketChannel getChannel() {
+        return channel;
+    }
+    
+    /**
+     * Checks whether the bot is done with its match.
+     * 
+     * @return true if the connection has been closed.
+     */
+    boolean isFinished() {
+        return finished;
+    }
+    
+    /**
+     * Gets the number of updates the bot has answered.
+     * 
+     * @return The number of direction commands sent.
+     */
+    int getAnswers() {
+        return answers;
+    }
+}
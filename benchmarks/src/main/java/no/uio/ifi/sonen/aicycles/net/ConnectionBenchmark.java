@@ -0,0 +1,133 @@
+/*
+ * Copyright (c) 2011, Åpen sone for eksperimentell informatikk
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *    - Redistributions of source code must retain the above copyright
+ *      notice, this list of conditions and the following disclaimer.
+ *    - Redistributions in binary form must reproduce the above copyright
+ *      notice, this list of conditions and the following disclaimer in the
+ *      documentation and/or other materials provided with the distribution.
+ *    - Neither the name of the <organization> nor the
+ *      names of its contributors may be used to endorse or promote products
+ *      derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package no.uio.ifi.sonen.aicycles.net;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures receiving packets on a real connection over the loopback interface,
+ * reading the line from the socket and parsing it.
+ * A background thread keeps the socket full of the same packet.
+ *
+ * @author Sigmund Hansen <sigmunha@ifi.uio.no>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ConnectionBenchmark {
+    
+    /** The number of packets written by the background thread at once. */
+    private static final int BATCH = 1024;
+    
+    /** The line to receive. */
+    @Param({"400 3 N", "103 3 10 20", "102 100 100 12"})
+    public String line;
+    
+    /** The socket the background thread writes to. */
+    private Socket sender;
+    /** The connection receiving the packets. */
+    private Connection con;
+    
+    /**
+     * Connects a socket to a connection and starts filling it.
+     * 
+     * @throws IOException if the sockets could not be set up.
+     */
+    @Setup
+    public void setUp() throws IOException {
+        ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+        sender = new Socket(InetAddress.getLoopbackAddress(), server.getLocalPort());
+        con = new Connection(server.accept());
+        server.close();
+        
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < BATCH; i++) {
+            sb.append(line).append('\n');
+        }
+        final byte[] batch = sb.toString().getBytes(StandardCharsets.UTF_8);
+        final OutputStream out = sender.getOutputStream();
+        Thread feeder = new Thread(new Runnable() {
+            /**
+             * Writes packets until the socket is closed.
+             */
+            public void run() {
+                try {
+                    while (true) {
+                        out.write(batch);
+                    }
+                } catch (IOException ioe) {
+                }
+            }
+        }, "feeder");
+        feeder.setDaemon(true);
+        feeder.start();
+    }
+    
+    /**
+     * Closes both ends of the connection, stopping the background thread.
+     * 
+     * @throws IOException if the sending socket could not be closed.
+     */
+    @TearDown
+    public void tearDown() throws IOException {
+        con.close();
+        sender.close();
+    }
+    
+    /**
+     * Receives a packet.
+     * 
+     * @return The packet.
+     * @throws IOException if the connection fails.
+     * @throws MalformedPacketException if the packet could not be parsed.
+     */
+    @Benchmark
+    public Packet receive() throws IOException, MalformedPacketException {
+        return con.receivePacket();
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright (c) 2011, Åpen sone for eksperimentell informatikk
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *    - Redistributions of source code must retain the above copyright
+ *      notice, this list of conditions and the following disclaimer.
+ *    - Redistributions in binary form must reproduce the above copyright
+ *      notice, this list of conditions and the following disclaimer in the
+ *      documentation and/or other materials provided with the distribution.
+ *    - Neither the name of the <organization> nor the
+ *      names of its contributors may be used to endorse or promote products
+ *      derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package no.uio.ifi.sonen.aicycles.net;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.concurrent.TimeUnit;
+import no.uio.ifi.sonen.aicycles.Direction;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures creating packets, writing them the way connections do,
+ * and parsing their data back into packets.
+ *
+ * @author Sigmund Hansen <sigmunha@ifi.uio.no>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PacketBenchmark {
+    
+    /** The packet type to measure. */
+    @Param({"MOV", "POS", "MAP", "UPD", "DIR"})
+    public String type;
+    
+    /** Throws away everything written, like a very fast socket. */
+    private final PrintStream out = new PrintStream(OutputStream.nullOutputStream());
+    /** The type number of the packet. */
+    private int packetType;
+    /** The data of a packet of the type, for parsing. */
+    private String data;
+    /** Changes between packets, so they aren't all the same. */
+    private int counter = 0;
+    
+    /**
+     * Creates a packet of the type to get its type number and data.
+     */
+    @Setup
+    public void setUp() {
+        Packet p = create();
+        packetType = p.getPacketType();
+        data = p.getData();
+    }
+    
+    /**
+     * Creates a packet of the type being measured.
+     * 
+     * @return The packet.
+     */
+    @Benchmark
+    public Packet create() {
+        int n = counter++ & 1023;
+        switch (type) {
+            case "MOV":
+                return new Packet.MovePacket(n % 12 + 1, Direction.values()[n & 3]);
+            case "POS":
+                return new Packet.PositionPacket(n % 12 + 1, n, n + 1);
+            case "MAP":
+                return new Packet.MapPacket(n, n, 12);
+            case "UPD":
+                return new Packet.UpdatePacket(n);
+            default:
+                return new Packet.DirectionPacket(Direction.values()[n & 3], n);
+        }
+    }
+    
+    /**
+     * Creates a packet and writes it like Connection.sendPacket does.
+     * 
+     * @return Whether writing failed, which it never does.
+     */
+    @Benchmark
+    public boolean encode() {
+        Packet p = create();
+        out.printf("%d %s%n", p.getPacketType(), p.getData());
+        return out.checkError();
+    }
+    
+    /**
+     * Parses a packet's data like Connection.receivePacket does.
+     * 
+     * @return The parsed packet.
+     */
+    @Benchmark
+    public Packet parse() {
+        return Packet.createPacket(packetType, data);
+    }
+}
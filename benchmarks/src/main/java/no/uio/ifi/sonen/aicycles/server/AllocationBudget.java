@@ -0,0 +1,277 @@
+/*
+ * Copyright (c) 2011, Åpen sone for eksperimentell informatikk
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *    - Redistributions of source code must retain the above copyright
+ *      notice, this list of conditions and the following disclaimer.
+ *    - Redistributions in binary form must reproduce the above copyright
+ *      notice, this list of conditions and the following disclaimer in the
+ *      documentation and/or other materials provided with the distribution.
+ *    - Neither the name of the <organization> nor the
+ *      names of its contributors may be used to endorse or promote products
+ *      derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package no.uio.ifi.sonen.aicycles.server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import no.uio.ifi.sonen.aicycles.BotAllocation;
+import no.uio.ifi.sonen.aicycles.Cycle;
+import no.uio.ifi.sonen.aicycles.Direction;
+import no.uio.ifi.sonen.aicycles.net.Connection;
+import no.uio.ifi.sonen.aicycles.net.Packet;
+
+/**
+ * Checks that a match's tick loop and a bot's packet handling
+ * stay within their allocation budgets, exiting with 1 if they don't.
+ * The benchmarks build runs it in the verify phase, failing the build.
+ * 
+ * Both run for a while to get compiled before they are measured,
+ * using the allocation counter of the current thread.
+ * Each match tick is measured together with broadcasting its packets
+ * to the players, who are connected over loopback sockets
+ * and only read what they're sent, on threads of their own.
+ * The cycles are steered clockwise around taken squares like in {@link ArenaBenchmark},
+ * and every tick counts, including those cycles die in.
+ * Updates have both checksums and deadlines, unless the properties say otherwise.
+ * 
+ * Usage: AllocationBudget [ticks]
+ *
+ * @author Sigmund Hansen <sigmunha@ifi.uio.no>
+ */
+public class AllocationBudget {
+    
+    /**
+     * The number of bytes a match may allocate per tick, including the broadcast.
+     * That is the update packet, 48 bytes with compressed pointers and 56 without,
+     * which can't be reused as the local transport queues packets rather than bytes.
+     */
+    public static final long TICK_BUDGET = 64;
+    /** The number of bytes a bot may allocate handling a tick's packets. */
+    public static final long BOT_BUDGET = 0;
+    /** The number of players in the measured matches. */
+    private static final int PLAYERS = 12;
+    
+    /** Counts the bytes allocated by each thread. */
+    private static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    
+    /**
+     * Measures the tick loop and the bot, and compares them with their budgets.
+     * 
+     * @param args The number of ticks to warm up and then measure, optional.
+     * @throws IOException if the bot could not be set up.
+     */
+    public static void main(String[] args) throws IOException {
+        int ticks = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+        if (System.getProperty("aicycles.checksums") == null) {
+            System.setProperty("aicycles.checksums", "true");
+        }
+        if (System.getProperty("aicycles.deadlines") == null) {
+            System.setProperty("aicycles.deadlines", "true");
+        }
+        if (System.getProperty("aicycles.idleTimeout") == null) {
+            // The players never answer, and must not be dropped for it.
+            System.setProperty("aicycles.idleTimeout", Long.toString(Long.MAX_VALUE / 1000000));
+        }
+        
+        // Deaths are printed.
+        PrintStream out = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        
+        AllocationBudget tick = new AllocationBudget();
+        tick.run(ticks);
+        tick.run(ticks);
+        double perTick = tick.getBytesPerTick();
+        out.printf("Match tick: %.1f bytes per tick over %d ticks, budget %d%n",
+                   perTick, tick.measured, TICK_BUDGET);
+        
+        double perBotTick = BotAllocation.measure(ticks);
+        out.printf("Bot packet handling: %.1f bytes per tick, budget %d%n",
+                   perBotTick, BOT_BUDGET);
+        
+        boolean over = false;
+        if (perTick > TICK_BUDGET) {
+            out.println("The match tick is over its allocation budget.");
+            over = true;
+        }
+        if (perBotTick > BOT_BUDGET) {
+            out.println("The bot's packet handling is over its allocation budget.");
+            over = true;
+        }
+        System.exit(over ? 1 : 0);
+    }
+    
+    /**
+     * Gets the number of bytes allocated by the current thread so far.
+     * 
+     * @return The bytes allocated.
+     */
+    public static long allocated() {
+        return THREADS.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+    
+    /** The number of matches played, used as their seeds. */
+    private int matches = 0;
+    /** The number of ticks measured in the last run. */
+    private int measured;
+    /** The bytes allocated by the ticks measured in the last run. */
+    private long bytes;
+    
+    /**
+     * Runs ticks of matches, starting a new match when one is over,
+     * adding up the bytes allocated by each tick and its broadcast.
+     * 
+     * @param ticks The number of ticks to run.
+     * @throws IOException if the players could not be connected.
+     */
+    private void run(int ticks) throws IOException {
+        measured = 0;
+        bytes = 0;
+        // The counter may allocate the first time it's read.
+        allocated();
+        long first = allocated();
+        long overhead = allocated() - first;
+        
+        int size = (int) Math.ceil(47 * Math.sqrt(PLAYERS / 2.0));
+        String[] names = new String[PLAYERS];
+        for (int i = 0; i < PLAYERS; i++) {
+            names[i] = "p" + i;
+        }
+        ServerSocket server = new ServerSocket(0, PLAYERS, InetAddress.getLoopbackAddress());
+        Match match = null;
+        try {
+            for (int i = 0; i < ticks; i++) {
+                if (match == null || match.getArena().getLiveCount() <= 1) {
+                    disconnect(match);
+                    match = new Match(size, size, matches++, names, null, -1);
+                    connect(match, server);
+                }
+                Arena arena = match.getArena();
+                for (int j = 0; j < PLAYERS; j++) {
+                    Cycle c = arena.getCycle(j);
+                    if (c.isAlive()) {
+                        steer(arena, c);
+                    }
+                }
+                
+                BroadcastQueue queue = match.getBroadcastQueue();
+                long now = System.nanoTime();
+                long before = allocated();
+                match.tick(now, now);
+                Packet pkt;
+                while ((pkt = queue.poll()) != null) {
+                    match.broadcast(pkt);
+                }
+                long after = allocated();
+                bytes += after - before - overhead;
+                measured++;
+            }
+        } finally {
+            disconnect(match);
+            server.close();
+        }
+    }
+    
+    /**
+     * Connects every player of a match over a loopback socket,
+     * with a thread reading and throwing away what the player is sent.
+     * 
+     * @param match The match to connect the players of.
+     * @param server The socket to accept the players' connections on.
+     * @throws IOException if a player could not be connected.
+     */
+    private static void connect(Match match, ServerSocket server) throws IOException {
+        for (Player p : match.getPlayers()) {
+            final Socket client = new Socket(server.getInetAddress(), server.getLocalPort());
+            p.setConnection(new Connection(server.accept()));
+            Thread reader = new Thread(new Runnable() {
+                /**
+                 * Reads until the match closes the connection.
+                 */
+                public void run() {
+                    byte[] buf = new byte[8192];
+                    try {
+                        InputStream in = client.getInputStream();
+                        while (in.read(buf) >= 0) {
+                        }
+                        client.close();
+                    } catch (IOException ioe) {
+                    }
+                }
+            }, "client-" + p.getName());
+            reader.setDaemon(true);
+            reader.start();
+        }
+    }
+    
+    /**
+     * Disconnects the players of a match.
+     * 
+     * @param match The match, or null.
+     */
+    private static void disconnect(Match match) {
+        if (match == null) {
+            return;
+        }
+        
+        for (Player p : match.getPlayers()) {
+            p.disconnect();
+        }
+    }
+    
+    /**
+     * Gets the average bytes allocated by the ticks of the last run.
+     * 
+     * @return The bytes per tick.
+     */
+    private double getBytesPerTick() {
+        return measured == 0 ? 0 : (double) bytes / measured;
+    }
+    
+    /**
+     * Turns a cycle clockwise until the square ahead is free,
+     * or it has tried every direction.
+     * 
+     * @param arena The arena the cycle is in.
+     * @param c The cycle to steer.
+     */
+    public static void steer(Arena arena, Cycle c) {
+        Direction d = c.getDirection();
+        for (int i = 0; i < 4; i++) {
+            int x = c.getX();
+            int y = c.getY();
+            switch (d) {
+                case N: y--; break;
+                case E: x++; break;
+                case S: y++; break;
+                case W: x--; break;
+            }
+            if (x >= 0 && x < arena.getWidth() && y >= 0 && y < arena.getHeight()
+                && arena.getOwner(x, y) == 0) {
+                break;
+            }
+            d = Direction.values()[(d.ordinal() + 1) % 4];
+        }
+        c.setDirection(d);
+    }
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright (c) 2011, Åpen sone for eksperimentell informatikk
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *    - Redistributions of source code must retain the above copyright
+ *      notice, this list of conditions and the following disclaimer.
+ *    - Redistributions in binary form must reproduce the above copyright
+ *      notice, this list of conditions and the following disclaimer in the
+ *      documentation and/or other materials provided with the distribution.
+ *    - Neither the name of the <organization> nor the
+ *      names of its contributors may be used to endorse or promote products
+ *      derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package no.uio.ifi.sonen.aicycles.server;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import no.uio.ifi.sonen.aicycles.Cycle;
+import no.uio.ifi.sonen.aicycles.Direction;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures a single tick of the game rules,
+ * the part of a match's tick that doesn't touch the network.
+ * 
+ * The cycles turn clockwise whenever the square ahead is taken,
+ * like a very simple bot, so matches last long enough
+ * that setting up a new arena when one is over barely counts.
+ *
+ * @author Sigmund Hansen <sigmunha@ifi.uio.no>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ArenaBenchmark {
+    
+    /** The number of players in the match. */
+    @Param({"2", "12", "100"})
+    public int players;
+    
+    /** Picks start positions and directions, the same for every run. */
+    private Random random;
+    /** The width and height of the map. */
+    private int size;
+    /** The arena being played. */
+    private Arena arena;
+    /** Ignores everything that happens. */
+    private final Arena.Listener listener = new Arena.Listener() {
+        public void moved(int player, Direction dir) {
+        }
+        
+        public void died(int player) {
+        }
+    };
+    
+    /**
+     * Picks a map size giving each player about as much room
+     * as in a two player match on the default 47 by 47 map.
+     */
+    @Setup
+    public void setUp() {
+        random = new Random(42);
+        size = (int) Math.ceil(47 * Math.sqrt(players / 2.0));
+        arena = createArena();
+    }
+    
+    /**
+     * Creates an arena with the cycles at distinct random squares,
+     * heading in random directions.
+     * 
+     * @return A new arena.
+     */
+    private Arena createArena() {
+        Cycle[] cycles = new Cycle[players];
+        boolean[][] taken = new boolean[size][size];
+        for (int i = 0; i < players; i++) {
+            int x, y;
+            do {
+                x = random.nextInt(size);
+                y = random.nextInt(size);
+            } while (taken[x][y]);
+            taken[x][y] = true;
+            cycles[i] = new Cycle(x, y);
+            cycles[i].setDirection(Direction.values()[random.nextInt(4)]);
+        }
+        return new Arena(size, size, cycles);
+    }
+    
+    /**
+     * Checks whether a square is on the map and free.
+     * 
+     * @param x The horizontal position of the square.
+     * @param y The vertical position of the square.
+     * @return true if a cycle can move there.
+     */
+    private boolean isFree(int x, int y) {
+        return x >= 0 && x < size && y >= 0 && y < size && arena.getOwner(x, y) == 0;
+    }
+    
+    /**
+     * Turns a cycle clockwise until the square ahead is free,
+     * or it has tried every direction.
+     * 
+     * @param c The cycle to steer.
+     */
+    private void steer(Cycle c) {
+        Direction d = c.getDirection();
+        for (int i = 0; i < 4; i++) {
+            int x = c.getX();
+            int y = c.getY();
+            switch (d) {
+                case N: y--; break;
+                case E: x++; break;
+                case S: y++; break;
+                case W: x--; break;
+            }
+            if (isFree(x, y)) {
+                break;
+            }
+            d = Direction.values()[(d.ordinal() + 1) % 4];
+        }
+        c.setDirection(d);
+    }
+    
+    /**
+     * Steers every live cycle and runs a tick,
+     * starting a new match when the last one is over.
+     * 
+     * @return The number of live cycles, so the tick isn't optimised away.
+     */
+    @Benchmark
+    public int tick() {
+        for (int i = 0; i < players; i++) {
+            Cycle c = arena.getCycle(i);
+            if (c.isAlive()) {
+                steer(c);
+            }
+        }
+        
+        int live = arena.step(listener);
+        if (live <= 1) {
+            arena = createArena();
+        }
+        return live;
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright (c) 2011, Åpen sone for eksperimentell informatikk
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *    - Redistributions of source code must retain the above copyright
+ *      notice, this list of conditions and the following disclaimer.
+ *    - Redistributions in binary form must reproduce the above copyright
+ *      notice, this list of conditions and the following disclaimer in the
+ *      documentation and/or other materials provided with the distribution.
+ *    - Neither the name of the <organization> nor the
+ *      names of its contributors may be used to endorse or promote products
+ *      derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package no.uio.ifi.sonen.aicycles.server;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures adding a match to the tournament totals
+ * and ranking the teams, as the server does after every match.
+ *
+ * @author Sigmund Hansen <sigmunha@ifi.uio.no>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StatisticsBenchmark {
+    
+    /** The number of players in each match. */
+    private static final int MATCH_SIZE = 4;
+    /** The number of different matches to add, picked in turn. */
+    private static final int MATCHES = 64;
+    
+    /** The number of teams in the tournament. */
+    @Param({"10", "1000", "100000"})
+    public int teams;
+    
+    /** The tournament totals. */
+    private Statistics totals;
+    /** Matches between random teams. */
+    private Statistics[] matches;
+    /** The next match to add. */
+    private int next = 0;
+    
+    /**
+     * Creates a match between random teams with random results.
+     * 
+     * @param random The random numbers to use.
+     * @return The match's statistics.
+     */
+    private Statistics createMatch(Random random) {
+        Statistics s = new Statistics(47, 47, random.nextInt(), MATCH_SIZE);
+        for (int i = 0; i < MATCH_SIZE; i++) {
+            s.addTeam("team" + random.nextInt(teams), random.nextInt(47), random.nextInt(47),
+                      random.nextInt(MATCH_SIZE), random.nextInt(2000));
+        }
+        return s;
+    }
+    
+    /**
+     * Plays every team in at least one match,
+     * and sets up the matches to add.
+     */
+    @Setup
+    public void setUp() {
+        Random random = new Random(42);
+        totals = new Statistics(0, 0, 0, 0);
+        for (int i = 0; i < teams; i += MATCH_SIZE) {
+            Statistics s = new Statistics(47, 47, random.nextInt(), MATCH_SIZE);
+            for (int j = i; j < i + MATCH_SIZE; j++) {
+                s.addTeam("team" + (j % teams), 0, 0, j - i, random.nextInt(2000));
+            }
+            totals.add(s);
+        }
+        
+        matches = new Statistics[MATCHES];
+        for (int i = 0; i < MATCHES; i++) {
+            matches[i] = createMatch(random);
+        }
+    }
+    
+    /**
+     * Adds a match to the totals.
+     * 
+     * @return The totals, so the addition isn't optimised away.
+     */
+    @Benchmark
+    public Statistics add() {
+        totals.add(matches[next]);
+        next = (next + 1) % MATCHES;
+        return totals;
+    }
+    
+    /**
+     * Ranks all teams in the totals.
+     * 
+     * @return The ranked team names.
+     */
+    @Benchmark
+    public String[] getRankedTeams() {
+        return totals.getRankedTeams();
+    }
+}
@@ -26,6 +26,16 @@
  */
 package no.uio.ifi.sonen.aicycles;
 
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.Socket;
+import no.uio.ifi.sonen.aicycles.net.Connection;
+import no.uio.ifi.sonen.aicycles.server.BotSupervisor;
+import no.uio.ifi.sonen.aicycles.server.Match;
+
 /**
  * A very simple (random) bot.
  *
@@ -33,6 +43,17 @@ package no.uio.ifi.sonen.aicycles;
  */
 public class AwesomeBot extends BotBase implements Runnable {
 
+    /** The bot's name. */
+    private static final String NAME = "joe";
+    /** The argument that keeps the bot running between matches. */
+    private static final String RESIDENT = "resident";
+    /** The number of matches to play against itself before the real ones. */
+    private static final int WARMUP_MATCHES = Integer.getInteger("aicycles.warmupMatches", 3);
+    /** The number of milliseconds to keep trying to connect to a match. */
+    private static final long CONNECT_TIMEOUT = 10000;
+    /** The number of milliseconds between attempts to connect to a match. */
+    private static final long CONNECT_DELAY = 50;
+    
     /** All possible directions. */
     Direction[] dirs = Direction.values();
     
@@ -45,6 +66,25 @@ public class AwesomeBot extends BotBase implements Runnable {
         super(server);
     }
     
+    /**
+     * Creates an awesomely random bot in the server's process.
+     * 
+     * @param con The connection from the match to play in.
+     */
+    public AwesomeBot(Connection con) {
+        super(con);
+    }
+    
+    /**
+     * Creates an awesomely random bot on a connection it has opened itself.
+     * 
+     * @param server The server the connection is to.
+     * @param con The connection to the server.
+     */
+    private AwesomeBot(String server, Connection con) {
+        super(server, con);
+    }
+    
     /**
      * Starts a think thread and the BotBase's state updater.
      */
@@ -59,19 +99,128 @@ public class AwesomeBot extends BotBase implements Runnable {
     }
     
     /**
-     * Creates a bot that connects to a server and starts it.
+     * Creates a bot that connects to a server and starts it,
+     * or with "resident" after the server,
+     * keeps playing matches for the {@link BotSupervisor}.
      * 
-     * @param args The server to connect to,
+     * @param args The server to connect to, and optionally "resident",
      *             all subsequent arguments are ignored.
+     * @throws IOException if reading from the supervisor fails.
+     * @throws InterruptedException if interrupted while playing.
      */
-    public static void main(String[] args) {
-        AwesomeBot pb;
-        if (args.length >= 1) {
-            pb = new AwesomeBot(args[0]);
-        } else {
-            pb = new AwesomeBot("localhost");
+    public static void main(String[] args) throws IOException, InterruptedException {
+        String server = args.length >= 1 ? args[0] : "localhost";
+        if (args.length >= 2 && RESIDENT.equals(args[1])) {
+            resident(server);
+            return;
+        }
+        
+        new AwesomeBot(server).start();
+    }
+    
+    /**
+     * Warms up and plays a match every time the supervisor writes a line,
+     * until the supervisor closes standard input.
+     * 
+     * @param server The server to connect to.
+     * @throws IOException if reading from the supervisor fails.
+     * @throws InterruptedException if interrupted while playing.
+     */
+    private static void resident(String server) throws IOException, InterruptedException {
+        System.out.println(BotSupervisor.STARTED);
+        warmUp();
+        System.out.println(BotSupervisor.READY);
+        
+        BufferedReader in = new BufferedReader(new InputStreamReader(System.in));
+        while (in.readLine() != null) {
+            Connection con = connect(server);
+            if (con == null) {
+                System.err.printf("No match to join at %s:%d%n", server, Connection.PORT);
+                System.exit(1);
+            }
+            
+            AwesomeBot bot = new AwesomeBot(server, con);
+            bot.start();
+            bot.join();
         }
-        pb.start();
+        System.exit(0);
+    }
+    
+    /**
+     * Connects to the server, waiting for the match to open.
+     * 
+     * @param server The server to connect to.
+     * @return The connection, or null if the match didn't open in time.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    private static Connection connect(String server) throws InterruptedException {
+        long end = System.currentTimeMillis() + CONNECT_TIMEOUT;
+        while (true) {
+            try {
+                return new Connection(new Socket(server, Connection.PORT));
+            } catch (IOException ioe) {
+                if (System.currentTimeMillis() >= end) {
+                    return null;
+                }
+                Thread.sleep(CONNECT_DELAY);
+            }
+        }
+    }
+    
+    /**
+     * Plays a few matches against itself in this process,
+     * so the code is loaded and compiled before the real matches.
+     * What the matches print is thrown away.
+     * 
+     * @throws InterruptedException if interrupted while playing.
+     */
+    private static void warmUp() throws InterruptedException {
+        PrintStream out = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        try {
+            for (int i = 0; i < WARMUP_MATCHES; i++) {
+                Match m = new Match(47, 47, i, new String[] {NAME, "warmup"}, null, -1);
+                Thread match = new Thread(m);
+                match.start();
+                // Bots wait in the handshake until every player is in.
+                Thread a = play(m.connectLocal(), NAME);
+                Thread b = play(m.connectLocal(), "warmup");
+                match.join();
+                a.join();
+                b.join();
+            }
+        } finally {
+            System.setOut(out);
+        }
+    }
+    
+    /**
+     * Starts a thread playing a warm-up match.
+     * 
+     * @param con The connection to the match.
+     * @param name The name of the player.
+     * @return The thread, which ends when the match is over.
+     */
+    private static Thread play(final Connection con, final String name) {
+        Thread t = new Thread(new Runnable() {
+            /**
+             * Creates the bot and plays until the match is over.
+             */
+            public void run() {
+                AwesomeBot bot = new AwesomeBot(con) {
+                    @Override
+                    public String getName() {
+                        return name;
+                    }
+                };
+                bot.start();
+                try {
+                    bot.join();
+                } catch (InterruptedException e) { }
+            }
+        });
+        t.start();
+        return t;
     }
     
     /**
@@ -143,7 +292,7 @@ public class AwesomeBot extends BotBase implements Runnable {
      */
     @Override
     public String getName() {
-        return "joe";
+        return NAME;
     }
     
 }
@@ -30,9 +30,14 @@ import java.io.IOException;
 import java.net.Socket;
 import java.util.Random;
 
+import no.uio.ifi.sonen.aicycles.net.ClockSync;
 import no.uio.ifi.sonen.aicycles.net.Connection;
+import no.uio.ifi.sonen.aicycles.net.HashedWheelTimer;
+import no.uio.ifi.sonen.aicycles.net.LocalTransport;
 import no.uio.ifi.sonen.aicycles.net.MalformedPacketException;
+import no.uio.ifi.sonen.aicycles.net.MappedTransport;
 import no.uio.ifi.sonen.aicycles.net.Packet;
+import no.uio.ifi.sonen.aicycles.net.SharedGrid;
 
 /**
  * A base class for creating bots.
@@ -42,10 +47,35 @@ import no.uio.ifi.sonen.aicycles.net.Packet;
  */
 public abstract class BotBase {
     
+    /** The number of times to try reconnecting after losing the connection. */
+    private static final int RECONNECT_ATTEMPTS = 5;
+    /** The number of milliseconds to wait between reconnection attempts. */
+    private static final long RECONNECT_DELAY = 100;
+    /** The number of milliseconds between pings for synchronizing clocks. */
+    private static final long CLOCK_PING_INTERVAL = 500;
+    /** Whether to ask a server on the same host for a shared memory transport. */
+    private static final boolean SHARED_MEMORY = Boolean.getBoolean("aicycles.sharedMemory");
+    /** Whether to ask a server on the same host for the shared grid. */
+    private static final boolean SHARED_GRID = Boolean.getBoolean("aicycles.sharedGrid");
+    
     /** The connection the client is using. */
-    private Connection con;
+    private volatile Connection con;
+    /** The address of the server, or null if it's in this process. */
+    private final String server;
+    /** The random seed of the match, to recognize it when reconnecting. */
+    private int seed;
+    /** The token from the server that lets the bot rejoin the match, or null. */
+    private String token;
     /** The number of updates. */
     protected int updates = 0;
+    /** The number of the last update from the server, sent with commands. */
+    private volatile int tick = 0;
+    /** Estimates the server's clock from pings. */
+    private final ClockSync clock = new ClockSync();
+    /** The deadline of the last update on the local clock, in microseconds. */
+    private volatile long deadline;
+    /** Whether the deadline of the last update is known. */
+    private volatile boolean hasDeadline = false;
     /** This bot's ID. */
     protected int id;
     /** All the players in a game. */
@@ -56,6 +86,18 @@ public abstract class BotBase {
     protected boolean running = false;
     /** Random number generator to be used. */
     protected Random random = new Random();
+    /** The XOR of the checksums of all claimed squares in the map. */
+    private long gridHash = 0;
+    /** Whether a snapshot has been requested and not yet received. */
+    private boolean resyncing = false;
+    /** The thread listening to the server, or null before the bot is started. */
+    private Thread updater;
+    /** The grid published by the server, or null if moves come as packets. */
+    private SharedGrid view;
+    /** The cycle table read from the shared grid. */
+    private int[] cycleTable;
+    /** The last tick read from the shared grid, or -1 to read the whole grid. */
+    private int viewTick = -1;
     
     /**
      * Creates and connects a bot to the server.
@@ -63,23 +105,47 @@ public abstract class BotBase {
      * @param server The address of the server to connect to.
      */
     public BotBase(String server) {
+        this(server, open(server));
+    }
+    
+    /**
+     * Creates a bot on a connection to a server in this process,
+     * such as one from {@link no.uio.ifi.sonen.aicycles.server.Match#connectLocal()}.
+     * The bot can't reconnect if the connection is lost.
+     * 
+     * @param con The connection to the server, not yet greeted.
+     */
+    public BotBase(Connection con) {
+        this(null, con);
+    }
+    
+    /**
+     * Creates a bot and greets the server on its connection.
+     * Bots that open their own connections, like a resident bot
+     * waiting for the next match, can reconnect to the server.
+     * 
+     * @param server The address of the server, or null if it's in this process.
+     * @param con The connection to the server.
+     */
+    protected BotBase(String server, Connection con) {
+        this.server = server;
+        this.con = con;
         try {
-            con = new Connection(new Socket(server, Connection.PORT));
-            Packet p = con.receivePacket();
+            con.watch(HashedWheelTimer.getShared(), Connection.PING_INTERVAL,
+                      Connection.IDLE_TIMEOUT);
+            Packet p = receiveSetup(con);
             if (p == null || p.getPacketType() != Packet.SHK_PKT) {
                 System.err.println("Master Control Program wouldn't say hello!");
                 System.exit(3);
             }
-            con.sendPacket(new Packet.SimplePacket(getName(), Packet.SHK_PKT));
-            
-            p = con.receivePacket();
+            p = greet(con);
             if (p.getPacketType() != Packet.PID_PKT) {
                 con.close();
                 System.exit(4);
             }
             this.id = ((Packet.IntPacket)p).getIntValue();
             
-            Packet.MapPacket mp = (Packet.MapPacket) con.receivePacket();
+            Packet.MapPacket mp = (Packet.MapPacket) receiveSetup(con);
             map = new int[mp.getWidth() + 2][mp.getHeight() + 2];
             for (int i = 0; i < map.length; i++) {
                 map[i][0] = -1;
@@ -91,19 +157,21 @@ public abstract class BotBase {
                 map[map.length - 1][i] = -1;
             }
             
-            Packet.IntPacket ip = (Packet.IntPacket) con.receivePacket();
-            random.setSeed(ip.getIntValue());
+            Packet.IntPacket ip = (Packet.IntPacket) receiveSetup(con);
+            seed = ip.getIntValue();
+            random.setSeed(seed);
             
             cycles = new Cycle[mp.getPlayers()];
             for (int i = 0; i < cycles.length; i++) {
-                Packet.PositionPacket pp = (Packet.PositionPacket) con.receivePacket();
+                Packet.PositionPacket pp = (Packet.PositionPacket) receiveSetup(con);
                 cycles[pp.getPlayer() - 1] = new Cycle(pp.getX() + 1, pp.getY() + 1);
-                map[pp.getX() + 1][pp.getY() + 1] = pp.getPlayer();
+                claim(pp.getX() + 1, pp.getY() + 1, pp.getPlayer());
             }
             
         } catch (IOException ioe) {
-            System.err.printf("Could not connect to server %s:%d%n%s%n",
-                              server, Connection.PORT, ioe.getMessage());
+            System.err.printf("Could not connect to server %s%n%s%n",
+                              server == null ? "in this process" : server + ":" + Connection.PORT,
+                              ioe.getMessage());
             System.exit(1);
         } catch (MalformedPacketException mpe) {
             System.err.printf("Malformed packet from server: %n%s%n",
@@ -112,6 +180,148 @@ public abstract class BotBase {
         }
     }
     
+    /**
+     * Opens a connection to a server.
+     * 
+     * @param server The address of the server to connect to.
+     * @return The connection to the server.
+     */
+    private static Connection open(String server) {
+        try {
+            return new Connection(new Socket(server, Connection.PORT));
+        } catch (IOException ioe) {
+            System.err.printf("Could not connect to server %s:%d%n%s%n",
+                              server, Connection.PORT, ioe.getMessage());
+            System.exit(1);
+            return null;
+        }
+    }
+    
+    /**
+     * Answers the server's greeting with the bot's name,
+     * asking to switch to shared memory and for the shared grid if enabled.
+     * The server may or may not agree to either.
+     * A bot that has been given a token gives it back to rejoin the match.
+     * 
+     * @param c The connection to the server.
+     * @return The first packet after the greeting.
+     * @throws IOException if the connection or the shared memory fails.
+     * @throws MalformedPacketException if the server sent a malformed packet.
+     */
+    private Packet greet(Connection c) throws IOException, MalformedPacketException {
+        String name = getName();
+        if (token != null) {
+            name += " " + Connection.REJOIN + token;
+        }
+        if (SHARED_MEMORY && !(c.getTransport() instanceof LocalTransport)) {
+            name += " " + Connection.SHARED_MEMORY;
+        }
+        if (SHARED_GRID) {
+            name += " " + Connection.SHARED_GRID;
+        }
+        c.sendPacket(new Packet.SimplePacket(name, Packet.SHK_PKT));
+        
+        while (true) {
+            Packet p = receiveSetup(c);
+            if (p.getPacketType() == Packet.SHM_PKT) {
+                c.upgrade(MappedTransport.open(p.getData(), c.getTransport()));
+            } else if (p.getPacketType() == Packet.VIW_PKT) {
+                view = SharedGrid.open(p.getData());
+                viewTick = -1;
+            } else if (p.getPacketType() == Packet.TOK_PKT) {
+                token = p.getData();
+            } else {
+                return p;
+            }
+        }
+    }
+    
+    /**
+     * Receives a packet of the handshake or the setup of the match.
+     * Answers to the bot's pings can arrive while it waits for the other players,
+     * and are only used to synchronize the clocks.
+     * 
+     * @param c The connection to the server.
+     * @return The next packet that isn't an answer to a ping.
+     * @throws IOException if the connection fails.
+     * @throws MalformedPacketException if the server sent a malformed packet.
+     */
+    private Packet receiveSetup(Connection c) throws IOException, MalformedPacketException {
+        while (true) {
+            Packet p = c.receivePacket();
+            if (p.getPacketType() != Packet.PON_PKT) {
+                return p;
+            }
+            clock.addSample(p, Connection.now());
+        }
+    }
+    
+    /**
+     * Tries to rejoin the match after losing the connection.
+     * The server sends a snapshot of the game state
+     * after the next update, which replaces the map and cycles.
+     * 
+     * @return true if the bot rejoined the same match.
+     */
+    private boolean reconnect() {
+        if (server == null) {
+            return false;
+        }
+        
+        for (int attempt = 0; attempt < RECONNECT_ATTEMPTS; attempt++) {
+            try {
+                Thread.sleep(RECONNECT_DELAY);
+            } catch (InterruptedException e) {
+                return false;
+            }
+            
+            Connection c = null;
+            try {
+                c = new Connection(new Socket(server, Connection.PORT));
+                c.watch(HashedWheelTimer.getShared(), Connection.PING_INTERVAL,
+                        Connection.IDLE_TIMEOUT);
+                Packet p = receiveSetup(c);
+                if (p.getPacketType() != Packet.SHK_PKT) {
+                    c.close();
+                    continue;
+                }
+                // A different ID, map or seed means a new match has started.
+                p = greet(c);
+                Packet.MapPacket mp = (Packet.MapPacket) receiveSetup(c);
+                Packet.IntPacket ip = (Packet.IntPacket) receiveSetup(c);
+                if (p.getPacketType() != Packet.PID_PKT
+                    || ((Packet.IntPacket) p).getIntValue() != id
+                    || mp.getWidth() != map.length - 2
+                    || mp.getHeight() != map[0].length - 2
+                    || ip.getIntValue() != seed) {
+                    c.close();
+                    return false;
+                }
+                
+                for (int i = 0; i < cycles.length; i++) {
+                    receiveSetup(c);
+                }
+                
+                resyncing = true;
+                con = c;
+                System.err.println("Reconnected to the Master Control Program.");
+                return true;
+                
+            } catch (IOException ioe) {
+                if (c != null) {
+                    c.close();
+                }
+            } catch (MalformedPacketException mpe) {
+                c.close();
+            } catch (ClassCastException cce) {
+                c.close();
+                return false;
+            }
+        }
+        
+        return false;
+    }
+    
     /**
      * Starts a thread that listens to the server for updates.
      */
@@ -120,8 +330,68 @@ public abstract class BotBase {
             return;
         }
         
-        new Thread(new StateUpdater()).start();
+        updater = new Thread(new StateUpdater());
+        updater.start();
         running = true;
+        ping();
+    }
+    
+    /**
+     * Waits until the bot has stopped listening to the server,
+     * when its match is over or the connection is lost for good.
+     * 
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    public void join() throws InterruptedException {
+        if (updater != null) {
+            updater.join();
+        }
+    }
+    
+    /**
+     * Pings the server with the local time, to synchronize the clocks,
+     * and schedules the next ping.
+     */
+    private void ping() {
+        if (con.isDown()) {
+            return;
+        }
+        
+        try {
+            con.sendPacket(new Packet.SimplePacket(Long.toString(Connection.now()),
+                                                   Packet.PNG_PKT));
+        } catch (IOException ioe) {
+            return;
+        }
+        
+        HashedWheelTimer.getShared().schedule(new Runnable() {
+            public void run() {
+                ping();
+            }
+        }, CLOCK_PING_INTERVAL);
+    }
+    
+    /**
+     * Checks whether the deadline of the last update is known.
+     * The server must send deadlines, and the clocks must be synchronized.
+     * 
+     * @return true if {@link #getTimeLeft()} can be used.
+     */
+    protected boolean hasDeadline() {
+        return hasDeadline;
+    }
+    
+    /**
+     * Gets the time left to answer the last update before the server
+     * computes the next one, taking the network delay into account.
+     * 
+     * @return The number of milliseconds left,
+     *         negative if the deadline has passed.
+     */
+    protected long getTimeLeft() {
+        // Commands take about half a round trip to reach the server.
+        long arrival = Connection.now() + clock.getRoundTrip() / 2;
+        return (deadline - arrival) / 1000;
     }
 
     /**
@@ -131,7 +401,7 @@ public abstract class BotBase {
      */
     protected final void setDirection(Direction d) {
         try {
-            con.sendPacket(new Packet.DirectionPacket(d));
+            con.sendPacket(new Packet.DirectionPacket(d, tick));
         } catch (Exception e) {
             System.err.printf("MCP won't listen:%n%s%n",
                               e.getMessage());
@@ -146,7 +416,7 @@ public abstract class BotBase {
         Direction[] values = Direction.values();
         int num = (d.ordinal() + 3) % values.length;
         try {
-            con.sendPacket(new Packet.DirectionPacket(values[num]));
+            con.sendPacket(new Packet.DirectionPacket(values[num], tick));
         } catch (Exception e) {
             System.err.printf("MCP won't listen:%n%s%n",
                               e.getMessage());
@@ -161,13 +431,173 @@ public abstract class BotBase {
         Direction[] values = Direction.values();
         int num = (d.ordinal() + 1) % values.length;
         try {
-            con.sendPacket(new Packet.DirectionPacket(values[num]));
+            con.sendPacket(new Packet.DirectionPacket(values[num], tick));
         } catch (Exception e) {
             System.err.printf("MCP won't listen:%n%s%n",
                               e.getMessage());
         }
     }
 
+    /**
+     * Claims a square for a player, unless it's already claimed.
+     * Like on the server, the first player to reach a square keeps it.
+     * 
+     * @param x The horizontal position in the map.
+     * @param y The vertical position in the map.
+     * @param owner The ID of the player.
+     */
+    private void claim(int x, int y, int owner) {
+        if (map[x][y] != 0) {
+            return;
+        }
+        
+        map[x][y] = owner;
+        gridHash ^= Checksum.square(x - 1, y - 1, owner);
+    }
+    
+    /**
+     * Checks the state against the checksum of an update,
+     * and asks the server for a snapshot if they differ.
+     * 
+     * @param up The update packet.
+     * @throws IOException if the connection throws an IOException.
+     */
+    private void verify(Packet.UpdatePacket up) throws IOException {
+        if (!up.hasChecksum() || resyncing) {
+            return;
+        }
+        
+        if (up.getChecksum() != (gridHash ^ Checksum.cycles(cycles, 1))) {
+            System.err.printf("Lost track of the game grid at update %d, "
+                              + "asking for a snapshot.%n", up.getTick());
+            resyncing = true;
+            con.sendPacket(new Packet.SimplePacket(Integer.toString(up.getTick()),
+                                                   Packet.RSY_PKT));
+        }
+    }
+    
+    /**
+     * Replaces the map and cycles with a snapshot from the server.
+     * 
+     * @param snp The snapshot packet.
+     */
+    private void restore(Packet.SnapshotPacket snp) {
+        gridHash = 0;
+        for (int i = 0; i < snp.getWidth(); i++) {
+            for (int j = 0; j < snp.getHeight(); j++) {
+                map[i + 1][j + 1] = 0;
+                int owner = snp.getOwner(i, j);
+                if (owner != 0) {
+                    claim(i + 1, j + 1, owner);
+                }
+            }
+        }
+        
+        for (int i = 0; i < cycles.length; i++) {
+            Cycle c = new Cycle(snp.getX(i) + 1, snp.getY(i) + 1);
+            c.setDirection(snp.getDirection(i));
+            if (!snp.isAlive(i)) {
+                c.kill();
+            }
+            cycles[i] = c;
+        }
+        tick = snp.getTick();
+        resyncing = false;
+        viewTick = -1;
+    }
+    
+    /**
+     * Replaces the map and cycles with the last state in the shared grid.
+     * Only the squares claimed since the last read are copied,
+     * unless ticks were missed.
+     */
+    private void refresh() {
+        if (cycleTable == null) {
+            cycleTable = new int[cycles.length * SharedGrid.CYCLE_INTS];
+        }
+        
+        int read = view.read(map, cycleTable, viewTick);
+        if (read < 0) {
+            return;
+        }
+        viewTick = read;
+        
+        for (int i = 0; i < cycles.length; i++) {
+            int row = i * SharedGrid.CYCLE_INTS;
+            Cycle c = cycles[i];
+            c.moveTo(cycleTable[row] + 1, cycleTable[row + 1] + 1);
+            c.setDirection(SharedGrid.getDirection(cycleTable[row + 2]));
+            if (cycleTable[row + 3] == 0) {
+                c.kill();
+            }
+        }
+    }
+    
+    /**
+     * Updates the state this bot sees with a packet from the server,
+     * waking the bot after updates.
+     * Handling moves, deaths and updates allocates nothing.
+     * 
+     * @param p The packet.
+     * @throws IOException if answering the packet fails.
+     */
+    void handlePacket(Packet p) throws IOException {
+        switch (p.getPacketType()) {
+            case Packet.MOV_PKT:
+                Packet.MovePacket mp = (Packet.MovePacket) p;
+                Cycle c = cycles[mp.getPlayer() - 1];
+                c.setDirection(mp.getDirection());
+                c.update();
+                claim(c.getX(), c.getY(), mp.getPlayer());
+                break;
+                
+            case Packet.BYE_PKT:
+                con.sendPacket(p);
+                con.close();
+                cycles[id - 1].kill();
+                synchronized (this) {
+                    updates++;
+                    notify();
+                }
+                break;
+                
+            case Packet.PON_PKT:
+                clock.addSample(p, Connection.now());
+                break;
+                
+            case Packet.DIE_PKT:
+                Packet.IntPacket dp = (Packet.IntPacket) p;
+                cycles[dp.getIntValue() - 1].kill();
+                break;
+                
+            case Packet.SNP_PKT:
+                restore((Packet.SnapshotPacket) p);
+                synchronized (this) {
+                    updates++;
+                    notify();
+                }
+                break;
+                
+            case Packet.UPD_PKT:
+                Packet.UpdatePacket up = (Packet.UpdatePacket) p;
+                if (view != null) {
+                    refresh();
+                } else {
+                    verify(up);
+                }
+                tick = up.getTick();
+                if (up.hasTiming() && clock.isSynchronized()) {
+                    deadline = clock.toLocal(up.getDeadline());
+                    hasDeadline = true;
+                }
+                synchronized (this) {
+                    updates++;
+                    notify();
+                }
+                break;
+        }
+    }
+    
     /**
      * Gets this bot's name.
      * 
@@ -189,43 +619,14 @@ public abstract class BotBase {
         public void run() {
             while (!con.isDown()) {
                 try {
-                    Packet p = con.receivePacket();
-                    switch (p.getPacketType()) {
-                        case Packet.MOV_PKT:
-                            Packet.MovePacket mp = (Packet.MovePacket) p;
-                            Cycle c = cycles[mp.getPlayer() - 1];
-                            c.setDirection(mp.getDirection());
-                            c.update();
-                            map[c.getX()][c.getY()] = mp.getPlayer();
-                            break;
-                            
-                        case Packet.BYE_PKT:
-                            con.sendPacket(p);
-                            con.close();
-                            cycles[id - 1].kill();
-                            synchronized(BotBase.this) {
-                                updates++;
-                                BotBase.this.notify();
-                            }
-                            break;
-                            
-                        case Packet.DIE_PKT:
-                            Packet.IntPacket dp = (Packet.IntPacket) p;
-                            cycles[dp.getIntValue() - 1].kill();
-                            break;
-                            
-                        case Packet.UPD_PKT:
-                            synchronized(BotBase.this) {
-                                updates++;
-                                BotBase.this.notify();
-                            }
-                            break;
-                    }
-                    
+                    handlePacket(con.receivePacket());
                 } catch (IOException ioe) {
                     System.err.printf("Connection issues:%n%s%n",
                                       ioe.getMessage());
                     con.close();
+                    if (cycles[id - 1].isAlive() && reconnect()) {
+                        continue;
+                    }
                     cycles[id - 1].kill();
                     synchronized (BotBase.this) {
                         updates++;
@@ -0,0 +1,119 @@
+/*
+ * Copyright (c) 2011, Åpen sone for eksperimentell informatikk
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *    - Redistributions of source code must retain the above copyright
+ *      notice, this list of conditions and the following disclaimer.
+ *    - Redistributions in binary form must reproduce the above copyright
+ *      notice, this list of conditions and the following disclaimer in the
+ *      documentation and/or other materials provided with the distribution.
+ *    - Neither the name of the <organization> nor the
+ *      names of its contributors may be used to endorse or promote products
+ *      derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package no.uio.ifi.sonen.aicycles;
+
+/**
+ * A rolling hash of the game state, used to detect clients
+ * whose view of the game has drifted from the server's.
+ * 
+ * Every claimed square and every cycle is hashed on its own,
+ * and the state's checksum is all those hashes XORed together.
+ * This lets the grid part be kept up to date incrementally,
+ * by XORing in the hash of each square as it's claimed,
+ * while the cycles are hashed again every tick.
+ * Coordinates are the server's, starting at 0.
+ *
+ * @author Sigmund Hansen <sigmund@chickensoft.com>
+ */
+public final class Checksum {
+    
+    /** Marks the hash of a live cycle. */
+    private static final long ALIVE = 1L << 62;
+    /** Marks the hash of a dead cycle. */
+    private static final long DEAD = 1L << 63;
+    /** The mask for coordinates, which may be -1 for crashed cycles. */
+    private static final long COORDINATE_MASK = 0xFFFFFF;
+    
+    /**
+     * No instances, only static methods.
+     */
+    private Checksum() {
+    }
+    
+    /**
+     * Mixes the bits of a key, so that similar keys get very different hashes.
+     * This is the 64 bit finalizer of MurmurHash3.
+     * 
+     * @param k The key to mix.
+     * @return The mixed key.
+     */
+    public static long mix(long k) {
+        k ^= k >>> 33;
+        k *= 0xff51afd7ed558ccdL;
+        k ^= k >>> 33;
+        k *= 0xc4ceb9fe1a85ec53L;
+        k ^= k >>> 33;
+        return k;
+    }
+    
+    /**
+     * Hashes a claimed square.
+     * 
+     * @param x The horizontal position of the square.
+     * @param y The vertical position of the square.
+     * @param owner The ID of the player owning the square.
+     * @return The hash of the square.
+     */
+    public static long square(int x, int y, int owner) {
+        return mix(((long) owner << 48)
+                   ^ ((x & COORDINATE_MASK) << 24)
+                   ^ (y & COORDINATE_MASK));
+    }
+    
+    /**
+     * Hashes the position and state of a cycle.
+     * 
+     * @param id The ID of the cycle's player.
+     * @param x The horizontal position of the cycle.
+     * @param y The vertical position of the cycle.
+     * @param alive Whether the cycle is alive.
+     * @return The hash of the cycle.
+     */
+    public static long cycle(int id, int x, int y, boolean alive) {
+        return mix((alive ? ALIVE : DEAD)
+                   ^ ((long) id << 48)
+                   ^ ((x & COORDINATE_MASK) << 24)
+                   ^ (y & COORDINATE_MASK));
+    }
+    
+    /**
+     * Hashes all cycles in a game.
+     * 
+     * @param cycles The cycles, in order of player ID.
+     * @param offset The offset of the cycles' coordinates from the server's,
+     *               1 for clients that keep a wall around the map.
+     * @return The XOR of the hashes of all the cycles.
+     */
+    public static long cycles(Cycle[] cycles, int offset) {
+        long hash = 0;
+        for (int i = 0; i < cycles.length; i++) {
+            Cycle c = cycles[i];
+            hash ^= cycle(i + 1, c.getX() - offset, c.getY() - offset, c.isAlive());
+        }
+        return hash;
+    }
+}
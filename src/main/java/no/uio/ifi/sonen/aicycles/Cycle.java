@@ -87,6 +87,17 @@ public class Cycle {
         this.dir = dir;
     }
     
+    /**
+     * Moves the cycle to a position given by the server.
+     * 
+     * @param x The cycle's X coordinate.
+     * @param y The cycle's Y coordinate.
+     */
+    void moveTo(int x, int y) {
+        this.x = x;
+        this.y = y;
+    }
+    
     /**
      * Kills the cycle.
      */
@@ -38,12 +38,14 @@ import java.awt.GraphicsDevice;
 import java.awt.GraphicsEnvironment;
 import java.awt.Point;
 import java.awt.Toolkit;
+import java.awt.event.KeyListener;
 import java.awt.image.BufferStrategy;
 import java.awt.image.BufferedImage;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicBoolean;
 import javax.swing.JFrame;
 import javax.swing.SwingUtilities;
 import javax.swing.WindowConstants;
@@ -107,6 +109,23 @@ public class Viewer {
     private GraphicsDevice device;
     /** The buffer strategy used for drawing and double-buffering. */
     private BufferStrategy strategy;
+    /** Whether the window is waiting to be drawn. */
+    private final AtomicBoolean repaintPending = new AtomicBoolean();
+    /** Draws the window on the event dispatch thread. */
+    private final Runnable repaint = new Runnable() {
+        public void run() {
+            repaintPending.set(false);
+            Graphics g = strategy.getDrawGraphics();
+            g.clearRect(0, 0, WIDTH, HEIGHT);
+            if (running) {
+                g.drawImage(image, WIDTH-image.getWidth(), 0, null);
+            } else {
+                drawQueue(g);
+            }
+            drawScores(g);
+            strategy.show();
+        }
+    };
     
     /**
      * Creates a viewer either in windowed mode, or in fullscreen mode.
@@ -308,22 +327,22 @@ public class Viewer {
     }
     
     /**
-     * Draws the window.
+     * Draws the window, unless it's already waiting to be drawn.
+     * The tick loop calls this every tick, so it reuses a single task.
      */
     public void draw() {
-        SwingUtilities.invokeLater(new Runnable() {
-           public void run() {
-               Graphics g = strategy.getDrawGraphics();
-               g.clearRect(0, 0, WIDTH, HEIGHT);
-               if (running) {
-                   g.drawImage(image, WIDTH-image.getWidth(), 0, null);
-               } else {
-                   drawQueue(g);
-               }
-               drawScores(g);
-               strategy.show();
-           } 
-        });
+        if (repaintPending.compareAndSet(false, true)) {
+            SwingUtilities.invokeLater(repaint);
+        }
+    }
+    
+    /**
+     * Adds a listener for key presses in the window.
+     * 
+     * @param l The listener to add.
+     */
+    public void addKeyListener(KeyListener l) {
+        frame.addKeyListener(l);
     }
     
     /**
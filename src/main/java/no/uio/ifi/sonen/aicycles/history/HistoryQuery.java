@@ -0,0 +1,476 @@
+/*
+ * Copyright (c) 2011, Åpen sone for eksperimentell informatikk
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *    - Redistributions of source code must retain the above copyright
+ *      notice, this list of conditions and the following disclaimer.
+ *    - Redistributions in binary form must reproduce the above copyright
+ *      notice, this list of conditions and the following disclaimer in the
+ *      documentation and/or other materials provided with the distribution.
+ *    - Neither the name of the <organization> nor the
+ *      names of its contributors may be used to endorse or promote products
+ *      derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package no.uio.ifi.sonen.aicycles.history;
+
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * Aggregating queries over the memory mapped columns of a {@link MatchHistory}.
+ * 
+ * Every query splits the rows into chunks that are scanned in parallel,
+ * each chunk summing into its own arrays that are merged at the end.
+ *
+ * @author Sigmund Hansen <sigmunha@ifi.uio.no>
+ */
+public class HistoryQuery {
+    
+    /** The number of rows scanned by a single task. */
+    private static final int CHUNK = 1 << 16;
+    /** The number of sums kept per team: matches, points and length. */
+    private static final int SUMS = 3;
+    
+    /**
+     * Summed results of a team.
+     */
+    public static class TeamReport {
+        /** The name of the team. */
+        private final String name;
+        /** The number of matches played. */
+        private final long matches;
+        /** The points scored in all matches. */
+        private final long points;
+        /** The ticks survived in all matches. */
+        private final long length;
+        
+        /**
+         * Creates a report.
+         * 
+         * @param name The name of the team.
+         * @param matches The number of matches played.
+         * @param points The points scored in all matches.
+         * @param length The ticks survived in all matches.
+         */
+        private TeamReport(String name, long matches, long points, long length) {
+            this.name = name;
+            this.matches = matches;
+            this.points = points;
+            this.length = length;
+        }
+        
+        /**
+         * Gets the name of the team.
+         * 
+         * @return The team's name.
+         */
+        public String getName() {
+            return name;
+        }
+        
+        /**
+         * Gets the number of matches the team has played.
+         * 
+         * @return The number of matches.
+         */
+        public long getMatches() {
+            return matches;
+        }
+        
+        /**
+         * Gets the total number of points the team has scored.
+         * 
+         * @return The total points.
+         */
+        public long getPoints() {
+            return points;
+        }
+        
+        /**
+         * Gets the average number of ticks the team has survived.
+         * 
+         * @return The average survival in ticks.
+         */
+        public double getAverageSurvival() {
+            return matches == 0 ? 0 : length / (double) matches;
+        }
+        
+        /**
+         * Gets the average number of points per match.
+         * 
+         * @return The average points.
+         */
+        public double getAveragePoints() {
+            return matches == 0 ? 0 : points / (double) matches;
+        }
+        
+        /**
+         * Converts the report to a string.
+         * 
+         * @return The name, number of matches, average points and average survival.
+         */
+        @Override
+        public String toString() {
+            return String.format("%-20s %6d matches %6.2f points %8.1f ticks",
+                                 name, matches, getAveragePoints(), getAverageSurvival());
+        }
+    }
+    
+    /**
+     * The results of the matches where two teams met.
+     */
+    public static class HeadToHead {
+        /** The number of matches both teams played in. */
+        private final int matches;
+        /** The number of matches where the first team outlived the second. */
+        private final int wins;
+        /** The number of matches where the second team outlived the first. */
+        private final int losses;
+        
+        /**
+         * Creates a head to head result.
+         * 
+         * @param matches The number of matches both teams played in.
+         * @param wins The number of matches the first team won.
+         * @param losses The number of matches the second team won.
+         */
+        private HeadToHead(int matches, int wins, int losses) {
+            this.matches = matches;
+            this.wins = wins;
+            this.losses = losses;
+        }
+        
+        /**
+         * Gets the number of matches both teams played in.
+         * 
+         * @return The number of matches.
+         */
+        public int getMatches() {
+            return matches;
+        }
+        
+        /**
+         * Gets the number of matches where the first team outlived the second.
+         * 
+         * @return The number of wins.
+         */
+        public int getWins() {
+            return wins;
+        }
+        
+        /**
+         * Gets the number of matches where the second team outlived the first.
+         * 
+         * @return The number of losses.
+         */
+        public int getLosses() {
+            return losses;
+        }
+        
+        /**
+         * Gets the number of matches where both teams died at the same time.
+         * 
+         * @return The number of draws.
+         */
+        public int getDraws() {
+            return matches - wins - losses;
+        }
+        
+        /**
+         * Converts the result to a string.
+         * 
+         * @return The wins, draws and losses.
+         */
+        @Override
+        public String toString() {
+            return String.format("%d-%d-%d", wins, getDraws(), losses);
+        }
+    }
+    
+    /** The number of matches covered by the query. */
+    private final int matchCount;
+    /** The number of entries covered by the query. */
+    private final int entryCount;
+    /** The names of all teams, indexed by their dictionary index. */
+    private final String[] teamNames;
+    /** The width of every match. */
+    private final IntBuffer width;
+    /** The height of every match. */
+    private final IntBuffer height;
+    /** The number of players in every match. */
+    private final IntBuffer players;
+    /** The first entry of every match. */
+    private final IntBuffer first;
+    /** The team of every entry. */
+    private final IntBuffer team;
+    /** The match of every entry. */
+    private final IntBuffer match;
+    /** The points of every entry. */
+    private final IntBuffer points;
+    /** The length of every entry. */
+    private final IntBuffer length;
+    
+    /**
+     * Creates a query over mapped columns.
+     * 
+     * @param matchCount The number of matches.
+     * @param entryCount The number of entries.
+     * @param teamNames The team dictionary.
+     * @param width The width column.
+     * @param height The height column.
+     * @param players The player count column.
+     * @param first The first entry column.
+     * @param team The team column.
+     * @param match The match column.
+     * @param points The points column.
+     * @param length The length column.
+     */
+    HistoryQuery(int matchCount, int entryCount, String[] teamNames,
+                 IntBuffer width, IntBuffer height, IntBuffer players, IntBuffer first,
+                 IntBuffer team, IntBuffer match, IntBuffer points, IntBuffer length) {
+        this.matchCount = matchCount;
+        this.entryCount = entryCount;
+        this.teamNames = teamNames;
+        this.width = width;
+        this.height = height;
+        this.players = players;
+        this.first = first;
+        this.team = team;
+        this.match = match;
+        this.points = points;
+        this.length = length;
+    }
+    
+    /**
+     * Gets the number of matches covered by this query.
+     * 
+     * @return The number of matches.
+     */
+    public int getMatchCount() {
+        return matchCount;
+    }
+    
+    /**
+     * Runs tasks on the common fork join pool and waits for their results.
+     * 
+     * @param tasks The tasks to run.
+     * @return The results of the tasks, in the order of the tasks.
+     */
+    private static <T> List<T> invokeAll(List<Callable<T>> tasks) {
+        List<T> results = new ArrayList<T>(tasks.size());
+        try {
+            for (Future<T> f : ForkJoinPool.commonPool().invokeAll(tasks)) {
+                results.add(f.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while scanning history", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Could not scan history", e.getCause());
+        }
+        return results;
+    }
+    
+    /**
+     * Sums the matches, points and length of every team, in parallel.
+     * 
+     * @param bySize Whether to keep separate sums for each map size.
+     * @return The sums for each group, keyed by width and height
+     *         (or 0 if not grouped by size), SUMS values per team.
+     */
+    private Map<Long, long[]> scan(final boolean bySize) {
+        List<Callable<Map<Long, long[]>>> tasks = new ArrayList<Callable<Map<Long, long[]>>>();
+        for (int start = 0; start < entryCount; start += CHUNK) {
+            final int from = start;
+            final int to = Math.min(entryCount, start + CHUNK);
+            tasks.add(new Callable<Map<Long, long[]>>() {
+                public Map<Long, long[]> call() {
+                    Map<Long, long[]> groups = new HashMap<Long, long[]>();
+                    long lastKey = -1;
+                    long[] sums = null;
+                    for (int i = from; i < to; i++) {
+                        int m = match.get(i);
+                        long key = bySize ? ((long) width.get(m) << 32) | height.get(m) : 0;
+                        if (key != lastKey) {
+                            sums = groups.get(key);
+                            if (sums == null) {
+                                sums = new long[teamNames.length * SUMS];
+                                groups.put(key, sums);
+                            }
+                            lastKey = key;
+                        }
+                        int t = team.get(i) * SUMS;
+                        sums[t]++;
+                        sums[t + 1] += points.get(i);
+                        sums[t + 2] += length.get(i);
+                    }
+                    return groups;
+                }
+            });
+        }
+        
+        Map<Long, long[]> total = new HashMap<Long, long[]>();
+        for (Map<Long, long[]> groups : invokeAll(tasks)) {
+            for (Map.Entry<Long, long[]> e : groups.entrySet()) {
+                long[] sums = total.get(e.getKey());
+                if (sums == null) {
+                    total.put(e.getKey(), e.getValue());
+                } else {
+                    for (int i = 0; i < sums.length; i++) {
+                        sums[i] += e.getValue()[i];
+                    }
+                }
+            }
+        }
+        return total;
+    }
+    
+    /**
+     * Turns summed values into reports, best average points first.
+     * 
+     * @param sums The sums of every team.
+     * @return The reports of the teams that have played, keyed by name.
+     */
+    private Map<String, TeamReport> toReports(long[] sums) {
+        List<TeamReport> reports = new ArrayList<TeamReport>();
+        for (int t = 0; t < teamNames.length; t++) {
+            if (sums != null && sums[t * SUMS] > 0) {
+                reports.add(new TeamReport(teamNames[t], sums[t * SUMS],
+                                           sums[t * SUMS + 1], sums[t * SUMS + 2]));
+            }
+        }
+        
+        Collections.sort(reports, new Comparator<TeamReport>() {
+            public int compare(TeamReport a, TeamReport b) {
+                return Double.compare(b.getAveragePoints(), a.getAveragePoints());
+            }
+        });
+        
+        Map<String, TeamReport> result = new LinkedHashMap<String, TeamReport>();
+        for (TeamReport r : reports) {
+            result.put(r.getName(), r);
+        }
+        return result;
+    }
+    
+    /**
+     * Gets the results of every team over all matches.
+     * 
+     * @return A report for every team, best average points first.
+     */
+    public Map<String, TeamReport> perTeam() {
+        return toReports(scan(false).get(0L));
+    }
+    
+    /**
+     * Gets the results of every team for every map size.
+     * 
+     * @return Reports for every team, keyed by map size (WIDTHxHEIGHT).
+     */
+    public Map<String, Map<String, TeamReport>> perMapSize() {
+        Map<String, Map<String, TeamReport>> result = new TreeMap<String, Map<String, TeamReport>>();
+        for (Map.Entry<Long, long[]> e : scan(true).entrySet()) {
+            long key = e.getKey();
+            result.put(String.format("%dx%d", (int) (key >>> 32), (int) key),
+                       toReports(e.getValue()));
+        }
+        return result;
+    }
+    
+    /**
+     * Gets the dictionary index of a team.
+     * 
+     * @param name The name of the team.
+     * @return The team's index, or -1 if it's not in the history.
+     */
+    private int indexOf(String name) {
+        for (int i = 0; i < teamNames.length; i++) {
+            if (teamNames[i].equals(name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+    
+    /**
+     * Gets the results of the matches where two teams met.
+     * A team wins if it survived longer than the other.
+     * 
+     * @param a The name of the first team.
+     * @param b The name of the second team.
+     * @return The first team's wins, draws and losses against the second.
+     */
+    public HeadToHead headToHead(String a, String b) {
+        final int teamA = indexOf(a);
+        final int teamB = indexOf(b);
+        if (teamA < 0 || teamB < 0) {
+            return new HeadToHead(0, 0, 0);
+        }
+        
+        List<Callable<int[]>> tasks = new ArrayList<Callable<int[]>>();
+        for (int start = 0; start < matchCount; start += CHUNK) {
+            final int from = start;
+            final int to = Math.min(matchCount, start + CHUNK);
+            tasks.add(new Callable<int[]>() {
+                public int[] call() {
+                    int[] result = new int[3];
+                    for (int m = from; m < to; m++) {
+                        int lengthA = -1;
+                        int lengthB = -1;
+                        int end = first.get(m) + players.get(m);
+                        for (int i = first.get(m); i < end; i++) {
+                            int t = team.get(i);
+                            if (t == teamA) {
+                                lengthA = length.get(i);
+                            } else if (t == teamB) {
+                                lengthB = length.get(i);
+                            }
+                        }
+                        
+                        if (lengthA >= 0 && lengthB >= 0) {
+                            result[0]++;
+                            if (lengthA > lengthB) {
+                                result[1]++;
+                            } else if (lengthB > lengthA) {
+                                result[2]++;
+                            }
+                        }
+                    }
+                    return result;
+                }
+            });
+        }
+        
+        int[] total = new int[3];
+        for (int[] result : invokeAll(tasks)) {
+            for (int i = 0; i < total.length; i++) {
+                total[i] += result[i];
+            }
+        }
+        return new HeadToHead(total[0], total[1], total[2]);
+    }
+}
@@ -0,0 +1,375 @@
+/*
+ * Copyright (c) 2011, Åpen sone for eksperimentell informatikk
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *    - Redistributions of source code must retain the above copyright
+ *      notice, this list of conditions and the following disclaimer.
+ *    - Redistributions in binary form must reproduce the above copyright
+ *      notice, this list of conditions and the following disclaimer in the
+ *      documentation and/or other materials provided with the distribution.
+ *    - Neither the name of the <organization> nor the
+ *      names of its contributors may be used to endorse or promote products
+ *      derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package no.uio.ifi.sonen.aicycles.history;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Scanner;
+import no.uio.ifi.sonen.aicycles.server.Statistics;
+
+/**
+ * A columnar on-disk store of match results.
+ * 
+ * The store is a directory with one file per field,
+ * each file being an array of ints.
+ * There is one row per match in the match columns,
+ * and one row per player in a match in the entry columns.
+ * The entries of a match are stored next to each other,
+ * starting at the row given by the match's first column.
+ * Team names are stored once in a dictionary file and referred to by index.
+ * 
+ * Queries map the columns into memory and scan them in parallel.
+ *
+ * @author Sigmund Hansen <sigmunha@ifi.uio.no>
+ */
+public class MatchHistory {
+    
+    /** The width of the map, one row per match. */
+    static final String MATCH_WIDTH = "match.width";
+    /** The height of the map, one row per match. */
+    static final String MATCH_HEIGHT = "match.height";
+    /** The random seed, one row per match. */
+    static final String MATCH_SEED = "match.seed";
+    /** The number of players, one row per match. */
+    static final String MATCH_PLAYERS = "match.players";
+    /** The row of the match's first entry, one row per match. */
+    static final String MATCH_FIRST = "match.first";
+    /** The match the entry belongs to, one row per player in a match. */
+    static final String ENTRY_MATCH = "entry.match";
+    /** The team's index in the dictionary, one row per player in a match. */
+    static final String ENTRY_TEAM = "entry.team";
+    /** The horizontal start position, one row per player in a match. */
+    static final String ENTRY_START_X = "entry.startx";
+    /** The vertical start position, one row per player in a match. */
+    static final String ENTRY_START_Y = "entry.starty";
+    /** The points scored, one row per player in a match. */
+    static final String ENTRY_POINTS = "entry.points";
+    /** The number of ticks survived, one row per player in a match. */
+    static final String ENTRY_LENGTH = "entry.length";
+    /** The file containing team names, one per line. */
+    static final String TEAMS = "teams.txt";
+    
+    /** The names of the match columns. */
+    static final String[] MATCH_COLUMNS = {
+        MATCH_WIDTH, MATCH_HEIGHT, MATCH_SEED, MATCH_PLAYERS, MATCH_FIRST
+    };
+    /** The names of the entry columns. */
+    static final String[] ENTRY_COLUMNS = {
+        ENTRY_MATCH, ENTRY_TEAM, ENTRY_START_X, ENTRY_START_Y, ENTRY_POINTS, ENTRY_LENGTH
+    };
+    
+    /** The directory containing the store. */
+    private final File dir;
+    /** The names of all teams, indexed by their dictionary index. */
+    private final List<String> teamNames = new ArrayList<String>();
+    /** The dictionary index of every team. */
+    private final Map<String, Integer> teamIds = new HashMap<String, Integer>();
+    /** The number of matches in the store. */
+    private int matchCount;
+    /** The number of entries in the store. */
+    private int entryCount;
+    
+    /**
+     * Opens a store, creating the directory if it doesn't exist.
+     * 
+     * @param dir The directory containing the store.
+     * @throws IOException if the directory or the dictionary can't be read.
+     */
+    public MatchHistory(File dir) throws IOException {
+        this.dir = dir;
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Could not create history directory " + dir);
+        }
+        
+        File teams = new File(dir, TEAMS);
+        if (teams.exists()) {
+            Scanner s = new Scanner(new FileInputStream(teams), "UTF-8");
+            while (s.hasNextLine()) {
+                String name = s.nextLine();
+                if (name.length() > 0) {
+                    teamIds.put(name, teamNames.size());
+                    teamNames.add(name);
+                }
+            }
+            s.close();
+        }
+        
+        // A crash in the middle of an append may leave some columns longer
+        // than others, the shortest column decides what's in the store.
+        matchCount = shortest(MATCH_COLUMNS);
+        entryCount = shortest(ENTRY_COLUMNS);
+        if (matchCount > 0) {
+            entryCount = Math.min(entryCount, lastEntry(matchCount - 1));
+            while (matchCount > 0 && lastEntry(matchCount - 1) > entryCount) {
+                matchCount--;
+            }
+        }
+    }
+    
+    /**
+     * Gets the number of rows in the shortest of the given columns.
+     * 
+     * @param columns The names of the columns.
+     * @return The number of complete rows.
+     */
+    private int shortest(String[] columns) {
+        long rows = Long.MAX_VALUE;
+        for (String c : columns) {
+            rows = Math.min(rows, new File(dir, c).length() / 4);
+        }
+        return (int) rows;
+    }
+    
+    /**
+     * Gets the row after the last entry of a match.
+     * 
+     * @param match The match's row.
+     * @return The row following the match's entries.
+     * @throws IOException if the columns can't be read.
+     */
+    private int lastEntry(int match) throws IOException {
+        return readInt(MATCH_FIRST, match) + readInt(MATCH_PLAYERS, match);
+    }
+    
+    /**
+     * Reads a single value from a column.
+     * 
+     * @param column The name of the column.
+     * @param row The row to read.
+     * @return The value in the given row.
+     * @throws IOException if the column can't be read.
+     */
+    private int readInt(String column, int row) throws IOException {
+        RandomAccessFile f = new RandomAccessFile(new File(dir, column), "r");
+        try {
+            f.seek(row * 4L);
+            return f.readInt();
+        } finally {
+            f.close();
+        }
+    }
+    
+    /**
+     * Appends the values for one or more rows to a column.
+     * Anything after the given row is overwritten,
+     * which drops the remains of an interrupted append.
+     * 
+     * @param column The name of the column.
+     * @param row The first row to write.
+     * @param values The values to write.
+     * @throws IOException if the column can't be written.
+     */
+    private void write(String column, int row, int... values) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(values.length * 4);
+        buf.asIntBuffer().put(values);
+        RandomAccessFile f = new RandomAccessFile(new File(dir, column), "rw");
+        try {
+            FileChannel ch = f.getChannel();
+            ch.truncate(row * 4L);
+            ch.write(buf, row * 4L);
+        } finally {
+            f.close();
+        }
+    }
+    
+    /**
+     * Gets the dictionary index of a team, adding it to the dictionary if it's new.
+     * 
+     * @param name The name of the team.
+     * @return The team's index.
+     * @throws IOException if the dictionary can't be written.
+     */
+    private int getTeamId(String name) throws IOException {
+        Integer id = teamIds.get(name);
+        if (id == null) {
+            id = teamNames.size();
+            PrintWriter pw = new PrintWriter(new FileOutputStream(new File(dir, TEAMS), true));
+            pw.println(name);
+            pw.close();
+            teamIds.put(name, id);
+            teamNames.add(name);
+        }
+        return id;
+    }
+    
+    /**
+     * Appends the statistics of a single match to the store.
+     * 
+     * @param s The match's statistics.
+     * @throws IOException if the store can't be written.
+     */
+    public synchronized void append(Statistics s) throws IOException {
+        int n = s.getTeams().size();
+        int[] match = new int[n];
+        int[] team = new int[n];
+        int[] startX = new int[n];
+        int[] startY = new int[n];
+        int[] points = new int[n];
+        int[] length = new int[n];
+        int i = 0;
+        for (String name : s.getTeams()) {
+            match[i] = matchCount;
+            team[i] = getTeamId(name);
+            startX[i] = s.getStartX(name);
+            startY[i] = s.getStartY(name);
+            points[i] = s.getPoints(name);
+            length[i] = s.getLength(name);
+            i++;
+        }
+        
+        // Entries first, a match row is only complete when its entries are.
+        write(ENTRY_MATCH, entryCount, match);
+        write(ENTRY_TEAM, entryCount, team);
+        write(ENTRY_START_X, entryCount, startX);
+        write(ENTRY_START_Y, entryCount, startY);
+        write(ENTRY_POINTS, entryCount, points);
+        write(ENTRY_LENGTH, entryCount, length);
+        
+        write(MATCH_WIDTH, matchCount, s.getWidth());
+        write(MATCH_HEIGHT, matchCount, s.getHeight());
+        write(MATCH_SEED, matchCount, s.getRandomSeed());
+        write(MATCH_PLAYERS, matchCount, n);
+        write(MATCH_FIRST, matchCount, entryCount);
+        
+        entryCount += n;
+        matchCount++;
+    }
+    
+    /**
+     * Maps a column into memory.
+     * 
+     * @param column The name of the column.
+     * @param rows The number of rows to map.
+     * @return A read only view of the column.
+     * @throws IOException if the column can't be mapped.
+     */
+    private IntBuffer map(String column, int rows) throws IOException {
+        if (rows == 0) {
+            return IntBuffer.allocate(0);
+        }
+        
+        RandomAccessFile f = new RandomAccessFile(new File(dir, column), "r");
+        try {
+            return f.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, rows * 4L).asIntBuffer();
+        } finally {
+            f.close();
+        }
+    }
+    
+    /**
+     * Creates a query over the matches that are currently in the store.
+     * Matches appended later are not seen by the query.
+     * 
+     * @return A query over the store.
+     * @throws IOException if the columns can't be mapped.
+     */
+    public synchronized HistoryQuery query() throws IOException {
+        return new HistoryQuery(matchCount, entryCount,
+                                teamNames.toArray(new String[teamNames.size()]),
+                                map(MATCH_WIDTH, matchCount),
+                                map(MATCH_HEIGHT, matchCount),
+                                map(MATCH_PLAYERS, matchCount),
+                                map(MATCH_FIRST, matchCount),
+                                map(ENTRY_TEAM, entryCount),
+                                map(ENTRY_MATCH, entryCount),
+                                map(ENTRY_POINTS, entryCount),
+                                map(ENTRY_LENGTH, entryCount));
+    }
+    
+    /**
+     * Gets the number of matches in the store.
+     * 
+     * @return The number of matches.
+     */
+    public synchronized int getMatchCount() {
+        return matchCount;
+    }
+    
+    /**
+     * Imports a statistics file into a store and prints reports for it.
+     * 
+     * @param args The statistics file to import (or - to skip importing),
+     *             the directory of the store
+     *             and optionally two teams to compare head to head.
+     */
+    public static void main(String[] args) {
+        if (args.length < 2) {
+            System.out.println("Usage: MatchHistory <statistics file|-> <history directory> [team team]");
+            System.exit(1);
+        }
+        
+        try {
+            MatchHistory history = new MatchHistory(new File(args[1]));
+            if (!args[0].equals("-")) {
+                Scanner s = new Scanner(new File(args[0]));
+                s.useDelimiter("[;\\s]+");
+                while (s.hasNext()) {
+                    history.append(Statistics.read(s));
+                }
+                s.close();
+            }
+            
+            HistoryQuery q = history.query();
+            System.out.printf("%d matches%n%nPer team:%n", q.getMatchCount());
+            for (HistoryQuery.TeamReport r : q.perTeam().values()) {
+                System.out.println(r);
+            }
+            
+            for (Map.Entry<String, Map<String, HistoryQuery.TeamReport>> size
+                 : q.perMapSize().entrySet()) {
+                System.out.printf("%nMap size %s:%n", size.getKey());
+                for (HistoryQuery.TeamReport r : size.getValue().values()) {
+                    System.out.println(r);
+                }
+            }
+            
+            if (args.length >= 4) {
+                System.out.printf("%n%s vs %s: %s%n", args[2], args[3],
+                                  q.headToHead(args[2], args[3]));
+            }
+            
+        } catch (FileNotFoundException fnfe) {
+            System.err.printf("Could not find statistics file: %s%n", fnfe.getMessage());
+            System.exit(2);
+        } catch (IOException ioe) {
+            System.err.printf("Could not read match history:%n%s%n", ioe.getMessage());
+            System.exit(3);
+        }
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright (c) 2011, Åpen sone for eksperimentell informatikk
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *    - Redistributions of source code must retain the above copyright
+ *      notice, this list of conditions and the following disclaimer.
+ *    - Redistributions in binary form must reproduce the above copyright
+ *      notice, this list of conditions and the following disclaimer in the
+ *      documentation and/or other materials provided with the distribution.
+ *    - Neither the name of the <organization> nor the
+ *      names of its contributors may be used to endorse or promote products
+ *      derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package no.uio.ifi.sonen.aicycles.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A metric that goes up and down, like the number of active matches.
+ * Gauges are thread safe.
+ * 
+ * A gauge can be set directly,
+ * or subclassed to read its value from somewhere else when asked.
+ *
+ * @author Sigmund Hansen <sigmunha@ifi.uio.no>
+ */
+public class Gauge implements Metric {
+    
+    /** The name of the gauge. */
+    private final String name;
+    /** The description of the gauge. */
+    private final String help;
+    /** The value set on the gauge. */
+    private final AtomicLong value = new AtomicLong();
+    
+    /**
+     * Creates a gauge starting at 0.
+     * 
+     * @param name The name of the gauge.
+     * @param help A short description of the gauge.
+     */
+    public Gauge(String name, String help) {
+        this.name = name;
+        this.help = help;
+    }
+    
+    /**
+     * Sets the value of the gauge.
+     * 
+     * @param v The new value.
+     */
+    public void set(long v) {
+        value.set(v);
+    }
+    
+    /**
+     * Adds to the value of the gauge.
+     * 
+     * @param n The amount to add, negative to subtract.
+     */
+    public void add(long n) {
+        value.addAndGet(n);
+    }
+    
+    /** {@inheritDoc} */
+    public String getName() {
+        return name;
+    }
+    
+    /** {@inheritDoc} */
+    public String getHelp() {
+        return help;
+    }
+    
+    /** {@inheritDoc} */
+    public String getType() {
+        return "gauge";
+    }
+    
+    /** {@inheritDoc} */
+    public long getValue() {
+        return value.get();
+    }
+}
@@ -0,0 +1,197 @@
+/*
+ * Copyright (c) 2011, Åpen sone for eksperimentell informatikk
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *    - Redistributions of source code must retain the above copyright
+ *      notice, this list of conditions and the following disclaimer.
+ *    - Redistributions in binary form must reproduce the above copyright
+ *      notice, this list of conditions and the following disclaimer in the
+ *      documentation and/or other materials provided with the distribution.
+ *    - Neither the name of the <organization> nor the
+ *      names of its contributors may be used to endorse or promote products
+ *      derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package no.uio.ifi.sonen.aicycles.metrics;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * The registry of all metrics in the process.
+ * 
+ * Code that wants to be monitored gets its counters and gauges from here,
+ * usually once in a static field,
+ * and the registry makes them available over JMX
+ * and as plain text over HTTP when exported.
+ * Registering and reading metrics is thread safe.
+ *
+ * @author Sigmund Hansen <sigmunha@ifi.uio.no>
+ */
+public final class Metrics {
+    
+    /** The metrics, sorted by name. */
+    private static final ConcurrentMap<String, Metric> METRICS =
+            new ConcurrentSkipListMap<String, Metric>();
+    
+    /**
+     * There's only one registry.
+     */
+    private Metrics() {
+    }
+    
+    /**
+     * Gets a counter, creating it if it doesn't exist.
+     * 
+     * @param name The name of the counter.
+     * @param help A short description of the counter.
+     * @return The counter with the given name.
+     * @throws IllegalArgumentException if a metric with the name isn't a counter.
+     */
+    public static Counter counter(String name, String help) {
+        Metric m = METRICS.get(name);
+        if (m == null) {
+            Metric old = METRICS.putIfAbsent(name, new Counter(name, help));
+            m = old != null ? old : METRICS.get(name);
+        }
+        if (!(m instanceof Counter)) {
+            throw new IllegalArgumentException(name + " is not a counter.");
+        }
+        return (Counter) m;
+    }
+    
+    /**
+     * Gets a gauge, creating it if it doesn't exist.
+     * 
+     * @param name The name of the gauge.
+     * @param help A short description of the gauge.
+     * @return The gauge with the given name.
+     * @throws IllegalArgumentException if a metric with the name isn't a gauge.
+     */
+    public static Gauge gauge(String name, String help) {
+        Metric m = METRICS.get(name);
+        if (m == null) {
+            Metric old = METRICS.putIfAbsent(name, new Gauge(name, help));
+            m = old != null ? old : METRICS.get(name);
+        }
+        if (!(m instanceof Gauge)) {
+            throw new IllegalArgumentException(name + " is not a gauge.");
+        }
+        return (Gauge) m;
+    }
+    
+    /**
+     * Registers a metric, replacing any metric with the same name.
+     * 
+     * @param m The metric to register.
+     */
+    public static void register(Metric m) {
+        METRICS.put(m.getName(), m);
+    }
+    
+    /**
+     * Removes a metric, if it's the one registered under its name.
+     * 
+     * @param m The metric to remove.
+     */
+    public static void unregister(Metric m) {
+        METRICS.remove(m.getName(), m);
+    }
+    
+    /**
+     * Gets a metric by name.
+     * 
+     * @param name The name of the metric, including any labels.
+     * @return The metric, or null if there is none with that name.
+     */
+    public static Metric get(String name) {
+        return METRICS.get(name);
+    }
+    
+    /**
+     * Gets all registered metrics.
+     * 
+     * @return The metrics, sorted by name.
+     */
+    public static List<Metric> getMetrics() {
+        return new ArrayList<Metric>(METRICS.values());
+    }
+    
+    /**
+     * Gets the name of a metric without its labels.
+     * 
+     * @param name The name of a metric.
+     * @return The name up to any labels.
+     */
+    static String family(String name) {
+        int brace = name.indexOf('{');
+        return brace < 0 ? name : name.substring(0, brace);
+    }
+    
+    /**
+     * Writes all metrics in the Prometheus text format,
+     * a line with the name and value of each metric,
+     * after a help and type line for each family of metrics.
+     * 
+     * @return The metrics as text.
+     */
+    public static String format() {
+        StringBuilder sb = new StringBuilder();
+        Set<String> described = new HashSet<String>();
+        for (Metric m : METRICS.values()) {
+            String family = family(m.getName());
+            if (described.add(family)) {
+                sb.append("# HELP ").append(family).append(' ')
+                  .append(m.getHelp()).append('\n');
+                sb.append("# TYPE ").append(family).append(' ')
+                  .append(m.getType()).append('\n');
+            }
+            sb.append(m.getName()).append(' ').append(m.getValue()).append('\n');
+        }
+        return sb.toString();
+    }
+    
+    /**
+     * Makes the metrics available to monitoring.
+     * They're always registered as a JMX MBean,
+     * and served over HTTP on the loopback interface
+     * if the aicycles.metrics.port property is set.
+     * 
+     * @return The HTTP server, or null if it wasn't started.
+     */
+    public static MetricsServer export() {
+        MetricsMBean.register();
+        
+        Integer port = Integer.getInteger("aicycles.metrics.port");
+        if (port == null) {
+            return null;
+        }
+        
+        try {
+            MetricsServer server = new MetricsServer(port);
+            server.start();
+            return server;
+        } catch (IOException ioe) {
+            System.err.printf("Could not serve metrics on port %d:%n%s%n",
+                              port, ioe.getMessage());
+            return null;
+        }
+    }
+}
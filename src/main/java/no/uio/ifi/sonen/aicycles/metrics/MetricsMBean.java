@@ -0,0 +1,138 @@
+/*
+ * Copyright (c) 2011, Åpen sone for eksperimentell informatikk
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *    - Redistributions of source code must retain the above copyright
+ *      notice, this list of conditions and the following disclaimer.
+ *    - Redistributions in binary form must reproduce the above copyright
+ *      notice, this list of conditions and the following disclaimer in the
+ *      documentation and/or other materials provided with the distribution.
+ *    - Neither the name of the <organization> nor the
+ *      names of its contributors may be used to endorse or promote products
+ *      derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package no.uio.ifi.sonen.aicycles.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+
+/**
+ * Exposes every registered metric as a read-only attribute of an MBean,
+ * so they can be watched with JConsole or any JMX monitoring.
+ * The attributes follow the registry,
+ * so metrics registered later show up without registering again.
+ *
+ * @author Sigmund Hansen <sigmunha@ifi.uio.no>
+ */
+public class MetricsMBean implements DynamicMBean {
+    
+    /** The name the MBean is registered under. */
+    public static final String NAME = "no.uio.ifi.sonen.aicycles:type=Metrics";
+    
+    /**
+     * Registers the MBean with the platform MBean server,
+     * unless it has already been registered.
+     */
+    static synchronized void register() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(NAME);
+            if (!server.isRegistered(name)) {
+                server.registerMBean(new MetricsMBean(), name);
+            }
+        } catch (JMException e) {
+            System.err.printf("Could not register metrics MBean:%n%s%n", e.getMessage());
+        }
+    }
+    
+    /** {@inheritDoc} */
+    public Object getAttribute(String attribute) throws AttributeNotFoundException {
+        Metric m = Metrics.get(attribute);
+        if (m == null) {
+            throw new AttributeNotFoundException(attribute);
+        }
+        return m.getValue();
+    }
+    
+    /** {@inheritDoc} */
+    public AttributeList getAttributes(String[] attributes) {
+        AttributeList list = new AttributeList();
+        for (String a : attributes) {
+            Metric m = Metrics.get(a);
+            if (m != null) {
+                list.add(new Attribute(a, m.getValue()));
+            }
+        }
+        return list;
+    }
+    
+    /**
+     * Metrics are read-only.
+     * 
+     * @param attribute The attribute that would have been set.
+     * @throws AttributeNotFoundException always.
+     */
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+        throw new AttributeNotFoundException(attribute.getName() + " is read-only.");
+    }
+    
+    /**
+     * Metrics are read-only.
+     * 
+     * @param attributes The attributes that would have been set.
+     * @return An empty list.
+     */
+    public AttributeList setAttributes(AttributeList attributes) {
+        return new AttributeList();
+    }
+    
+    /**
+     * There are no operations.
+     * 
+     * @param actionName The name of the operation.
+     * @param params The parameters of the operation.
+     * @param signature The types of the parameters.
+     * @return Nothing.
+     * @throws ReflectionException always.
+     */
+    public Object invoke(String actionName, Object[] params, String[] signature)
+            throws ReflectionException {
+        throw new ReflectionException(new NoSuchMethodException(actionName));
+    }
+    
+    /** {@inheritDoc} */
+    public MBeanInfo getMBeanInfo() {
+        List<Metric> metrics = Metrics.getMetrics();
+        MBeanAttributeInfo[] attributes = new MBeanAttributeInfo[metrics.size()];
+        for (int i = 0; i < attributes.length; i++) {
+            Metric m = metrics.get(i);
+            attributes[i] = new MBeanAttributeInfo(m.getName(), "long", m.getHelp(),
+                                                   true, false, false);
+        }
+        return new MBeanInfo(getClass().getName(), "AICycles server metrics.",
+                             attributes, null, null, null);
+    }
+}
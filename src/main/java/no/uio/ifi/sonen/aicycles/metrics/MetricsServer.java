@@ -0,0 +1,98 @@
+/*
+ * Copyright (c) 2011, Åpen sone for eksperimentell informatikk
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *    - Redistributions of source code must retain the above copyright
+ *      notice, this list of conditions and the following disclaimer.
+ *    - Redistributions in binary form must reproduce the above copyright
+ *      notice, this list of conditions and the following disclaimer in the
+ *      documentation and/or other materials provided with the distribution.
+ *    - Neither the name of the <organization> nor the
+ *      names of its contributors may be used to endorse or promote products
+ *      derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package no.uio.ifi.sonen.aicycles.metrics;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.Charset;
+
+/**
+ * Serves the metrics as plain text on /metrics,
+ * in the format Prometheus scrapes.
+ * It only listens on the loopback interface,
+ * so the metrics aren't available to the bots' machines.
+ *
+ * @author Sigmund Hansen <sigmunha@ifi.uio.no>
+ */
+public class MetricsServer {
+    
+    /** The HTTP server. */
+    private final HttpServer server;
+    
+    /**
+     * Creates a metrics server on the given port of the loopback interface.
+     * 
+     * @param port The port to listen on, 0 for any free port.
+     * @throws IOException if the port could not be bound.
+     */
+    public MetricsServer(int port) throws IOException {
+        server = HttpServer.create(
+                new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.createContext("/metrics", new HttpHandler() {
+            /**
+             * Answers with the current value of every metric.
+             */
+            public void handle(HttpExchange exchange) throws IOException {
+                byte[] body = Metrics.format().getBytes(Charset.forName("UTF-8"));
+                exchange.getResponseHeaders().set("Content-Type",
+                                                  "text/plain; version=0.0.4; charset=utf-8");
+                exchange.sendResponseHeaders(200, body.length);
+                OutputStream out = exchange.getResponseBody();
+                out.write(body);
+                out.close();
+            }
+        });
+    }
+    
+    /**
+     * Starts serving metrics in the background.
+     */
+    public void start() {
+        server.start();
+    }
+    
+    /**
+     * Stops serving metrics.
+     */
+    public void stop() {
+        server.stop(0);
+    }
+    
+    /**
+     * Gets the port the server listens on.
+     * 
+     * @return The local port.
+     */
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright (c) 2011, Åpen sone for eksperimentell informatikk
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *    - Redistributions of source code must retain the above copyright
+ *      notice, this list of conditions and the following disclaimer.
+ *    - Redistributions in binary form must reproduce the above copyright
+ *      notice, this list of conditions and the following disclaimer in the
+ *      documentation and/or other materials provided with the distribution.
+ *    - Neither the name of the <organization> nor the
+ *      names of its contributors may be used to endorse or promote products
+ *      derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package no.uio.ifi.sonen.aicycles.net;
+
+/**
+ * Estimates the offset between the local clock and the server's clock
+ * from ping round trips.
+ * 
+ * A ping is sent at local time t0, the server answers with its time ts,
+ * and the answer arrives at local time t1.
+ * Assuming the trip took as long each way, the server's clock was at ts
+ * at local time (t0 + t1) / 2.
+ * The error is at most half the round trip,
+ * so of the last {@link #WINDOW} samples,
+ * the one with the shortest round trip is trusted.
+ * 
+ * Times are in microseconds, as given by {@link Connection#now()}.
+ *
+ * @author Sigmund Hansen <sigmunha@ifi.uio.no>
+ */
+public class ClockSync {
+    
+    /** The number of samples to pick the best estimate from. */
+    public static final int WINDOW = 16;
+    
+    /** The round trip time of each sample. */
+    private final long[] roundTrips = new long[WINDOW];
+    /** The estimated offset of each sample. */
+    private final long[] offsets = new long[WINDOW];
+    /** The number of samples added. */
+    private long samples = 0;
+    /** The offset of the sample with the shortest round trip. */
+    private long offset;
+    /** The shortest round trip in the window. */
+    private long roundTrip;
+    
+    /**
+     * Adds a ping round trip.
+     * 
+     * @param sent When the ping was sent, in local time.
+     * @param serverTime The server's time in its answer.
+     * @param received When the answer arrived, in local time.
+     */
+    public synchronized void addSample(long sent, long serverTime, long received) {
+        int i = (int) (samples++ % WINDOW);
+        roundTrips[i] = received - sent;
+        offsets[i] = serverTime - (sent + received) / 2;
+        
+        int n = (int) Math.min(samples, WINDOW);
+        int best = 0;
+        for (int j = 1; j < n; j++) {
+            if (roundTrips[j] < roundTrips[best]) {
+                best = j;
+            }
+        }
+        offset = offsets[best];
+        roundTrip = roundTrips[best];
+    }
+    
+    /**
+     * Adds a sample from a pong packet answering a ping
+     * whose data was the local time it was sent.
+     * 
+     * @param pong The pong packet, holding the ping's time and the server's time.
+     * @param received When the pong arrived, in local time.
+     * @return true if the packet held a sample.
+     */
+    public boolean addSample(Packet pong, long received) {
+        String[] times = pong.getData().split(" ");
+        if (times.length < 2) {
+            return false;
+        }
+        
+        try {
+            addSample(Long.parseLong(times[0]), Long.parseLong(times[1]), received);
+            return true;
+        } catch (NumberFormatException nfe) {
+            return false;
+        }
+    }
+    
+    /**
+     * Checks whether there are any samples yet.
+     * 
+     * @return true if the offset has been estimated.
+     */
+    public synchronized boolean isSynchronized() {
+        return samples > 0;
+    }
+    
+    /**
+     * Gets the estimated offset of the server's clock from the local clock.
+     * 
+     * @return The server's time minus the local time, in microseconds.
+     */
+    public synchronized long getOffset() {
+        return offset;
+    }
+    
+    /**
+     * Gets the shortest round trip in the window, which bounds the error.
+     * 
+     * @return The round trip time in microseconds.
+     */
+    public synchronized long getRoundTrip() {
+        return roundTrip;
+    }
+    
+    /**
+     * Converts a time on the server's clock to the local clock.
+     * 
+     * @param serverTime A time on the server's clock.
+     * @return The same time on the local clock.
+     */
+    public synchronized long toLocal(long serverTime) {
+        return serverTime - offset;
+    }
+}
@@ -27,9 +27,9 @@
 package no.uio.ifi.sonen.aicycles.net;
 
 import java.net.Socket;
-import java.io.PrintStream;
 import java.io.IOException;
-import java.util.Scanner;
+import no.uio.ifi.sonen.aicycles.metrics.Counter;
+import no.uio.ifi.sonen.aicycles.metrics.Metrics;
 
 /**
  * A connection between a client and server.
@@ -40,13 +40,37 @@ public class Connection {
 
     /** The default port used for networking. */
     public static final int PORT = 1982;
+    /** The name to give in the handshake to watch a match instead of playing. */
+    public static final String SPECTATOR = "spectator";
+    /** Added to the name in the handshake to ask for a shared memory transport. */
+    public static final String SHARED_MEMORY = "shm";
+    /** Added to the name in the handshake to ask for the shared grid. */
+    public static final String SHARED_GRID = "view";
+    /** Added to the name in the handshake, followed by a player's token, to rejoin a match. */
+    public static final String REJOIN = "rejoin=";
+    /** The number of milliseconds without packets before pinging the peer. */
+    public static final long PING_INTERVAL = 1000;
+    /** The number of milliseconds without packets before giving up on the peer. */
+    public static final long IDLE_TIMEOUT = Long.getLong("aicycles.idleTimeout", 5000);
+    /** The bytes received on all connections. */
+    static final Counter BYTES_RECEIVED = Metrics.counter(
+            "aicycles_bytes_received_total", "Bytes received on all connections.");
+    /** The bytes sent on all connections. */
+    static final Counter BYTES_SENT = Metrics.counter(
+            "aicycles_bytes_sent_total", "Bytes sent on all connections.");
+    /** The malformed packets received on all connections. */
+    static final Counter MALFORMED_PACKETS = Metrics.counter(
+            "aicycles_malformed_packets_total", "Malformed packets received.");
     
-    /** The connection's socket. */
-    private Socket sock;
-    /** The socket's input stream as a scanner. */
-    private Scanner in;
-    /** The socket's output stream as a print stream. */
-    private PrintStream out;
+    /** Never committed, only asked whether packet events are recorded. */
+    private static final PacketEvent PACKET_EVENTS = new PacketEvent();
+    
+    /** Carries the connection's packets. */
+    private volatile Transport transport;
+    /** When the last packet was received, from System.nanoTime. */
+    private volatile long lastReceived = System.nanoTime();
+    /** The next idle check, or null if the connection isn't watched. */
+    private volatile HashedWheelTimer.Timeout idleCheck;
 
     /**
      * Creates a connection from a socket.
@@ -55,60 +79,167 @@ public class Connection {
      * @throws IOException If either of the socket's streams could not be opened.
      */
     public Connection(Socket sock) throws IOException {
-        this.sock = sock;
-        in = new Scanner(sock.getInputStream());
-        out = new PrintStream(sock.getOutputStream());
+        this(new SocketTransport(sock));
+    }
+    
+    /**
+     * Creates a connection carrying its packets over a transport.
+     * 
+     * @param transport The transport to send and receive packets with.
+     * @see LocalTransport
+     */
+    public Connection(Transport transport) {
+        this.transport = transport;
     }
 
     /**
-     * Waits for data and creates a packet object from it.
+     * Switches the connection to another transport, such as shared memory
+     * negotiated in the handshake. The old transport must be closed
+     * along with the new one, and nothing may be in flight on it.
      * 
-     * @return The packet that was read,
-     *         or null if no packet was received within the wait time.
-     * @throws IOException if the underlying stream throws an IOException.
+     * @param transport The transport to carry packets from now on.
+     * @see MappedTransport
+     */
+    public void upgrade(Transport transport) {
+        this.transport = transport;
+    }
+    
+    /**
+     * Gets the transport currently carrying the connection's packets.
+     * 
+     * @return The connection's transport.
+     */
+    public Transport getTransport() {
+        return transport;
+    }
+
+    /**
+     * Waits for data and creates a packet object from it,
+     * answering any pings from the peer on the way.
+     * 
+     * @return The packet that was read, never null.
+     * @throws IOException if the underlying stream throws an IOException,
+     *                     or the connection was closed while waiting,
+     *                     such as by the idle check when the peer goes silent.
      * @throws MalformedPacketException if the packet was malformed.
      */
     public Packet receivePacket() throws IOException, MalformedPacketException {
-        // hasNext blocks as long as the connection isn't closed.
-        if (!in.hasNextInt() || isDown()) {
-            throw new IOException("End of socket's stream.");
-        }
-        
-        try {
-            int packetType = in.nextInt();
-            String data = in.nextLine().trim();
-
-            switch (packetType) {
-                case Packet.MOV_PKT:
-                    return new Packet.MovePacket(data);
-                    
-                case Packet.DIR_PKT:
-                    return new Packet.DirectionPacket(data);
-                    
-                case Packet.DIE_PKT:
-                case Packet.PID_PKT:
-                case Packet.RND_PKT:
-                    return new Packet.IntPacket(data, packetType);
-                    
-                case Packet.MAP_PKT:
-                    return new Packet.MapPacket(data);
-                    
-                case Packet.POS_PKT:
-                    return new Packet.PositionPacket(data);
-                    
-                default:
-                    return new Packet.SimplePacket(data, packetType);
+        while (true) {
+            Packet p = transport.receive();
+            lastReceived = System.nanoTime();
+            if (PACKET_EVENTS.isEnabled()) {
+                PacketEvent event = new PacketEvent();
+                if (event.shouldCommit()) {
+                    event.type = p.getPacketType();
+                    event.size = p.getData().length();
+                    event.commit();
+                }
             }
             
-        } catch (Exception e) {
-            IOException ioe = in.ioException();
-            if (ioe != null) {
-                throw ioe;
+            if (p.getPacketType() != Packet.PNG_PKT) {
+                return p;
             }
-
-            throw new MalformedPacketException(e);
+            
+            // Pings are answered here, so any reader keeps its connection alive.
+            // The answer has the local time, for estimating clock offsets.
+            sendPacket(new Packet.SimplePacket(p.getData() + " " + now(), Packet.PON_PKT));
         }
     }
+    
+    /**
+     * Gets the time on the monotonic clock used in the protocol.
+     * It has no relation to the time of day,
+     * and clocks on different machines have different offsets.
+     * 
+     * @return The current time in microseconds.
+     * @see ClockSync
+     */
+    public static long now() {
+        return System.nanoTime() / 1000;
+    }
+
+    /**
+     * Watches the connection for silence.
+     * When nothing has been received for the ping interval,
+     * the peer is pinged, and it answers if it's still there.
+     * When nothing has been received for the idle timeout,
+     * the connection is closed, so readers blocking on it wake up.
+     * 
+     * @param timer The timer to run the checks on.
+     * @param pingMillis The number of milliseconds of silence before pinging.
+     * @param idleMillis The number of milliseconds of silence before closing.
+     */
+    public void watch(final HashedWheelTimer timer, final long pingMillis,
+                      final long idleMillis) {
+        idleCheck = timer.schedule(new Runnable() {
+            /**
+             * Pings or closes a silent connection, and checks again later.
+             */
+            public void run() {
+                if (isDown()) {
+                    return;
+                }
+                
+                long idle = (System.nanoTime() - lastReceived) / 1000000;
+                if (idle >= idleMillis) {
+                    System.err.printf("No packets from %s in %d ms, closing the connection.%n",
+                                      transport.getPeer(), idle);
+                    close();
+                    return;
+                }
+                
+                long next = pingMillis - idle;
+                if (next <= 0) {
+                    try {
+                        sendPacket(new Packet.SimplePacket(Long.toString(now()),
+                                                           Packet.PNG_PKT));
+                    } catch (IOException ioe) {
+                        close();
+                        return;
+                    }
+                    next = Math.min(pingMillis, idleMillis - idle);
+                }
+                idleCheck = timer.schedule(this, next);
+            }
+        }, pingMillis);
+    }
+    
+    /**
+     * Limits how fast bytes are read from the peer.
+     * 
+     * @param limiter The limiter to take a token from for every byte received,
+     *                or null to remove the limit.
+     */
+    public void setReceiveLimit(RateLimiter limiter) {
+        transport.setReceiveLimit(limiter);
+    }
+    
+    /**
+     * Gets the number of bytes received on this connection.
+     * 
+     * @return The number of bytes read from the transport.
+     */
+    public long getBytesReceived() {
+        return transport.getBytesReceived();
+    }
+    
+    /**
+     * Gets the number of bytes sent on this connection.
+     * 
+     * @return The number of bytes written to the transport.
+     */
+    public long getBytesSent() {
+        return transport.getBytesSent();
+    }
+    
+    /**
+     * Gets the time spent waiting because of the receive limit.
+     * 
+     * @return The number of nanoseconds spent waiting.
+     */
+    public long getThrottledNanos() {
+        return transport.getThrottledNanos();
+    }
 
     /**
      * Sends a packet on this connection.
@@ -117,62 +248,42 @@ public class Connection {
      * @throws IOException if the underlying output stream throws an IOException.
      */
     public void sendPacket(Packet p) throws IOException {
-        out.printf("%d %s%n", p.getPacketType(), p.getData());
-        if (out.checkError()) {
-            throw new IOException("Error sending packet.");
+        if (!PACKET_EVENTS.isEnabled()) {
+            transport.send(p);
+            return;
+        }
+        
+        PacketEvent event = new PacketEvent();
+        event.begin();
+        transport.send(p);
+        
+        if (event.shouldCommit()) {
+            event.type = p.getPacketType();
+            event.size = p.getData().length();
+            event.outgoing = true;
+            event.commit();
         }
     }
     
     /**
-     * Closes this connection's socket.
+     * Closes this connection's transport.
      */
     public void close() {
-        if (sock.isClosed()) {
-            return;
+        HashedWheelTimer.Timeout check = idleCheck;
+        if (check != null) {
+            check.cancel();
         }
         
-        try {
-            sock.close();
-        } catch (IOException ioe) {
-            System.err.println("Could not close connection:");
-            System.err.println(ioe.getMessage());
-        }
+        transport.close();
     }
     
     /**
-     * Checks if the socket has been closed, is disconnected
-     * or if either of its streams are closed.
-     * If the socket isn't connected, or one of the streams have been closed,
-     * the socket is closed.
+     * Checks if the connection's transport has been closed.
      * 
-     * @return true if the socket is closed, disconnected
-     *         or a one-way connection.
+     * @return true if the transport can no longer carry packets.
+     * @see SocketTransport#isDown()
      */
     public boolean isDown() {
-        if (sock.isClosed()) {
-            return true;
-            
-        } else if (!sock.isConnected()) {
-            try {
-                sock.close();
-            } catch (IOException ioe) {
-                System.err.println("Problem closing unconnected socket.");
-                System.err.println(ioe.getMessage());
-            }
-            
-            return true;
-            
-        } else if (sock.isInputShutdown() || sock.isOutputShutdown()) {
-            try {
-                sock.close();
-            } catch (IOException ioe) {
-                System.err.println("Problem closing one-way socket.");
-                System.err.println(ioe.getMessage());
-            }
-            
-            return true;
-        }
-        
-        return false;
+        return transport.isDown();
     }
 }
@@ -0,0 +1,92 @@
+/*
+ * Copyright (c) 2011, Åpen sone for eksperimentell informatikk
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *    - Redistributions of source code must retain the above copyright
+ *      notice, this list of conditions and the following disclaimer.
+ *    - Redistributions in binary form must reproduce the above copyright
+ *      notice, this list of conditions and the following disclaimer in the
+ *      documentation and/or other materials provided with the distribution.
+ *    - Neither the name of the <organization> nor the
+ *      names of its contributors may be used to endorse or promote products
+ *      derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package no.uio.ifi.sonen.aicycles.net;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import no.uio.ifi.sonen.aicycles.metrics.Counter;
+
+/**
+ * An output stream counting the bytes written through it.
+ *
+ * @author Sigmund Hansen <sigmunha@ifi.uio.no>
+ */
+public class CountingOutputStream extends FilterOutputStream {
+    
+    /** The number of bytes written. */
+    private volatile long bytesWritten = 0;
+    /** A counter shared with other streams to add the bytes written to, or null. */
+    private final Counter total;
+    
+    /**
+     * Creates a stream writing to another stream,
+     * adding the bytes written to a counter.
+     * 
+     * @param out The stream to write to.
+     * @param total The counter to add the bytes written to, or null.
+     */
+    public CountingOutputStream(OutputStream out, Counter total) {
+        super(out);
+        this.total = total;
+    }
+    
+    /**
+     * Counts bytes that have been written.
+     * 
+     * @param n The number of bytes written.
+     */
+    private void written(int n) {
+        bytesWritten += n;
+        if (total != null) {
+            total.add(n);
+        }
+    }
+    
+    /** {@inheritDoc} */
+    @Override
+    public void write(int b) throws IOException {
+        out.write(b);
+        written(1);
+    }
+    
+    /** {@inheritDoc} */
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        out.write(b, off, len);
+        written(len);
+    }
+    
+    /**
+     * Gets the number of bytes written through this stream.
+     * 
+     * @return The number of bytes written.
+     */
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+}
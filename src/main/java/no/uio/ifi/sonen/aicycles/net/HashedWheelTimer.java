@@ -0,0 +1,259 @@
+/*
+ * Copyright (c) 2011, Åpen sone for eksperimentell informatikk
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *    - Redistributions of source code must retain the above copyright
+ *      notice, this list of conditions and the following disclaimer.
+ *    - Redistributions in binary form must reproduce the above copyright
+ *      notice, this list of conditions and the following disclaimer in the
+ *      documentation and/or other materials provided with the distribution.
+ *    - Neither the name of the <organization> nor the
+ *      names of its contributors may be used to endorse or promote products
+ *      derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package no.uio.ifi.sonen.aicycles.net;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A timer running many short tasks after a delay on a single thread,
+ * like closing idle connections or sending heartbeat pings.
+ * 
+ * Time is divided into ticks, and the tasks are kept in a wheel of buckets,
+ * one bucket per tick, wrapping around.
+ * Every tick the worker thread runs the tasks in the current bucket
+ * that are due in this round, so scheduling and cancelling is cheap
+ * no matter how many tasks are waiting,
+ * at the cost of tasks running up to a tick late.
+ * 
+ * Tasks run on the timer's thread and must not block.
+ *
+ * @author Sigmund Hansen <sigmunha@ifi.uio.no>
+ */
+public class HashedWheelTimer {
+    
+    /** The number of milliseconds per tick of the shared timer. */
+    private static final long SHARED_TICK = 10;
+    /** The number of buckets in the shared timer's wheel. */
+    private static final int SHARED_WHEEL_SIZE = 512;
+    
+    /** The timer shared by all connections. */
+    private static HashedWheelTimer shared;
+    
+    /**
+     * A scheduled task, which can be cancelled until it has run.
+     */
+    public static final class Timeout {
+        /** The task is waiting to run. */
+        private static final int WAITING = 0;
+        /** The task has been cancelled. */
+        private static final int CANCELLED = 1;
+        /** The task has run. */
+        private static final int EXPIRED = 2;
+        
+        /** The task to run. */
+        private final Runnable task;
+        /** When to run the task, in nanoseconds since the timer started. */
+        private final long deadline;
+        /** The number of turns of the wheel left before the task is due. */
+        private long rounds;
+        /** Whether the task is waiting, cancelled or has run. */
+        private final AtomicInteger state = new AtomicInteger(WAITING);
+        
+        /**
+         * Creates a timeout.
+         * 
+         * @param task The task to run.
+         * @param deadline When to run the task, in nanoseconds since the timer started.
+         */
+        private Timeout(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+        
+        /**
+         * Cancels the task if it hasn't run yet.
+         * 
+         * @return true if the task was cancelled, false if it has run
+         *         or was already cancelled.
+         */
+        public boolean cancel() {
+            return state.compareAndSet(WAITING, CANCELLED);
+        }
+        
+        /**
+         * Checks whether the task has been cancelled.
+         * 
+         * @return true if the task was cancelled.
+         */
+        public boolean isCancelled() {
+            return state.get() == CANCELLED;
+        }
+        
+        /**
+         * Runs the task, unless it has been cancelled.
+         */
+        private void expire() {
+            if (!state.compareAndSet(WAITING, EXPIRED)) {
+                return;
+            }
+            
+            try {
+                task.run();
+            } catch (Throwable t) {
+                System.err.println("Timer task failed:");
+                t.printStackTrace();
+            }
+        }
+    }
+    
+    /** The length of a tick in nanoseconds. */
+    private final long tickNanos;
+    /** The buckets of tasks, only used by the worker thread. */
+    private final List<Timeout>[] wheel;
+    /** Tasks scheduled since the last tick, waiting to be put in the wheel. */
+    private final ConcurrentLinkedQueue<Timeout> pending =
+            new ConcurrentLinkedQueue<Timeout>();
+    /** When the timer started, from System.nanoTime. */
+    private final long startTime = System.nanoTime();
+    /** The number of ticks that have passed, only used by the worker thread. */
+    private long tick = 0;
+    
+    /**
+     * Creates a timer and starts its thread.
+     * 
+     * @param tickMillis The number of milliseconds per tick.
+     * @param wheelSize The number of buckets in the wheel, a power of two.
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public HashedWheelTimer(long tickMillis, int wheelSize) {
+        if (Integer.bitCount(wheelSize) != 1) {
+            throw new IllegalArgumentException("The wheel size must be a power of two.");
+        }
+        
+        this.tickNanos = tickMillis * 1000000;
+        this.wheel = new List[wheelSize];
+        for (int i = 0; i < wheelSize; i++) {
+            wheel[i] = new ArrayList<Timeout>();
+        }
+        
+        Thread worker = new Thread(new Runnable() {
+            /**
+             * Runs the due tasks every tick.
+             */
+            public void run() {
+                while (true) {
+                    waitForNextTick();
+                    transferPending();
+                    expire(wheel[(int) (tick & (wheel.length - 1))]);
+                    tick++;
+                }
+            }
+        }, "timer");
+        worker.setDaemon(true);
+        worker.start();
+    }
+    
+    /**
+     * Gets the timer shared by all connections, starting it if needed.
+     * 
+     * @return The shared timer.
+     */
+    public static synchronized HashedWheelTimer getShared() {
+        if (shared == null) {
+            shared = new HashedWheelTimer(SHARED_TICK, SHARED_WHEEL_SIZE);
+        }
+        return shared;
+    }
+    
+    /**
+     * Schedules a task to run after a delay.
+     * 
+     * @param task The task to run.
+     * @param delayMillis The number of milliseconds to wait before running it.
+     * @return A timeout that can be used to cancel the task.
+     */
+    public Timeout schedule(Runnable task, long delayMillis) {
+        long deadline = System.nanoTime() - startTime + delayMillis * 1000000;
+        Timeout t = new Timeout(task, deadline);
+        pending.offer(t);
+        return t;
+    }
+    
+    /**
+     * Sleeps until the end of the current tick.
+     */
+    private void waitForNextTick() {
+        long deadline = (tick + 1) * tickNanos;
+        while (true) {
+            long sleep = deadline - (System.nanoTime() - startTime);
+            if (sleep <= 0) {
+                return;
+            }
+            
+            try {
+                Thread.sleep(sleep / 1000000, (int) (sleep % 1000000));
+            } catch (InterruptedException e) {
+            }
+        }
+    }
+    
+    /**
+     * Puts newly scheduled tasks in their buckets.
+     */
+    private void transferPending() {
+        Timeout t;
+        while ((t = pending.poll()) != null) {
+            if (t.isCancelled()) {
+                continue;
+            }
+            
+            // Tasks that are already due go in the current bucket.
+            long due = Math.max(t.deadline / tickNanos, tick);
+            t.rounds = (due - tick) / wheel.length;
+            wheel[(int) (due & (wheel.length - 1))].add(t);
+        }
+    }
+    
+    /**
+     * Runs the tasks in a bucket that are due in this turn of the wheel,
+     * and drops cancelled tasks.
+     * 
+     * @param bucket The bucket of the current tick.
+     */
+    private void expire(List<Timeout> bucket) {
+        int kept = 0;
+        for (int i = 0; i < bucket.size(); i++) {
+            Timeout t = bucket.get(i);
+            if (t.isCancelled()) {
+                continue;
+            } else if (t.rounds <= 0) {
+                t.expire();
+                continue;
+            }
+            
+            t.rounds--;
+            bucket.set(kept++, t);
+        }
+        
+        for (int i = bucket.size() - 1; i >= kept; i--) {
+            bucket.remove(i);
+        }
+    }
+}
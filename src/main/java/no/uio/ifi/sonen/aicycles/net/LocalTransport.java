@@ -0,0 +1,212 @@
+/*
+ * Copyright (c) 2011, Åpen sone for eksperimentell informatikk
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *    - Redistributions of source code must retain the above copyright
+ *      notice, this list of conditions and the following disclaimer.
+ *    - Redistributions in binary form must reproduce the above copyright
+ *      notice, this list of conditions and the following disclaimer in the
+ *      documentation and/or other materials provided with the distribution.
+ *    - Neither the name of the <organization> nor the
+ *      names of its contributors may be used to endorse or promote products
+ *      derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package no.uio.ifi.sonen.aicycles.net;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Carries packets between a client and the server in the same process,
+ * handing the packet objects over through a queue at each end,
+ * without turning them into text or touching the network.
+ * Packets are immutable, so both ends can share them.
+ * 
+ * Transports come in connected pairs, and closing either end closes both.
+ * The bytes counted are those the packets would have taken up on a socket.
+ *
+ * @author Sigmund Hansen <sigmunha@ifi.uio.no>
+ */
+public class LocalTransport implements Transport {
+    
+    /** Put in the queues when the pair is closed, to wake up the readers. */
+    private static final Packet CLOSED = new Packet.SimplePacket("", Packet.BYE_PKT);
+    
+    /** The packets sent by the peer, waiting to be received. */
+    private final LinkedBlockingQueue<Packet> inbox = new LinkedBlockingQueue<Packet>();
+    /** Whether the pair has been closed, shared by both ends. */
+    private final AtomicBoolean closed;
+    /** Describes the peer. */
+    private final String peerName;
+    /** The other end of the pair. */
+    private LocalTransport peer;
+    /** Limits how fast bytes are received, or null. */
+    private volatile RateLimiter limiter;
+    /** The bytes received, only changed by the reader. */
+    private volatile long bytesReceived = 0;
+    /** The bytes sent, by any thread. */
+    private final AtomicLong bytesSent = new AtomicLong();
+    /** The time spent waiting for the limiter, only changed by the reader. */
+    private volatile long throttledNanos = 0;
+    
+    /**
+     * Creates one end of a pair.
+     * 
+     * @param peerName Describes the other end.
+     * @param closed Whether the pair has been closed.
+     */
+    private LocalTransport(String peerName, AtomicBoolean closed) {
+        this.peerName = peerName;
+        this.closed = closed;
+    }
+    
+    /**
+     * Creates a connected pair of transports.
+     * 
+     * @return The client's end first, then the server's end.
+     */
+    public static LocalTransport[] createPair() {
+        AtomicBoolean closed = new AtomicBoolean();
+        LocalTransport client = new LocalTransport("the server in this process", closed);
+        LocalTransport server = new LocalTransport("a client in this process", closed);
+        client.peer = server;
+        server.peer = client;
+        return new LocalTransport[] {client, server};
+    }
+    
+    /**
+     * Gets the number of bytes a packet would take up on a socket,
+     * the type, a space, the data and a newline.
+     * 
+     * @param p The packet.
+     * @return The packet's size as text.
+     */
+    static int size(Packet p) {
+        return size(p.getPacketType(), p.getData().length());
+    }
+    
+    /**
+     * Gets the number of bytes a packet would take up on a socket.
+     * 
+     * @param type The packet's type.
+     * @param length The length of the packet's data.
+     * @return The packet's size as text.
+     */
+    static int size(int type, int length) {
+        int digits = 1;
+        for (; type >= 10; type /= 10) {
+            digits++;
+        }
+        return digits + length + 2;
+    }
+    
+    /**
+     * Waits for the next packet sent by the peer.
+     * 
+     * @return The packet.
+     * @throws IOException if the pair is closed or the wait is interrupted.
+     */
+    public Packet receive() throws IOException {
+        if (closed.get()) {
+            throw new IOException("End of local connection.");
+        }
+        
+        Packet p;
+        try {
+            p = inbox.take();
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("Interrupted waiting for a packet.");
+        }
+        if (p == CLOSED) {
+            inbox.offer(CLOSED);
+            throw new IOException("End of local connection.");
+        }
+        
+        int n = size(p);
+        bytesReceived += n;
+        Connection.BYTES_RECEIVED.add(n);
+        RateLimiter l = limiter;
+        if (l != null) {
+            throttledNanos += l.acquire(n);
+        }
+        return p;
+    }
+    
+    /**
+     * Hands a packet to the peer.
+     * 
+     * @param p The packet to send.
+     * @throws IOException if the pair is closed.
+     */
+    public void send(Packet p) throws IOException {
+        if (closed.get()) {
+            throw new IOException("Error sending packet, local connection closed.");
+        }
+        
+        peer.inbox.offer(p);
+        int n = size(p);
+        bytesSent.addAndGet(n);
+        Connection.BYTES_SENT.add(n);
+    }
+    
+    /** {@inheritDoc} */
+    public void setReceiveLimit(RateLimiter limiter) {
+        this.limiter = limiter;
+    }
+    
+    /** {@inheritDoc} */
+    public long getBytesReceived() {
+        return bytesReceived;
+    }
+    
+    /** {@inheritDoc} */
+    public long getBytesSent() {
+        return bytesSent.get();
+    }
+    
+    /** {@inheritDoc} */
+    public long getThrottledNanos() {
+        return throttledNanos;
+    }
+    
+    /** {@inheritDoc} */
+    public String getPeer() {
+        return peerName;
+    }
+    
+    /** {@inheritDoc} */
+    public boolean isLoopback() {
+        return true;
+    }
+    
+    /** {@inheritDoc} */
+    public boolean isDown() {
+        return closed.get();
+    }
+    
+    /**
+     * Closes both ends of the pair, waking up their readers.
+     */
+    public void close() {
+        if (closed.compareAndSet(false, true)) {
+            inbox.offer(CLOSED);
+            peer.inbox.offer(CLOSED);
+        }
+    }
+}
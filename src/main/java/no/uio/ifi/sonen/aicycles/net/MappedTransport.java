@@ -0,0 +1,446 @@
+/*
+ * Copyright (c) 2011, Åpen sone for eksperimentell informatikk
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *    - Redistributions of source code must retain the above copyright
+ *      notice, this list of conditions and the following disclaimer.
+ *    - Redistributions in binary form must reproduce the above copyright
+ *      notice, this list of conditions and the following disclaimer in the
+ *      documentation and/or other materials provided with the distribution.
+ *    - Neither the name of the <organization> nor the
+ *      names of its contributors may be used to endorse or promote products
+ *      derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package no.uio.ifi.sonen.aicycles.net;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Carries packets between processes on the same host
+ * through a memory-mapped file, without a round trip through the TCP stack.
+ * 
+ * The file holds two rings, one for packets from the server to the client
+ * and one for the other way. Each ring has a single writer and a single reader,
+ * which only share the ring's head, moved by the writer,
+ * and its tail, moved by the reader, so neither needs a lock.
+ * A packet is a record of its data length, type and data,
+ * aligned to eight bytes. A record that doesn't fit before the end of the ring
+ * is moved to the start, and a negative length marks the skipped space.
+ * 
+ * There is no way to wake up a thread in another process,
+ * so readers spin for a while before parking,
+ * or yield to the peer on a single core.
+ * The spin time, in microseconds, is set by aicycles.sharedMemory.spin,
+ * and decides how fast a packet is noticed after a quiet spell,
+ * at the cost of keeping a core busy while spinning.
+ * 
+ * The server creates the file after the client asks for it in the handshake,
+ * and sends its path in a {@link Packet#SHM_PKT}.
+ * Only the server's user can open the file, so the bot must run as that user.
+ * The socket the handshake started on stays open
+ * until the mapped transport is closed.
+ * The bytes counted are those the packets would have taken up on a socket.
+ *
+ * @author Sigmund Hansen <sigmunha@ifi.uio.no>
+ */
+public class MappedTransport implements Transport {
+    
+    /** Identifies the file as one made for this transport. */
+    private static final int MAGIC = 0x41494331;
+    /** The offset of the flag set when either side closes the transport. */
+    private static final int CLOSED_OFFSET = 8;
+    /** The size of the file header, and of the ring headers. */
+    private static final int HEADER = 128;
+    /** The offset of the reader's tail in a ring header, on its own cache line. */
+    private static final int TAIL_OFFSET = 64;
+    /** The number of bytes of data in each ring, a power of two. */
+    private static final int CAPACITY = 1 << 20;
+    /** The size of a record's length and type. */
+    private static final int RECORD_HEADER = 8;
+    /** The number of nanoseconds to spin waiting before parking. */
+    private static final long SPIN_NANOS = Long.getLong("aicycles.sharedMemory.spin", 50) * 1000;
+    /** Whether spinning leaves a core for the peer, or should yield to it. */
+    private static final boolean MULTICORE = Runtime.getRuntime().availableProcessors() > 1;
+    /** The number of nanoseconds to park between checks after spinning. */
+    private static final long PARK_NANOS = 100000;
+    
+    /** Reads and writes longs in the mapped file with memory ordering. */
+    private static final VarHandle LONGS =
+            MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());
+    /** Reads and writes ints in the mapped file with memory ordering. */
+    private static final VarHandle INTS =
+            MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.nativeOrder());
+    
+    /** The mapped file. */
+    private final MappedByteBuffer map;
+    /** The mapped file, or null if the peer owns it. */
+    private final File file;
+    /** The transport of the handshake, kept open as long as this one. */
+    private final Transport lifeline;
+    /** The offset of the ring written by this side. */
+    private final int out;
+    /** The offset of the ring read by this side. */
+    private final int in;
+    /** The data of the ring written by this side. */
+    private final ByteBuffer outData;
+    /** The data of the ring read by this side. */
+    private final ByteBuffer inData;
+    /** Guards the writing side, as pings may be sent from another thread. */
+    private final Object writeLock = new Object();
+    /** The data of the packet being sent, for packets that encode themselves. */
+    private final byte[] encoded = new byte[256];
+    /** Limits how fast bytes are received, or null. */
+    private volatile RateLimiter limiter;
+    /** The bytes received, only changed by the reader. */
+    private volatile long bytesReceived = 0;
+    /** The bytes sent, only changed under the write lock. */
+    private volatile long bytesSent = 0;
+    /** The time spent waiting for the limiter, only changed by the reader. */
+    private volatile long throttledNanos = 0;
+    
+    /**
+     * Maps a transport's file.
+     * 
+     * @param map The mapped file.
+     * @param file The file to delete when closed, or null.
+     * @param server Whether this is the server's side.
+     * @param lifeline The transport of the handshake.
+     */
+    private MappedTransport(MappedByteBuffer map, File file, boolean server, Transport lifeline) {
+        this.map = map;
+        this.file = file;
+        this.lifeline = lifeline;
+        int toClient = HEADER;
+        int toServer = HEADER + HEADER + CAPACITY;
+        out = server ? toClient : toServer;
+        in = server ? toServer : toClient;
+        outData = slice(map, out + HEADER);
+        inData = slice(map, in + HEADER);
+    }
+    
+    /**
+     * Creates the file of a new transport, for the server's side.
+     * 
+     * @param lifeline The transport of the handshake.
+     * @return The server's side of the transport.
+     * @throws IOException if the file could not be created or mapped.
+     */
+    public static MappedTransport create(Transport lifeline) throws IOException {
+        File file = Files.createTempFile("aicycles-", ".shm").toFile();
+        file.deleteOnExit();
+        MappedByteBuffer map = map(file);
+        map.putInt(4, CAPACITY);
+        INTS.setRelease(map, 0, MAGIC);
+        return new MappedTransport(map, file, true, lifeline);
+    }
+    
+    /**
+     * Maps the file of a transport created by the server, for the client's side.
+     * 
+     * @param path The path of the file, as sent by the server.
+     * @param lifeline The transport of the handshake.
+     * @return The client's side of the transport.
+     * @throws IOException if the file could not be mapped or wasn't made by the server.
+     */
+    public static MappedTransport open(String path, Transport lifeline) throws IOException {
+        MappedByteBuffer map = map(new File(path));
+        if ((int) INTS.getAcquire(map, 0) != MAGIC || map.getInt(4) != CAPACITY) {
+            throw new IOException("Not a shared memory transport: " + path);
+        }
+        return new MappedTransport(map, null, false, lifeline);
+    }
+    
+    /**
+     * Maps a file of the size of a transport, creating it if necessary.
+     * 
+     * @param file The file to map.
+     * @return The mapped file, in the platform's byte order.
+     * @throws IOException if the file could not be mapped.
+     */
+    private static MappedByteBuffer map(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            // The mapping stays valid after the channel is closed.
+            MappedByteBuffer map = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+                                                        HEADER + 2 * (HEADER + CAPACITY));
+            map.order(ByteOrder.nativeOrder());
+            return map;
+        } finally {
+            raf.close();
+        }
+    }
+    
+    /**
+     * Gets the path of the file, for the client to map.
+     * 
+     * @return The absolute path of the file, or null on the client's side.
+     */
+    public String getPath() {
+        return file == null ? null : file.getAbsolutePath();
+    }
+    
+    /**
+     * Gets a view of a ring's data.
+     * 
+     * @param map The mapped file.
+     * @param offset The offset of the data.
+     * @return The data, starting at index 0.
+     */
+    private static ByteBuffer slice(ByteBuffer map, int offset) {
+        ByteBuffer b = map.duplicate();
+        b.position(offset);
+        b.limit(offset + CAPACITY);
+        return b.slice().order(ByteOrder.nativeOrder());
+    }
+    
+    /**
+     * Waits for the next packet in the incoming ring.
+     * 
+     * @return The packet.
+     * @throws IOException if the transport is closed or the wait is interrupted.
+     * @throws MalformedPacketException if the peer wrote a malformed packet,
+     *                                  the transport is closed if its length
+     *                                  doesn't fit in the ring.
+     */
+    public Packet receive() throws IOException, MalformedPacketException {
+        long tail = map.getLong(in + TAIL_OFFSET);
+        while (true) {
+            await(in, tail + RECORD_HEADER);
+            int index = (int) (tail & (CAPACITY - 1));
+            int length = inData.getInt(index);
+            if (length >= 0) {
+                break;
+            }
+            
+            // The rest of the ring was skipped, the record is at the start.
+            tail += CAPACITY - index;
+            LONGS.setRelease(map, in + TAIL_OFFSET, tail);
+        }
+        
+        int index = (int) (tail & (CAPACITY - 1));
+        int length = inData.getInt(index);
+        if (length > CAPACITY / 2 - RECORD_HEADER
+                || index + RECORD_HEADER + length > CAPACITY) {
+            // The ring can't be read past a record of unknown size.
+            Connection.MALFORMED_PACKETS.increment();
+            close();
+            throw new MalformedPacketException(
+                    new IOException("Record of " + length + " bytes at " + index + "."));
+        }
+        
+        int type = inData.getInt(index + 4);
+        byte[] data = new byte[length];
+        ByteBuffer b = inData.duplicate();
+        b.position(index + RECORD_HEADER);
+        b.get(data);
+        LONGS.setRelease(map, in + TAIL_OFFSET, tail + align(RECORD_HEADER + length));
+        
+        Packet p;
+        try {
+            p = Packet.createPacket(type, new String(data, StandardCharsets.UTF_8));
+        } catch (Exception e) {
+            Connection.MALFORMED_PACKETS.increment();
+            throw new MalformedPacketException(e);
+        }
+        
+        int n = LocalTransport.size(p);
+        bytesReceived += n;
+        Connection.BYTES_RECEIVED.add(n);
+        RateLimiter l = limiter;
+        if (l != null) {
+            throttledNanos += l.acquire(n);
+        }
+        return p;
+    }
+    
+    /**
+     * Writes a packet to the outgoing ring,
+     * waiting for the reader if the ring is full.
+     * 
+     * @param p The packet to send.
+     * @throws IOException if the transport is closed or the packet is too large.
+     */
+    public void send(Packet p) throws IOException {
+        synchronized (writeLock) {
+            byte[] data = encoded;
+            int length = p.encodeData(encoded, 0);
+            int n = LocalTransport.size(p.getPacketType(), length);
+            if (length < 0) {
+                data = p.getData().getBytes(StandardCharsets.UTF_8);
+                length = data.length;
+                n = LocalTransport.size(p);
+            }
+            int size = align(RECORD_HEADER + length);
+            if (size > CAPACITY / 2) {
+                throw new IOException("Packet too large for shared memory: " + size + " bytes.");
+            }
+            
+            long head = map.getLong(out);
+            int index = (int) (head & (CAPACITY - 1));
+            if (index + size > CAPACITY) {
+                // Mark the rest of the ring as skipped, and start over at the beginning.
+                awaitRoom(head, CAPACITY - index);
+                outData.putInt(index, -1);
+                head += CAPACITY - index;
+                LONGS.setRelease(map, out, head);
+                index = 0;
+            }
+            
+            awaitRoom(head, size);
+            outData.putInt(index, length);
+            outData.putInt(index + 4, p.getPacketType());
+            ByteBuffer b = outData.duplicate();
+            b.position(index + RECORD_HEADER);
+            b.put(data, 0, length);
+            LONGS.setRelease(map, out, head + size);
+            
+            bytesSent += n;
+            Connection.BYTES_SENT.add(n);
+        }
+    }
+    
+    /**
+     * Rounds a record size up to keep the records aligned.
+     * 
+     * @param size The size of a record.
+     * @return The size taken up in the ring.
+     */
+    private static int align(int size) {
+        return (size + 7) & ~7;
+    }
+    
+    /**
+     * Waits until the incoming ring's head has reached a position.
+     * 
+     * @param ring The offset of the ring.
+     * @param position The position to wait for.
+     * @throws IOException if the transport is closed or the wait is interrupted.
+     */
+    private void await(int ring, long position) throws IOException {
+        long start = 0;
+        while ((long) LONGS.getAcquire(map, ring) < position) {
+            start = pause(start);
+        }
+    }
+    
+    /**
+     * Waits until the outgoing ring has room for some bytes after the head.
+     * 
+     * @param head The writer's head.
+     * @param size The number of bytes needed.
+     * @throws IOException if the transport is closed or the wait is interrupted.
+     */
+    private void awaitRoom(long head, int size) throws IOException {
+        long start = 0;
+        while (head + size - (long) LONGS.getAcquire(map, out + TAIL_OFFSET) > CAPACITY) {
+            start = pause(start);
+        }
+    }
+    
+    /**
+     * Waits a little while, spinning at first and then parking.
+     * 
+     * @param start When the waiting started, from System.nanoTime,
+     *              or 0 the first time.
+     * @return When the waiting started.
+     * @throws IOException if the transport is closed or the thread interrupted.
+     */
+    private long pause(long start) throws IOException {
+        if (isDown()) {
+            throw new IOException("End of shared memory connection.");
+        }
+        if (Thread.interrupted()) {
+            throw new InterruptedIOException("Interrupted waiting for shared memory.");
+        }
+        
+        long now = System.nanoTime();
+        if (start == 0) {
+            return now;
+        }
+        if (now - start >= SPIN_NANOS) {
+            LockSupport.parkNanos(PARK_NANOS);
+        } else if (MULTICORE) {
+            Thread.onSpinWait();
+        } else {
+            Thread.yield();
+        }
+        return start;
+    }
+    
+    /** {@inheritDoc} */
+    public void setReceiveLimit(RateLimiter limiter) {
+        this.limiter = limiter;
+    }
+    
+    /** {@inheritDoc} */
+    public long getBytesReceived() {
+        return bytesReceived + lifeline.getBytesReceived();
+    }
+    
+    /** {@inheritDoc} */
+    public long getBytesSent() {
+        return bytesSent + lifeline.getBytesSent();
+    }
+    
+    /** {@inheritDoc} */
+    public long getThrottledNanos() {
+        return throttledNanos + lifeline.getThrottledNanos();
+    }
+    
+    /** {@inheritDoc} */
+    public String getPeer() {
+        return lifeline.getPeer() + " (shared memory)";
+    }
+    
+    /** {@inheritDoc} */
+    public boolean isLoopback() {
+        return true;
+    }
+    
+    /**
+     * Checks whether either side has closed the transport,
+     * or the handshake's transport has gone down.
+     * 
+     * @return true if the transport is closed.
+     */
+    public boolean isDown() {
+        return (int) INTS.getVolatile(map, CLOSED_OFFSET) != 0 || lifeline.isDown();
+    }
+    
+    /**
+     * Closes the transport for both sides, and the handshake's transport.
+     * The server's side deletes the file, the mapping stays until collected.
+     */
+    public void close() {
+        INTS.setVolatile(map, CLOSED_OFFSET, 1);
+        lifeline.close();
+        if (file != null) {
+            file.delete();
+        }
+    }
+}
@@ -26,7 +26,9 @@
  */
 package no.uio.ifi.sonen.aicycles.net;
 
+import java.nio.charset.StandardCharsets;
 import java.util.Scanner;
+import no.uio.ifi.sonen.aicycles.Cycle;
 import no.uio.ifi.sonen.aicycles.Direction;
 
 /**
@@ -50,6 +52,16 @@ public abstract class Packet {
     public static final int POS_PKT = 103;
     /** Random seed packet. */
     public static final int RND_PKT = 104;
+    /** Heartbeat ping, answered with a pong holding the same data. */
+    public static final int PNG_PKT = 105;
+    /** Heartbeat pong, the answer to a ping. */
+    public static final int PON_PKT = 106;
+    /** Switch to the shared memory transport in the file named in the data. */
+    public static final int SHM_PKT = 107;
+    /** Read the grid and cycles from the shared grid in the file named in the data. */
+    public static final int VIW_PKT = 108;
+    /** The token a player gives to rejoin the match, sent before its ID. */
+    public static final int TOK_PKT = 109;
     /** Disconnect packet. */
     public static final int BYE_PKT = 199;
     
@@ -60,8 +72,52 @@ public abstract class Packet {
     public static final int DIR_PKT = 401;
     /** Packet which tells the client that all players have been updated. */
     public static final int UPD_PKT = 402;
+    /** A snapshot of the whole game state. */
+    public static final int SNP_PKT = 403;
     /** A player has crashed. */
     public static final int DIE_PKT = 404;
+    /** A client has lost track of the game state and wants a snapshot. */
+    public static final int RSY_PKT = 405;
+    
+    /**
+     * Creates a packet object from the type and data of a received packet.
+     * 
+     * @param packetType The packet's type number.
+     * @param data The packet's data, without surrounding whitespace.
+     * @return The packet, a simple packet for types without their own class.
+     * @throws RuntimeException if the data doesn't match the packet type,
+     *                          like an InputMismatchException
+     *                          or an IllegalArgumentException.
+     */
+    public static Packet createPacket(int packetType, String data) {
+        switch (packetType) {
+            case MOV_PKT:
+                return new MovePacket(data);
+                
+            case DIR_PKT:
+                return new DirectionPacket(data);
+                
+            case DIE_PKT:
+            case PID_PKT:
+            case RND_PKT:
+                return new IntPacket(data, packetType);
+                
+            case MAP_PKT:
+                return new MapPacket(data);
+                
+            case POS_PKT:
+                return new PositionPacket(data);
+                
+            case UPD_PKT:
+                return new UpdatePacket(data);
+                
+            case SNP_PKT:
+                return new SnapshotPacket(data);
+                
+            default:
+                return new SimplePacket(data, packetType);
+        }
+    }
     
     /**
      * Gets the textual data associated with this packet.
@@ -72,6 +128,89 @@ public abstract class Packet {
         return data;
     }
     
+    /**
+     * Writes the packet's data as ASCII text, so transports can send it
+     * from a reused buffer without creating strings.
+     * 
+     * @param buf The buffer to write to.
+     * @param off Where in the buffer to start.
+     * @return The offset after the data, or -1 if it doesn't fit in the buffer
+     *         or isn't all ASCII, in which case the caller encodes {@link #getData()}.
+     */
+    public int encodeData(byte[] buf, int off) {
+        String s = getData();
+        int n = s.length();
+        if (n > buf.length - off) {
+            return -1;
+        }
+        
+        for (int i = 0; i < n; i++) {
+            char c = s.charAt(i);
+            if (c >= 0x80) {
+                return -1;
+            }
+            buf[off + i] = (byte) c;
+        }
+        return off + n;
+    }
+    
+    /**
+     * Writes a number in decimal as ASCII text.
+     * 
+     * @param buf The buffer to write to, with room for a sign and 19 digits.
+     * @param off Where in the buffer to start.
+     * @param value The number to write.
+     * @return The offset after the number.
+     */
+    static int putDecimal(byte[] buf, int off, long value) {
+        if (value < 0) {
+            buf[off++] = '-';
+        }
+        
+        int digits = 1;
+        for (long v = value / 10; v != 0; v /= 10) {
+            digits++;
+        }
+        // Negative remainders keep Long.MIN_VALUE from overflowing.
+        for (int i = off + digits - 1; i >= off; i--) {
+            buf[i] = (byte) ('0' + Math.abs(value % 10));
+            value /= 10;
+        }
+        return off + digits;
+    }
+    
+    /**
+     * Writes a number as 16 lowercase hexadecimal digits of ASCII text.
+     * 
+     * @param buf The buffer to write to.
+     * @param off Where in the buffer to start.
+     * @param value The number to write.
+     * @return The offset after the number.
+     */
+    static int putHex(byte[] buf, int off, long value) {
+        for (int i = 15; i >= 0; i--) {
+            int digit = (int) (value & 0xf);
+            buf[off + i] = (byte) (digit < 10 ? '0' + digit : 'a' + digit - 10);
+            value >>>= 4;
+        }
+        return off + 16;
+    }
+    
+    /**
+     * Writes ASCII text.
+     * 
+     * @param buf The buffer to write to.
+     * @param off Where in the buffer to start.
+     * @param text The text, which must be ASCII.
+     * @return The offset after the text.
+     */
+    private static int putText(byte[] buf, int off, String text) {
+        for (int i = 0; i < text.length(); i++) {
+            buf[off + i] = (byte) text.charAt(i);
+        }
+        return off + text.length();
+    }
+    
     /**
      * Gets the packet's type number.
      * 
@@ -197,11 +336,15 @@ public abstract class Packet {
     
     /**
      * A packet describing direction changes for players.
+     * It may be tagged with the number of the update the client is answering,
+     * so the server can tell when the command is late.
      */
     public static class DirectionPacket extends Packet {
         
         /** The new direction. */
         private Direction dir;
+        /** The update the command answers, or -1 if it isn't tagged. */
+        private int tick = -1;
         
         /**
          * Creates a new direction packet from the given direction.
@@ -213,17 +356,31 @@ public abstract class Packet {
             this.data = dir.name();
         }
         
+        /**
+         * Creates a new direction packet answering the given update.
+         * 
+         * @param dir The direction to change into.
+         * @param tick The number of the last update the client has seen.
+         */
+        public DirectionPacket(Direction dir, int tick) {
+            this.dir = dir;
+            this.tick = tick;
+            this.data = String.format("%s %d", dir.name(), tick);
+        }
+        
         /**
          * Creates a new direction packet from a string.
          * 
-         * @param data A string containing the direction to change into.
+         * @param data A string containing the direction to change into,
+         *             and optionally the update it answers.
          */
         public DirectionPacket(String data) {
-            this.dir = Direction.valueOf(data);
-            this.data = data;
-            if (this.dir == null) {
-                throw new IllegalArgumentException(String.format("Not a direction: %s", data));
+            Scanner s = new Scanner(data);
+            this.dir = Direction.valueOf(s.next());
+            if (s.hasNextInt()) {
+                this.tick = s.nextInt();
             }
+            this.data = data;
         }
         
         /**
@@ -235,6 +392,15 @@ public abstract class Packet {
             return dir;
         }
         
+        /**
+         * Gets the number of the update the command answers.
+         * 
+         * @return The update number, or -1 if the command isn't tagged.
+         */
+        public int getTick() {
+            return tick;
+        }
+        
         /** {@inheritDoc} */
         public int getPacketType() {
             return DIR_PKT;
@@ -386,4 +552,423 @@ public abstract class Packet {
             return MAP_PKT;
         }
     }
+    
+    /**
+     * A packet telling clients that all players have been updated.
+     * It holds the number of the update,
+     * and may hold fields on the form key=value after it.
+     * Clients should ignore fields they don't know.
+     */
+    public static class UpdatePacket extends Packet {
+        
+        /** The longest data an update can have, with a checksum and times. */
+        private static final int MAX_LENGTH = 96;
+        
+        /** The number of the update. */
+        private int tick;
+        /** The checksum of the game state after the update. */
+        private long checksum;
+        /** Whether the packet has a checksum. */
+        private boolean hasChecksum;
+        /** When the update started being computed, in server microseconds. */
+        private long start;
+        /** When the next update starts being computed, in server microseconds. */
+        private long deadline;
+        /** Whether the packet has the start and deadline of the tick. */
+        private boolean hasTiming;
+        
+        /**
+         * Creates an update packet without a checksum.
+         * 
+         * @param tick The number of the update.
+         */
+        public UpdatePacket(int tick) {
+            this.tick = tick;
+        }
+        
+        /**
+         * Creates an update packet with a checksum of the game state.
+         * 
+         * @param tick The number of the update.
+         * @param checksum The checksum of the game state.
+         * @see no.uio.ifi.sonen.aicycles.Checksum
+         */
+        public UpdatePacket(int tick, long checksum) {
+            this.tick = tick;
+            this.checksum = checksum;
+            this.hasChecksum = true;
+        }
+        
+        /**
+         * Creates an update packet with the start and deadline of the tick,
+         * and optionally a checksum of the game state.
+         * Times are in microseconds on the server's clock.
+         * 
+         * @param tick The number of the update.
+         * @param start When the update started being computed.
+         * @param deadline When the next update starts being computed,
+         *                 the last chance for commands answering this one.
+         * @param checksum The checksum of the game state, or null for none.
+         * @see Connection#now()
+         */
+        public UpdatePacket(int tick, long start, long deadline, Long checksum) {
+            this(tick, checksum != null, checksum == null ? 0 : checksum, true, start, deadline);
+        }
+        
+        /**
+         * Creates an update packet with any of the optional fields,
+         * without boxing the checksum.
+         * 
+         * @param tick The number of the update.
+         * @param hasChecksum Whether the update has a checksum.
+         * @param checksum The checksum of the game state.
+         * @param hasTiming Whether the update has the start and deadline of the tick.
+         * @param start When the update started being computed.
+         * @param deadline When the next update starts being computed.
+         */
+        public UpdatePacket(int tick, boolean hasChecksum, long checksum,
+                            boolean hasTiming, long start, long deadline) {
+            this.tick = tick;
+            this.hasChecksum = hasChecksum;
+            this.checksum = hasChecksum ? checksum : 0;
+            this.hasTiming = hasTiming;
+            this.start = hasTiming ? start : 0;
+            this.deadline = hasTiming ? deadline : 0;
+        }
+        
+        /**
+         * Creates an update packet from a string.
+         * 
+         * @param data A string containing the update number and any fields.
+         */
+        public UpdatePacket(String data) {
+            this.data = data;
+            Scanner s = new Scanner(data);
+            this.tick = s.nextInt();
+            while (s.hasNext()) {
+                String field = s.next();
+                if (field.startsWith("sum=")) {
+                    this.checksum = Long.parseUnsignedLong(field.substring(4), 16);
+                    this.hasChecksum = true;
+                } else if (field.startsWith("start=")) {
+                    this.start = Long.parseLong(field.substring(6));
+                    this.hasTiming = true;
+                } else if (field.startsWith("deadline=")) {
+                    this.deadline = Long.parseLong(field.substring(9));
+                }
+            }
+        }
+        
+        /**
+         * Gets the update as text, formatted the first time it's asked for,
+         * as transports that can write {@link #encodeData(byte[], int)} never do.
+         * 
+         * @return The update number followed by any fields.
+         */
+        @Override
+        public String getData() {
+            if (data == null) {
+                byte[] buf = new byte[MAX_LENGTH];
+                data = new String(buf, 0, encodeData(buf, 0), StandardCharsets.US_ASCII);
+            }
+            return data;
+        }
+        
+        /**
+         * Writes the update number and fields as text, without formatting a string.
+         * 
+         * @param buf The buffer to write to.
+         * @param off Where in the buffer to start.
+         * @return The offset after the data, or -1 if the buffer is too small.
+         */
+        @Override
+        public int encodeData(byte[] buf, int off) {
+            if (data != null) {
+                return super.encodeData(buf, off);
+            } else if (buf.length - off < MAX_LENGTH) {
+                return -1;
+            }
+            
+            off = putDecimal(buf, off, tick);
+            if (hasChecksum) {
+                off = putText(buf, off, " sum=");
+                off = putHex(buf, off, checksum);
+            }
+            if (hasTiming) {
+                off = putText(buf, off, " start=");
+                off = putDecimal(buf, off, start);
+                off = putText(buf, off, " deadline=");
+                off = putDecimal(buf, off, deadline);
+            }
+            return off;
+        }
+        
+        /**
+         * Gets the number of the update.
+         * 
+         * @return The number of updates performed so far.
+         */
+        public int getTick() {
+            return tick;
+        }
+        
+        /**
+         * Checks whether the packet has a checksum.
+         * 
+         * @return true if the server sent a checksum.
+         */
+        public boolean hasChecksum() {
+            return hasChecksum;
+        }
+        
+        /**
+         * Gets the checksum of the game state after the update.
+         * 
+         * @return The checksum, or 0 if there is none.
+         */
+        public long getChecksum() {
+            return checksum;
+        }
+        
+        /**
+         * Checks whether the packet has the start and deadline of the tick.
+         * 
+         * @return true if the server sent the times of the tick.
+         */
+        public boolean hasTiming() {
+            return hasTiming;
+        }
+        
+        /**
+         * Gets when the update started being computed.
+         * 
+         * @return The start of the tick in server microseconds, or 0 if not sent.
+         */
+        public long getStart() {
+            return start;
+        }
+        
+        /**
+         * Gets when the next update starts being computed,
+         * the last chance for commands answering this update.
+         * 
+         * @return The deadline in server microseconds, or 0 if not sent.
+         */
+        public long getDeadline() {
+            return deadline;
+        }
+        
+        /** {@inheritDoc} */
+        @Override
+        public int getPacketType() {
+            return UPD_PKT;
+        }
+    }
+    
+    /**
+     * A packet holding the whole game state after an update:
+     * the update number, every cycle and the owner of every square.
+     * 
+     * The squares are run-length encoded column by column,
+     * as pairs of a run length and the owner of the squares in the run,
+     * since most of the map is either free or long trails.
+     */
+    public static class SnapshotPacket extends Packet {
+        
+        /** The number of the update the snapshot was taken after. */
+        private int tick;
+        /** The width of the map. */
+        private int width;
+        /** The height of the map. */
+        private int height;
+        /** The horizontal position of every cycle. */
+        private int[] x;
+        /** The vertical position of every cycle. */
+        private int[] y;
+        /** The direction of every cycle. */
+        private Direction[] dirs;
+        /** Whether each cycle is alive. */
+        private boolean[] alive;
+        /** The ID of the player owning each square, or 0. */
+        private int[][] map;
+        
+        /**
+         * Creates a snapshot packet from the game state.
+         * 
+         * @param tick The number of the update.
+         * @param map The ID of the player owning each square, or 0.
+         * @param cycles The cycles, in order of player ID.
+         */
+        public SnapshotPacket(int tick, int[][] map, Cycle[] cycles) {
+            this.tick = tick;
+            this.width = map.length;
+            this.height = map[0].length;
+            this.x = new int[cycles.length];
+            this.y = new int[cycles.length];
+            this.dirs = new Direction[cycles.length];
+            this.alive = new boolean[cycles.length];
+            this.map = new int[width][];
+            
+            StringBuilder sb = new StringBuilder();
+            sb.append(tick).append(' ').append(width).append(' ')
+              .append(height).append(' ').append(cycles.length);
+            for (int i = 0; i < cycles.length; i++) {
+                x[i] = cycles[i].getX();
+                y[i] = cycles[i].getY();
+                dirs[i] = cycles[i].getDirection();
+                alive[i] = cycles[i].isAlive();
+                sb.append(' ').append(x[i]).append(' ').append(y[i])
+                  .append(' ').append(dirs[i].name())
+                  .append(' ').append(alive[i] ? 1 : 0);
+            }
+            
+            int owner = map[0][0];
+            int run = 0;
+            for (int i = 0; i < width; i++) {
+                this.map[i] = map[i].clone();
+                for (int j = 0; j < height; j++) {
+                    if (map[i][j] != owner) {
+                        sb.append(' ').append(run).append(' ').append(owner);
+                        owner = map[i][j];
+                        run = 0;
+                    }
+                    run++;
+                }
+            }
+            sb.append(' ').append(run).append(' ').append(owner);
+            this.data = sb.toString();
+        }
+        
+        /**
+         * Creates a snapshot packet from a string.
+         * 
+         * @param data A string containing the update number, map size,
+         *             the cycles and the owner of every square.
+         */
+        public SnapshotPacket(String data) {
+            this.data = data;
+            Scanner s = new Scanner(data);
+            this.tick = s.nextInt();
+            this.width = s.nextInt();
+            this.height = s.nextInt();
+            int players = s.nextInt();
+            this.x = new int[players];
+            this.y = new int[players];
+            this.dirs = new Direction[players];
+            this.alive = new boolean[players];
+            for (int i = 0; i < players; i++) {
+                x[i] = s.nextInt();
+                y[i] = s.nextInt();
+                dirs[i] = Direction.valueOf(s.next());
+                alive[i] = s.nextInt() != 0;
+            }
+            
+            this.map = new int[width][height];
+            int run = 0;
+            int owner = 0;
+            for (int i = 0; i < width; i++) {
+                for (int j = 0; j < height; j++) {
+                    if (run == 0) {
+                        run = s.nextInt();
+                        owner = s.nextInt();
+                    }
+                    map[i][j] = owner;
+                    run--;
+                }
+            }
+        }
+        
+        /**
+         * Gets the number of the update the snapshot was taken after.
+         * 
+         * @return The update number.
+         */
+        public int getTick() {
+            return tick;
+        }
+        
+        /**
+         * Gets the width of the map.
+         * 
+         * @return The map's width.
+         */
+        public int getWidth() {
+            return width;
+        }
+        
+        /**
+         * Gets the height of the map.
+         * 
+         * @return The map's height.
+         */
+        public int getHeight() {
+            return height;
+        }
+        
+        /**
+         * Gets the number of players.
+         * 
+         * @return The number of cycles in the snapshot.
+         */
+        public int getPlayerCount() {
+            return x.length;
+        }
+        
+        /**
+         * Gets the horizontal position of a cycle.
+         * 
+         * @param player The index of the player (ID - 1).
+         * @return The cycle's horizontal position.
+         */
+        public int getX(int player) {
+            return x[player];
+        }
+        
+        /**
+         * Gets the vertical position of a cycle.
+         * 
+         * @param player The index of the player (ID - 1).
+         * @return The cycle's vertical position.
+         */
+        public int getY(int player) {
+            return y[player];
+        }
+        
+        /**
+         * Gets the direction of a cycle.
+         * 
+         * @param player The index of the player (ID - 1).
+         * @return The cycle's direction.
+         */
+        public Direction getDirection(int player) {
+            return dirs[player];
+        }
+        
+        /**
+         * Checks whether a cycle is alive.
+         * 
+         * @param player The index of the player (ID - 1).
+         * @return true if the cycle is alive.
+         */
+        public boolean isAlive(int player) {
+            return alive[player];
+        }
+        
+        /**
+         * Gets the owner of a square.
+         * 
+         * @param x The horizontal position of the square.
+         * @param y The vertical position of the square.
+         * @return The ID of the player owning the square, or 0 if it's free.
+         */
+        public int getOwner(int x, int y) {
+            return map[x][y];
+        }
+        
+        /** {@inheritDoc} */
+        @Override
+        public int getPacketType() {
+            return SNP_PKT;
+        }
+    }
 }
@@ -0,0 +1,90 @@
+/*
+ * Copyright (c) 2011, Åpen sone for eksperimentell informatikk
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *    - Redistributions of source code must retain the above copyright
+ *      notice, this list of conditions and the following disclaimer.
+ *    - Redistributions in binary form must reproduce the above copyright
+ *      notice, this list of conditions and the following disclaimer in the
+ *      documentation and/or other materials provided with the distribution.
+ *    - Neither the name of the <organization> nor the
+ *      names of its contributors may be used to endorse or promote products
+ *      derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package no.uio.ifi.sonen.aicycles.net;
+
+/**
+ * A token bucket limiting how fast something may happen,
+ * like receiving bytes or packets from a client.
+ * 
+ * Tokens are added at a steady rate up to a burst size.
+ * Taking more tokens than are available puts the bucket in debt,
+ * and the caller sleeps until the debt is paid,
+ * so a client sending too fast is slowed down without using any CPU.
+ * 
+ * Rate limiters are not thread safe.
+ *
+ * @author Sigmund Hansen <sigmunha@ifi.uio.no>
+ */
+public class RateLimiter {
+    
+    /** The number of tokens added every nanosecond. */
+    private final double rate;
+    /** The largest number of tokens the bucket holds. */
+    private final double burst;
+    /** The number of tokens in the bucket, negative when in debt. */
+    private double tokens;
+    /** When tokens were last added, from System.nanoTime. */
+    private long last = System.nanoTime();
+    
+    /**
+     * Creates a full rate limiter.
+     * 
+     * @param perSecond The number of tokens added every second.
+     * @param burst The largest number of tokens that can be taken at once
+     *              without waiting.
+     */
+    public RateLimiter(long perSecond, long burst) {
+        this.rate = perSecond / 1e9;
+        this.burst = burst;
+        this.tokens = burst;
+    }
+    
+    /**
+     * Takes tokens from the bucket,
+     * sleeping until there are enough if the bucket is in debt.
+     * 
+     * @param n The number of tokens to take.
+     * @return The number of nanoseconds spent sleeping.
+     */
+    public long acquire(long n) {
+        long now = System.nanoTime();
+        tokens = Math.min(burst, tokens + (now - last) * rate);
+        last = now;
+        tokens -= n;
+        if (tokens >= 0) {
+            return 0;
+        }
+        
+        long wait = (long) Math.ceil(-tokens / rate);
+        try {
+            Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return System.nanoTime() - now;
+    }
+}
@@ -0,0 +1,316 @@
+/*
+ * Copyright (c) 2011, Åpen sone for eksperimentell informatikk
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *    - Redistributions of source code must retain the above copyright
+ *      notice, this list of conditions and the following disclaimer.
+ *    - Redistributions in binary form must reproduce the above copyright
+ *      notice, this list of conditions and the following disclaimer in the
+ *      documentation and/or other materials provided with the distribution.
+ *    - Neither the name of the <organization> nor the
+ *      names of its contributors may be used to endorse or promote products
+ *      derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package no.uio.ifi.sonen.aicycles.net;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import no.uio.ifi.sonen.aicycles.Cycle;
+import no.uio.ifi.sonen.aicycles.Direction;
+
+/**
+ * The grid and cycles of a match, published by the server
+ * in a memory-mapped file for bots on the same host to read
+ * instead of applying every move from the server.
+ * 
+ * The server writes the squares claimed in a tick and the cycle table
+ * after every tick, under a sequence lock:
+ * the sequence number is odd while writing and even otherwise,
+ * so a reader that sees the same even number before and after reading
+ * has read the state of a single tick, and reads again if not.
+ * The writer never waits for the readers.
+ * 
+ * The cycle table holds the position, direction and state of every cycle,
+ * and the grid the owner of every square, column by column.
+ * In a tick, only the squares under the live cycles are claimed,
+ * so a reader that has the previous tick only reads those.
+ * Only the server's user can open the file, so the bots must run as that user.
+ *
+ * @author Sigmund Hansen <sigmunha@ifi.uio.no>
+ */
+public class SharedGrid {
+    
+    /** Identifies the file as a shared grid. */
+    private static final int MAGIC = 0x41494332;
+    /** The offset of the sequence number. */
+    private static final int SEQ_OFFSET = 16;
+    /** The offset of the tick number. */
+    private static final int TICK_OFFSET = 24;
+    /** The size of the header, where the cycle table starts. */
+    private static final int HEADER = 64;
+    /** The number of ints for each cycle in the table. */
+    public static final int CYCLE_INTS = 4;
+    /** The direction values, in the order of their numbers in the table. */
+    private static final Direction[] DIRECTIONS = Direction.values();
+    
+    /** Reads and writes the sequence number with memory ordering. */
+    private static final VarHandle LONGS =
+            MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());
+    
+    /** The mapped file. */
+    private final MappedByteBuffer map;
+    /** The cycle table. */
+    private final IntBuffer table;
+    /** The grid, column by column. */
+    private final IntBuffer grid;
+    /** The file, or null if the server owns it. */
+    private final File file;
+    /** The width of the map. */
+    private final int width;
+    /** The height of the map. */
+    private final int height;
+    /** The number of players. */
+    private final int players;
+    /** Whether the whole grid must be written at the next publish. */
+    private boolean full = true;
+    
+    /**
+     * Wraps a mapped shared grid.
+     * 
+     * @param map The mapped file, with the header written.
+     * @param file The file to delete when closed, or null.
+     */
+    private SharedGrid(MappedByteBuffer map, File file) {
+        this.map = map;
+        this.file = file;
+        width = map.getInt(4);
+        height = map.getInt(8);
+        players = map.getInt(12);
+        map.position(HEADER);
+        table = map.slice().order(ByteOrder.nativeOrder()).asIntBuffer();
+        map.position(gridOffset(players));
+        grid = map.slice().order(ByteOrder.nativeOrder()).asIntBuffer();
+        map.position(0);
+    }
+    
+    /**
+     * Creates the file of a shared grid, for the server to publish in.
+     * Nothing can be read from it until the first publish.
+     * 
+     * @param width The width of the map.
+     * @param height The height of the map.
+     * @param players The number of players.
+     * @return The shared grid.
+     * @throws IOException if the file could not be created or mapped.
+     */
+    public static SharedGrid create(int width, int height, int players) throws IOException {
+        File file = Files.createTempFile("aicycles-", ".grid").toFile();
+        file.deleteOnExit();
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        MappedByteBuffer map;
+        try {
+            map = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+                                       gridOffset(players) + 4L * width * height);
+        } finally {
+            raf.close();
+        }
+        map.order(ByteOrder.nativeOrder());
+        map.putInt(4, width);
+        map.putInt(8, height);
+        map.putInt(12, players);
+        map.putInt(TICK_OFFSET, -1);
+        map.putInt(0, MAGIC);
+        return new SharedGrid(map, file);
+    }
+    
+    /**
+     * Maps the shared grid of a match, for a bot to read.
+     * 
+     * @param path The path of the file, as sent by the server.
+     * @return The shared grid, which can only be read.
+     * @throws IOException if the file could not be mapped or isn't a shared grid.
+     */
+    public static SharedGrid open(String path) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(path, "r");
+        MappedByteBuffer map;
+        try {
+            map = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+        } finally {
+            raf.close();
+        }
+        map.order(ByteOrder.nativeOrder());
+        if (map.capacity() < HEADER || map.getInt(0) != MAGIC
+            || map.capacity() < gridOffset(map.getInt(12)) + 4L * map.getInt(4) * map.getInt(8)) {
+            throw new IOException("Not a shared grid: " + path);
+        }
+        return new SharedGrid(map, null);
+    }
+    
+    /**
+     * Gets the offset of the grid, after the cycle table.
+     * 
+     * @param players The number of players.
+     * @return The grid's offset, on a cache line of its own.
+     */
+    private static int gridOffset(int players) {
+        return (HEADER + players * CYCLE_INTS * 4 + 63) & ~63;
+    }
+    
+    /**
+     * Gets the path of the file, for the bots to map.
+     * 
+     * @return The absolute path of the file, or null on a bot's side.
+     */
+    public String getPath() {
+        return file == null ? null : file.getAbsolutePath();
+    }
+    
+    /**
+     * Gets the width of the map.
+     * 
+     * @return The map's width.
+     */
+    public int getWidth() {
+        return width;
+    }
+    
+    /**
+     * Gets the height of the map.
+     * 
+     * @return The map's height.
+     */
+    public int getHeight() {
+        return height;
+    }
+    
+    /**
+     * Publishes the state after a tick, writing only the squares
+     * under the live cycles, or the whole grid the first time.
+     * Only one thread may publish.
+     * 
+     * @param tick The number of the tick.
+     * @param owners The owner of every square, indexed by x and then y.
+     * @param cycles The cycles, in order of player ID.
+     */
+    public void publish(int tick, int[][] owners, Cycle[] cycles) {
+        long seq = map.getLong(SEQ_OFFSET);
+        map.putLong(SEQ_OFFSET, seq + 1);
+        VarHandle.storeStoreFence();
+        
+        if (full) {
+            for (int x = 0; x < width; x++) {
+                for (int y = 0; y < height; y++) {
+                    grid.put(x * height + y, owners[x][y]);
+                }
+            }
+            full = false;
+        }
+        
+        for (int i = 0; i < cycles.length; i++) {
+            Cycle c = cycles[i];
+            int x = c.getX();
+            int y = c.getY();
+            boolean alive = c.isAlive();
+            int row = i * CYCLE_INTS;
+            table.put(row, x);
+            table.put(row + 1, y);
+            table.put(row + 2, c.getDirection().ordinal());
+            table.put(row + 3, alive ? 1 : 0);
+            if (alive) {
+                grid.put(x * height + y, owners[x][y]);
+            }
+        }
+        map.putInt(TICK_OFFSET, tick);
+        
+        LONGS.setRelease(map, SEQ_OFFSET, seq + 2);
+    }
+    
+    /**
+     * Reads the state of the last tick published into a bot's map and a cycle table.
+     * The map has a border of one square around the grid, like a bot's,
+     * and the table gets the position, direction number and state of every cycle,
+     * without the border.
+     * 
+     * @param owners The bot's map, with a border.
+     * @param cycleTable Room for {@link #CYCLE_INTS} ints for each player.
+     * @param last The last tick read into the map, or -1 to read the whole grid.
+     * @return The tick read, or -1 if nothing has been published yet.
+     */
+    public int read(int[][] owners, int[] cycleTable, int last) {
+        while (true) {
+            long seq = (long) LONGS.getAcquire(map, SEQ_OFFSET);
+            if ((seq & 1) != 0) {
+                Thread.onSpinWait();
+                continue;
+            }
+            
+            int tick = map.getInt(TICK_OFFSET);
+            if (tick < 0) {
+                return -1;
+            }
+            
+            table.position(0);
+            table.get(cycleTable, 0, players * CYCLE_INTS);
+            if (last < 0 || tick != last + 1) {
+                for (int x = 0; x < width; x++) {
+                    grid.position(x * height);
+                    grid.get(owners[x + 1], 1, height);
+                }
+            } else {
+                for (int i = 0; i < players; i++) {
+                    int row = i * CYCLE_INTS;
+                    int x = cycleTable[row];
+                    int y = cycleTable[row + 1];
+                    if (cycleTable[row + 3] != 0 && x >= 0 && x < width && y >= 0 && y < height) {
+                        owners[x + 1][y + 1] = grid.get(x * height + y);
+                    }
+                }
+            }
+            
+            VarHandle.loadLoadFence();
+            if ((long) LONGS.getAcquire(map, SEQ_OFFSET) == seq) {
+                return tick;
+            }
+        }
+    }
+    
+    /**
+     * Gets the direction of a number in the cycle table.
+     * 
+     * @param number The direction's number.
+     * @return The direction.
+     */
+    public static Direction getDirection(int number) {
+        return DIRECTIONS[number];
+    }
+    
+    /**
+     * Deletes the server's file. Bots that have mapped it can still read it.
+     */
+    public void close() {
+        if (file != null) {
+            file.delete();
+        }
+    }
+}
@@ -0,0 +1,222 @@
+/*
+ * Copyright (c) 2011, Åpen sone for eksperimentell informatikk
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *    - Redistributions of source code must retain the above copyright
+ *      notice, this list of conditions and the following disclaimer.
+ *    - Redistributions in binary form must reproduce the above copyright
+ *      notice, this list of conditions and the following disclaimer in the
+ *      documentation and/or other materials provided with the distribution.
+ *    - Neither the name of the <organization> nor the
+ *      names of its contributors may be used to endorse or promote products
+ *      derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package no.uio.ifi.sonen.aicycles.net;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Scanner;
+
+/**
+ * Carries packets over a TCP socket, one line of text per packet.
+ *
+ * @author Sigmund Hansen <sigmunha@ifi.uio.no>
+ */
+public class SocketTransport implements Transport {
+    
+    /** The size of the buffer packets are written to, enough for all but snapshots. */
+    private static final int LINE_BUFFER = 256;
+    /** The end of a packet's line, as printf's %n would write it. */
+    private static final byte[] NEWLINE =
+            System.lineSeparator().getBytes(StandardCharsets.US_ASCII);
+    
+    /** The transport's socket. */
+    private final Socket sock;
+    /** The socket's input stream, counting and limiting the bytes read. */
+    private final ThrottledInputStream input;
+    /** The socket's input stream as a scanner. */
+    private final Scanner in;
+    /** The socket's output stream, counting the bytes written. */
+    private final CountingOutputStream output;
+    /** The socket's output stream as a print stream, for packets that aren't ASCII. */
+    private final PrintStream out;
+    /** The line a packet is written to before sending, guarded by this. */
+    private final byte[] line = new byte[LINE_BUFFER];
+    
+    /**
+     * Creates a transport from a connected socket.
+     * 
+     * @param sock The socket to carry packets over.
+     * @throws IOException If either of the socket's streams could not be opened.
+     */
+    public SocketTransport(Socket sock) throws IOException {
+        this.sock = sock;
+        // Packets are small and must arrive within the tick they're sent in.
+        sock.setTcpNoDelay(true);
+        input = new ThrottledInputStream(sock.getInputStream(), Connection.BYTES_RECEIVED);
+        in = new Scanner(input);
+        output = new CountingOutputStream(sock.getOutputStream(), Connection.BYTES_SENT);
+        out = new PrintStream(output);
+    }
+    
+    /**
+     * Waits for data and creates a packet object from it.
+     * 
+     * @return The packet that was read.
+     * @throws IOException if the underlying stream throws an IOException.
+     * @throws MalformedPacketException if the packet was malformed.
+     */
+    public Packet receive() throws IOException, MalformedPacketException {
+        // hasNext blocks as long as the connection isn't closed.
+        if (!in.hasNextInt() || isDown()) {
+            throw new IOException("End of socket's stream.");
+        }
+        
+        try {
+            int packetType = in.nextInt();
+            String data = in.nextLine().trim();
+            return Packet.createPacket(packetType, data);
+            
+        } catch (Exception e) {
+            IOException ioe = in.ioException();
+            if (ioe != null) {
+                throw ioe;
+            }
+
+            Connection.MALFORMED_PACKETS.increment();
+            throw new MalformedPacketException(e);
+        }
+    }
+    
+    /**
+     * Writes a packet to the socket as a single write.
+     * Packets whose data is ASCII and fits in the line buffer are encoded
+     * without creating any strings, others are printed.
+     * 
+     * @param p The packet to send.
+     * @throws IOException if the underlying output stream throws an IOException.
+     */
+    public synchronized void send(Packet p) throws IOException {
+        int n = Packet.putDecimal(line, 0, p.getPacketType());
+        line[n++] = ' ';
+        n = p.encodeData(line, n);
+        if (n < 0 || n > line.length - NEWLINE.length) {
+            out.printf("%d %s%n", p.getPacketType(), p.getData());
+            if (out.checkError()) {
+                throw new IOException("Error sending packet.");
+            }
+            return;
+        }
+        
+        System.arraycopy(NEWLINE, 0, line, n, NEWLINE.length);
+        output.write(line, 0, n + NEWLINE.length);
+    }
+    
+    /** {@inheritDoc} */
+    public void setReceiveLimit(RateLimiter limiter) {
+        input.setLimit(limiter);
+    }
+    
+    /** {@inheritDoc} */
+    public long getBytesReceived() {
+        return input.getBytesRead();
+    }
+    
+    /** {@inheritDoc} */
+    public long getBytesSent() {
+        return output.getBytesWritten();
+    }
+    
+    /** {@inheritDoc} */
+    public long getThrottledNanos() {
+        return input.getThrottledNanos();
+    }
+    
+    /**
+     * Gets the address of the peer.
+     * 
+     * @return The remote socket address.
+     */
+    public String getPeer() {
+        return String.valueOf(sock.getRemoteSocketAddress());
+    }
+    
+    /**
+     * Checks whether the peer is connected over the loopback interface.
+     * 
+     * @return true if the peer's address is a loopback address.
+     */
+    public boolean isLoopback() {
+        InetAddress peer = sock.getInetAddress();
+        return peer != null && peer.isLoopbackAddress();
+    }
+    
+    /**
+     * Closes the socket.
+     */
+    public void close() {
+        if (sock.isClosed()) {
+            return;
+        }
+        
+        try {
+            sock.close();
+        } catch (IOException ioe) {
+            System.err.println("Could not close connection:");
+            System.err.println(ioe.getMessage());
+        }
+    }
+    
+    /**
+     * Checks if the socket has been closed, is disconnected
+     * or if either of its streams are closed.
+     * If the socket isn't connected, or one of the streams have been closed,
+     * the socket is closed.
+     * 
+     * @return true if the socket is closed, disconnected
+     *         or a one-way connection.
+     */
+    public boolean isDown() {
+        if (sock.isClosed()) {
+            return true;
+            
+        } else if (!sock.isConnected()) {
+            try {
+                sock.close();
+            } catch (IOException ioe) {
+                System.err.println("Problem closing unconnected socket.");
+                System.err.println(ioe.getMessage());
+            }
+            
+            return true;
+            
+        } else if (sock.isInputShutdown() || sock.isOutputShutdown()) {
+            try {
+                sock.close();
+            } catch (IOException ioe) {
+                System.err.println("Problem closing one-way socket.");
+                System.err.println(ioe.getMessage());
+            }
+            
+            return true;
+        }
+        
+        return false;
+    }
+}
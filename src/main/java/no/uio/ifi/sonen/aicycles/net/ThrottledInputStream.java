@@ -0,0 +1,146 @@
+/*
+ * Copyright (c) 2011, Åpen sone for eksperimentell informatikk
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *    - Redistributions of source code must retain the above copyright
+ *      notice, this list of conditions and the following disclaimer.
+ *    - Redistributions in binary form must reproduce the above copyright
+ *      notice, this list of conditions and the following disclaimer in the
+ *      documentation and/or other materials provided with the distribution.
+ *    - Neither the name of the <organization> nor the
+ *      names of its contributors may be used to endorse or promote products
+ *      derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package no.uio.ifi.sonen.aicycles.net;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import no.uio.ifi.sonen.aicycles.metrics.Counter;
+
+/**
+ * An input stream counting the bytes read through it,
+ * and optionally limiting how fast they can be read.
+ * When the limit is reached, reading blocks,
+ * so the peer is slowed down by the socket's flow control.
+ *
+ * @author Sigmund Hansen <sigmunha@ifi.uio.no>
+ */
+public class ThrottledInputStream extends FilterInputStream {
+    
+    /** The largest number of bytes to read at once when limited. */
+    private static final int MAX_READ = 1024;
+    
+    /** The rate limit in bytes, or null if unlimited. */
+    private volatile RateLimiter limiter;
+    /** The number of bytes read. */
+    private volatile long bytesRead = 0;
+    /** The number of nanoseconds spent waiting for the limiter. */
+    private volatile long throttledNanos = 0;
+    /** A counter shared with other streams to add the bytes read to, or null. */
+    private final Counter total;
+    
+    /**
+     * Creates an unlimited stream reading from another stream.
+     * 
+     * @param in The stream to read from.
+     */
+    public ThrottledInputStream(InputStream in) {
+        this(in, null);
+    }
+    
+    /**
+     * Creates an unlimited stream reading from another stream,
+     * adding the bytes read to a counter.
+     * 
+     * @param in The stream to read from.
+     * @param total The counter to add the bytes read to, or null.
+     */
+    public ThrottledInputStream(InputStream in, Counter total) {
+        super(in);
+        this.total = total;
+    }
+    
+    /**
+     * Sets the rate limit.
+     * 
+     * @param limiter The limiter to take a token from for every byte,
+     *                or null to remove the limit.
+     */
+    public void setLimit(RateLimiter limiter) {
+        this.limiter = limiter;
+    }
+    
+    /**
+     * Counts the bytes read, and waits if the limit has been reached.
+     * 
+     * @param n The number of bytes read.
+     */
+    private void consumed(int n) {
+        if (n <= 0) {
+            return;
+        }
+        
+        bytesRead += n;
+        if (total != null) {
+            total.add(n);
+        }
+        RateLimiter l = limiter;
+        if (l != null) {
+            throttledNanos += l.acquire(n);
+        }
+    }
+    
+    /** {@inheritDoc} */
+    @Override
+    public int read() throws IOException {
+        int b = super.read();
+        if (b >= 0) {
+            consumed(1);
+        }
+        return b;
+    }
+    
+    /** {@inheritDoc} */
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (limiter != null) {
+            len = Math.min(len, MAX_READ);
+        }
+        
+        int n = super.read(b, off, len);
+        consumed(n);
+        return n;
+    }
+    
+    /**
+     * Gets the number of bytes read through this stream.
+     * 
+     * @return The number of bytes read.
+     */
+    public long getBytesRead() {
+        return bytesRead;
+    }
+    
+    /**
+     * Gets the time spent waiting because of the rate limit.
+     * 
+     * @return The number of nanoseconds spent waiting.
+     */
+    public long getThrottledNanos() {
+        return throttledNanos;
+    }
+}
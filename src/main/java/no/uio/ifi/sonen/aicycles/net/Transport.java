@@ -0,0 +1,110 @@
+/*
+ * Copyright (c) 2011, Åpen sone for eksperimentell informatikk
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *    - Redistributions of source code must retain the above copyright
+ *      notice, this list of conditions and the following disclaimer.
+ *    - Redistributions in binary form must reproduce the above copyright
+ *      notice, this list of conditions and the following disclaimer in the
+ *      documentation and/or other materials provided with the distribution.
+ *    - Neither the name of the <organization> nor the
+ *      names of its contributors may be used to endorse or promote products
+ *      derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package no.uio.ifi.sonen.aicycles.net;
+
+import java.io.IOException;
+
+/**
+ * Carries packets between a client and the server for a {@link Connection},
+ * which handles pings, idle checks and recording on top of it.
+ *
+ * @author Sigmund Hansen <sigmunha@ifi.uio.no>
+ */
+public interface Transport {
+    
+    /**
+     * Waits for the next packet from the peer.
+     * 
+     * @return The packet that was received.
+     * @throws IOException if the transport is closed or fails.
+     * @throws MalformedPacketException if the peer sent a malformed packet.
+     */
+    Packet receive() throws IOException, MalformedPacketException;
+    
+    /**
+     * Sends a packet to the peer.
+     * 
+     * @param p The packet to send.
+     * @throws IOException if the transport is closed or fails.
+     */
+    void send(Packet p) throws IOException;
+    
+    /**
+     * Limits how fast bytes are received from the peer.
+     * 
+     * @param limiter The limiter to take a token from for every byte received,
+     *                or null to remove the limit.
+     */
+    void setReceiveLimit(RateLimiter limiter);
+    
+    /**
+     * Gets the number of bytes received.
+     * 
+     * @return The bytes received from the peer.
+     */
+    long getBytesReceived();
+    
+    /**
+     * Gets the number of bytes sent.
+     * 
+     * @return The bytes sent to the peer.
+     */
+    long getBytesSent();
+    
+    /**
+     * Gets the time spent waiting because of the receive limit.
+     * 
+     * @return The number of nanoseconds spent waiting.
+     */
+    long getThrottledNanos();
+    
+    /**
+     * Describes the peer, for messages about the connection.
+     * 
+     * @return The peer's address or another description of it.
+     */
+    String getPeer();
+    
+    /**
+     * Checks whether the peer is on this host, so files can be shared with it.
+     * 
+     * @return true if the peer is in this process or connected over loopback.
+     */
+    boolean isLoopback();
+    
+    /**
+     * Checks whether the transport can no longer carry packets.
+     * 
+     * @return true if the transport is closed.
+     */
+    boolean isDown();
+    
+    /**
+     * Closes the transport, waking up anyone waiting for packets.
+     */
+    void close();
+}
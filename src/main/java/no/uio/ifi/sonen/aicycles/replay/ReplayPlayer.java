@@ -0,0 +1,275 @@
+/*
+ * Copyright (c) 2011, Åpen sone for eksperimentell informatikk
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *    - Redistributions of source code must retain the above copyright
+ *      notice, this list of conditions and the following disclaimer.
+ *    - Redistributions in binary form must reproduce the above copyright
+ *      notice, this list of conditions and the following disclaimer in the
+ *      documentation and/or other materials provided with the distribution.
+ *    - Neither the name of the <organization> nor the
+ *      names of its contributors may be used to endorse or promote products
+ *      derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package no.uio.ifi.sonen.aicycles.replay;
+
+import java.awt.event.KeyAdapter;
+import java.awt.event.KeyEvent;
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import javax.swing.SwingUtilities;
+import no.uio.ifi.sonen.aicycles.Viewer;
+import no.uio.ifi.sonen.aicycles.server.Player;
+
+/**
+ * Plays replay files in the viewer.
+ * 
+ * Replays can be played at 1, 10 or 100 times the speed of the match.
+ * At high speeds, several ticks are drawn for every frame shown.
+ * The keys 1, 2 and 3 change the speed, space pauses,
+ * the arrow keys skip 10 seconds back or forward,
+ * home goes to the start and escape quits.
+ *
+ * @author Sigmund Hansen <sigmunha@ifi.uio.no>
+ */
+public class ReplayPlayer implements Runnable {
+    
+    /** The number of milliseconds per tick in a match. */
+    private static final long TIMESTEP = 50;
+    /** The number of milliseconds between shown frames. */
+    private static final long FRAME_TIME = 16;
+    /** The number of ticks skipped by the arrow keys. */
+    private static final int SKIP = (int) (10000 / TIMESTEP);
+    
+    /** The replay being played. */
+    private final ReplayReader reader;
+    /** The viewer to play the replay in. */
+    private final Viewer viewer;
+    /** The players shown in the viewer. */
+    private Player[] players;
+    /** The speed factor. */
+    private volatile int speed = 1;
+    /** Whether playback is paused. */
+    private volatile boolean paused = false;
+    /** A tick to seek to, or -1. */
+    private volatile int seekTo = -1;
+    /** Whether to stop playing. */
+    private volatile boolean stopped = false;
+    
+    /**
+     * Creates a replay player.
+     * 
+     * @param reader The replay to play.
+     * @param viewer The viewer to play it in.
+     */
+    public ReplayPlayer(ReplayReader reader, Viewer viewer) {
+        this.reader = reader;
+        this.viewer = viewer;
+        viewer.addKeyListener(new KeyAdapter() {
+            @Override
+            public void keyPressed(KeyEvent e) {
+                int tick = ReplayPlayer.this.reader.getState().getTick();
+                switch (e.getKeyCode()) {
+                    case KeyEvent.VK_1:
+                        setSpeed(1);
+                        break;
+                    case KeyEvent.VK_2:
+                        setSpeed(10);
+                        break;
+                    case KeyEvent.VK_3:
+                        setSpeed(100);
+                        break;
+                    case KeyEvent.VK_SPACE:
+                        paused = !paused;
+                        break;
+                    case KeyEvent.VK_LEFT:
+                        seek(tick - SKIP);
+                        break;
+                    case KeyEvent.VK_RIGHT:
+                        seek(tick + SKIP);
+                        break;
+                    case KeyEvent.VK_HOME:
+                        seek(0);
+                        break;
+                    case KeyEvent.VK_ESCAPE:
+                        stopped = true;
+                        break;
+                }
+            }
+        });
+    }
+    
+    /**
+     * Sets the playback speed.
+     * 
+     * @param speed The speed factor, 1 being the speed of the match.
+     */
+    public void setSpeed(int speed) {
+        this.speed = speed;
+    }
+    
+    /**
+     * Moves the playback to the given tick.
+     * 
+     * @param tick The tick to move to.
+     */
+    public void seek(int tick) {
+        seekTo = Math.max(0, tick);
+    }
+    
+    /**
+     * Waits for the event dispatch thread to process earlier events,
+     * like the viewer's reset.
+     */
+    private void waitForViewer() {
+        try {
+            SwingUtilities.invokeAndWait(new Runnable() {
+                public void run() { }
+            });
+        } catch (InterruptedException e) {
+        } catch (InvocationTargetException e) { }
+    }
+    
+    /**
+     * Redraws everything for the current tick, after starting or seeking.
+     */
+    private void redraw() {
+        ReplayState state = reader.getState();
+        String[] names = reader.getNames();
+        players = new Player[names.length];
+        for (int i = 0; i < names.length; i++) {
+            players[i] = new Player(i + 1, names[i], state.getX(i), state.getY(i));
+        }
+        
+        viewer.reset(state.getWidth(), state.getHeight(), players);
+        waitForViewer();
+        for (Player p : players) {
+            viewer.setReady(p);
+            if (!state.isAlive(p.getId() - 1)) {
+                p.derez(state.getTick());
+                viewer.setDead(p);
+            }
+        }
+        
+        for (int x = 0; x < state.getWidth(); x++) {
+            for (int y = 0; y < state.getHeight(); y++) {
+                int owner = state.getOwner(x, y);
+                if (owner != 0) {
+                    viewer.draw(x, y, owner);
+                }
+            }
+        }
+        viewer.draw();
+    }
+    
+    /**
+     * Draws the changes of the last tick.
+     */
+    private void drawTick() {
+        ReplayState state = reader.getState();
+        for (int i = 0; i < players.length; i++) {
+            if (reader.died(i)) {
+                players[i].derez(state.getTick() - 1);
+                viewer.setDead(players[i]);
+            } else if (state.isAlive(i)) {
+                int x = state.getX(i);
+                int y = state.getY(i);
+                if (x >= 0 && x < state.getWidth() && y >= 0 && y < state.getHeight()) {
+                    viewer.draw(x, y, i + 1);
+                }
+            }
+        }
+    }
+    
+    /**
+     * Plays the replay until it's stopped.
+     * Ticks are stepped through as they become due,
+     * and a frame is shown at most every {@link #FRAME_TIME} milliseconds.
+     */
+    public void run() {
+        redraw();
+        long start = System.nanoTime();
+        int startTick = 0;
+        int lastSpeed = speed;
+        
+        while (!stopped) {
+            int target = seekTo;
+            if (target >= 0) {
+                seekTo = -1;
+                reader.seek(target);
+                redraw();
+                start = System.nanoTime();
+                startTick = reader.getState().getTick();
+            }
+            
+            if (paused || speed != lastSpeed) {
+                start = System.nanoTime();
+                startTick = reader.getState().getTick();
+                lastSpeed = speed;
+            }
+            
+            if (!paused) {
+                long elapsed = (System.nanoTime() - start) / 1000000;
+                long due = startTick + elapsed * lastSpeed / TIMESTEP;
+                boolean changed = false;
+                while (reader.getState().getTick() < due && reader.step()) {
+                    drawTick();
+                    changed = true;
+                }
+                if (changed) {
+                    viewer.draw();
+                }
+            }
+            
+            try {
+                Thread.sleep(FRAME_TIME);
+            } catch (InterruptedException e) { }
+        }
+        
+        viewer.close();
+    }
+    
+    /**
+     * Plays a replay file.
+     * 
+     * @param args The replay file, optionally followed by the speed (1, 10 or 100)
+     *             and the tick to start at.
+     */
+    public static void main(String[] args) {
+        if (args.length < 1) {
+            System.out.println("Usage: ReplayPlayer <replay file> [speed] [start tick]");
+            System.exit(1);
+        }
+        
+        try {
+            ReplayReader reader = new ReplayReader(new File(args[0]));
+            if (args.length >= 3) {
+                reader.seek(Integer.parseInt(args[2]));
+            }
+            
+            ReplayPlayer player = new ReplayPlayer(reader, new Viewer(false));
+            if (args.length >= 2) {
+                player.setSpeed(Integer.parseInt(args[1]));
+            }
+            player.run();
+            
+        } catch (IOException ioe) {
+            System.err.printf("Could not read replay %s:%n%s%n", args[0], ioe.getMessage());
+            System.exit(2);
+        }
+    }
+}
@@ -0,0 +1,370 @@
+/*
+ * Copyright (c) 2011, Åpen sone for eksperimentell informatikk
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *    - Redistributions of source code must retain the above copyright
+ *      notice, this list of conditions and the following disclaimer.
+ *    - Redistributions in binary form must reproduce the above copyright
+ *      notice, this list of conditions and the following disclaimer in the
+ *      documentation and/or other materials provided with the distribution.
+ *    - Neither the name of the <organization> nor the
+ *      names of its contributors may be used to endorse or promote products
+ *      derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package no.uio.ifi.sonen.aicycles.replay;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import no.uio.ifi.sonen.aicycles.Direction;
+
+/**
+ * Reads replay files written by {@link ReplayWriter}.
+ * 
+ * The reader keeps the state of the match at its current tick,
+ * and can step forward a tick at a time or seek to any tick.
+ * Seeking starts from the closest keyframe before the tick,
+ * so it never replays more than a keyframe interval of ticks.
+ *
+ * @author Sigmund Hansen <sigmunha@ifi.uio.no>
+ */
+public class ReplayReader {
+    
+    /** The memory mapped file. */
+    private final ByteBuffer data;
+    /** The file format version. */
+    private final int version;
+    /** The width of the map. */
+    private final int width;
+    /** The height of the map. */
+    private final int height;
+    /** The random seed of the match. */
+    private final int seed;
+    /** The number of ticks between keyframes, 0 if there are none. */
+    private final int keyframeInterval;
+    /** The names of the players. */
+    private final String[] names;
+    /** The horizontal start positions. */
+    private final int[] startX;
+    /** The vertical start positions. */
+    private final int[] startY;
+    /** The position of the first tick in the file. */
+    private final int ticksStart;
+    /** The number of ticks in the match. */
+    private final int tickCount;
+    /** The final points of every player. */
+    private final int[] points;
+    /** The final length of every player. */
+    private final int[] lengths;
+    /** The tick of every keyframe. */
+    private final int[] keyframeTicks;
+    /** The position of every keyframe. */
+    private final int[] keyframeOffsets;
+    
+    /** The state at the current tick. */
+    private ReplayState state;
+    /** The position of the next byte of the bit stream. */
+    private int position;
+    /** The bits left from the current byte. */
+    private int bits;
+    /** The number of bits left from the current byte. */
+    private int bitCount;
+    /** The directions of the players in the last tick. */
+    private final Direction[] moves;
+    /** Whether each player died in the last tick. */
+    private final boolean[] died;
+    
+    /**
+     * Opens a replay file.
+     * 
+     * @param file The replay file to read.
+     * @throws IOException if the file can't be read or isn't a replay.
+     */
+    public ReplayReader(File file) throws IOException {
+        RandomAccessFile f = new RandomAccessFile(file, "r");
+        try {
+            data = f.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, f.length());
+        } finally {
+            f.close();
+        }
+        
+        if (data.getInt() != ReplayWriter.MAGIC) {
+            throw new IOException(file + " is not a replay file.");
+        }
+        version = data.get();
+        if (version < 1 || version > ReplayWriter.VERSION) {
+            throw new IOException(String.format("Unknown replay version %d in %s.", version, file));
+        }
+        width = data.getShort();
+        height = data.getShort();
+        int playerCount = data.get() & 0xFF;
+        seed = data.getInt();
+        keyframeInterval = version >= 2 ? data.getShort() : 0;
+        
+        names = new String[playerCount];
+        startX = new int[playerCount];
+        startY = new int[playerCount];
+        for (int i = 0; i < playerCount; i++) {
+            byte[] name = new byte[data.getShort() & 0xFFFF];
+            data.get(name);
+            names[i] = new String(name, "UTF-8");
+            startX[i] = data.getShort();
+            startY[i] = data.getShort();
+        }
+        ticksStart = data.position();
+        
+        data.position((int) data.getLong(data.limit() - 8));
+        tickCount = data.getInt();
+        points = new int[playerCount];
+        lengths = new int[playerCount];
+        for (int i = 0; i < playerCount; i++) {
+            points[i] = data.getInt();
+            lengths[i] = data.getInt();
+        }
+        
+        int keyframes = version >= 2 ? data.getInt() : 0;
+        keyframeTicks = new int[keyframes];
+        keyframeOffsets = new int[keyframes];
+        for (int i = 0; i < keyframes; i++) {
+            keyframeTicks[i] = data.getInt();
+            keyframeOffsets[i] = (int) data.getLong();
+        }
+        
+        moves = new Direction[playerCount];
+        died = new boolean[playerCount];
+        for (int i = 0; i < playerCount; i++) {
+            moves[i] = Direction.N;
+        }
+        rewind();
+    }
+    
+    /**
+     * Goes back to the start of the match.
+     */
+    private void rewind() {
+        state = new ReplayState(width, height, startX, startY);
+        position = ticksStart;
+        bitCount = 0;
+    }
+    
+    /**
+     * Reads bits from the bit stream.
+     * 
+     * @param count The number of bits to read, at most 24.
+     * @return The bits that were read.
+     */
+    private int readBits(int count) {
+        while (bitCount < count) {
+            bits = (bits << 8) | (data.get(position++) & 0xFF);
+            bitCount += 8;
+        }
+        bitCount -= count;
+        int value = (bits >>> bitCount) & ((1 << count) - 1);
+        bits &= (1 << bitCount) - 1;
+        return value;
+    }
+    
+    /**
+     * Loads the keyframe at the given position, skipping to the tick after it.
+     * 
+     * @param offset The position of the keyframe.
+     */
+    private void loadKeyframe(int offset) {
+        data.position(offset);
+        int length = data.getInt();
+        state.readKeyframe(data);
+        position = offset + 4 + length;
+        bitCount = 0;
+    }
+    
+    /**
+     * Moves to the next tick.
+     * 
+     * @return false if there are no more ticks.
+     */
+    public boolean step() {
+        if (state.getTick() >= tickCount) {
+            return false;
+        }
+        
+        Direction[] values = Direction.values();
+        for (int i = 0; i < moves.length; i++) {
+            died[i] = false;
+            if (state.isAlive(i)) {
+                moves[i] = values[readBits(2)];
+            }
+        }
+        
+        if (readBits(1) == 1) {
+            for (int i = 0; i < moves.length; i++) {
+                if (state.isAlive(i)) {
+                    died[i] = readBits(1) == 1;
+                }
+            }
+        }
+        
+        state.apply(moves, died);
+        
+        if (keyframeInterval > 0 && state.getTick() % keyframeInterval == 0) {
+            // Skip the keyframe following this tick.
+            bitCount = 0;
+            position += 4 + data.getInt(position);
+        }
+        return true;
+    }
+    
+    /**
+     * Moves to the given tick, starting from the closest keyframe before it.
+     * 
+     * @param tick The tick to move to.
+     */
+    public void seek(int tick) {
+        tick = Math.max(0, Math.min(tick, tickCount));
+        
+        int keyframe = -1;
+        for (int i = 0; i < keyframeTicks.length && keyframeTicks[i] <= tick; i++) {
+            keyframe = i;
+        }
+        
+        if (keyframe >= 0 && (keyframeTicks[keyframe] > state.getTick() || tick < state.getTick())) {
+            loadKeyframe(keyframeOffsets[keyframe]);
+        } else if (tick < state.getTick()) {
+            rewind();
+        }
+        
+        for (int i = 0; i < died.length; i++) {
+            died[i] = false;
+        }
+        while (state.getTick() < tick && step()) { }
+    }
+    
+    /**
+     * Gets the state at the current tick.
+     * The state is replaced when seeking backwards.
+     * 
+     * @return The current state.
+     */
+    public ReplayState getState() {
+        return state;
+    }
+    
+    /**
+     * Gets the direction a player moved in the last tick stepped through.
+     * 
+     * @param player The index of the player (ID - 1).
+     * @return The player's direction in the last tick.
+     */
+    public Direction getMove(int player) {
+        return moves[player];
+    }
+    
+    /**
+     * Checks whether a player died in the last tick stepped through.
+     * 
+     * @param player The index of the player (ID - 1).
+     * @return true if the player died in the last tick.
+     */
+    public boolean died(int player) {
+        return died[player];
+    }
+    
+    /**
+     * Gets the number of ticks in the match.
+     * 
+     * @return The number of ticks.
+     */
+    public int getTickCount() {
+        return tickCount;
+    }
+    
+    /**
+     * Gets the width of the map.
+     * 
+     * @return The map's width.
+     */
+    public int getWidth() {
+        return width;
+    }
+    
+    /**
+     * Gets the height of the map.
+     * 
+     * @return The map's height.
+     */
+    public int getHeight() {
+        return height;
+    }
+    
+    /**
+     * Gets the random seed of the match.
+     * 
+     * @return The seed.
+     */
+    public int getSeed() {
+        return seed;
+    }
+    
+    /**
+     * Gets the names of the players, in order of ID.
+     * 
+     * @return The players' names.
+     */
+    public String[] getNames() {
+        return names.clone();
+    }
+    
+    /**
+     * Gets the horizontal start position of a player.
+     * 
+     * @param player The index of the player (ID - 1).
+     * @return The player's horizontal start position.
+     */
+    public int getStartX(int player) {
+        return startX[player];
+    }
+    
+    /**
+     * Gets the vertical start position of a player.
+     * 
+     * @param player The index of the player (ID - 1).
+     * @return The player's vertical start position.
+     */
+    public int getStartY(int player) {
+        return startY[player];
+    }
+    
+    /**
+     * Gets the final points of a player.
+     * 
+     * @param player The index of the player (ID - 1).
+     * @return The points the player scored.
+     */
+    public int getPoints(int player) {
+        return points[player];
+    }
+    
+    /**
+     * Gets the final length of a player.
+     * 
+     * @param player The index of the player (ID - 1).
+     * @return The number of ticks the player survived.
+     */
+    public int getLength(int player) {
+        return lengths[player];
+    }
+}
@@ -0,0 +1,301 @@
+/*
+ * Copyright (c) 2011, Åpen sone for eksperimentell informatikk
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *    - Redistributions of source code must retain the above copyright
+ *      notice, this list of conditions and the following disclaimer.
+ *    - Redistributions in binary form must reproduce the above copyright
+ *      notice, this list of conditions and the following disclaimer in the
+ *      documentation and/or other materials provided with the distribution.
+ *    - Neither the name of the <organization> nor the
+ *      names of its contributors may be used to endorse or promote products
+ *      derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package no.uio.ifi.sonen.aicycles.replay;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import no.uio.ifi.sonen.aicycles.Direction;
+
+/**
+ * The state of a recorded match at a given tick:
+ * the grid and the position, direction and liveness of every cycle.
+ * 
+ * The writer keeps one of these to produce keyframes,
+ * and the reader keeps one to play replays,
+ * so both sides agree on what a tick does to the state.
+ * Players that die in a tick don't move in it, the others move and claim
+ * the square they move into.
+ *
+ * @author Sigmund Hansen <sigmunha@ifi.uio.no>
+ */
+public class ReplayState {
+    
+    /** The width of the grid. */
+    private final int width;
+    /** The height of the grid. */
+    private final int height;
+    /** The ID of the player owning each square, 0 for free squares, column by column. */
+    private final byte[] grid;
+    /** The horizontal position of every player. */
+    private final int[] x;
+    /** The vertical position of every player. */
+    private final int[] y;
+    /** The last direction of every player. */
+    private final Direction[] dirs;
+    /** Whether every player is alive. */
+    private final boolean[] alive;
+    /** The number of ticks that have been applied. */
+    private int tick = 0;
+    
+    /**
+     * Creates the state at the start of a match.
+     * 
+     * @param width The width of the grid.
+     * @param height The height of the grid.
+     * @param startX The horizontal start position of every player.
+     * @param startY The vertical start position of every player.
+     */
+    public ReplayState(int width, int height, int[] startX, int[] startY) {
+        this.width = width;
+        this.height = height;
+        this.grid = new byte[width * height];
+        this.x = startX.clone();
+        this.y = startY.clone();
+        this.dirs = new Direction[startX.length];
+        this.alive = new boolean[startX.length];
+        for (int i = 0; i < startX.length; i++) {
+            dirs[i] = Direction.N;
+            alive[i] = true;
+            grid[x[i] * height + y[i]] = (byte) (i + 1);
+        }
+    }
+    
+    /**
+     * Applies a tick to the state.
+     * 
+     * @param moves The direction of every player, only used for live players.
+     * @param died Whether each player died in the tick.
+     */
+    public void apply(Direction[] moves, boolean[] died) {
+        for (int i = 0; i < alive.length; i++) {
+            if (!alive[i]) {
+                continue;
+            }
+            
+            dirs[i] = moves[i];
+            if (died[i]) {
+                alive[i] = false;
+                continue;
+            }
+            
+            switch (moves[i]) {
+                case N:
+                    y[i]--;
+                    break;
+                case E:
+                    x[i]++;
+                    break;
+                case S:
+                    y[i]++;
+                    break;
+                case W:
+                    x[i]--;
+                    break;
+            }
+            if (x[i] >= 0 && x[i] < width && y[i] >= 0 && y[i] < height) {
+                grid[x[i] * height + y[i]] = (byte) (i + 1);
+            }
+        }
+        tick++;
+    }
+    
+    /**
+     * Writes the state as a keyframe.
+     * The keyframe contains the tick, every player's position,
+     * direction and liveness, and the grid run length encoded.
+     * 
+     * @param out The output to write to.
+     * @throws IOException if the output fails.
+     */
+    void writeKeyframe(DataOutput out) throws IOException {
+        out.writeInt(tick);
+        for (int i = 0; i < alive.length; i++) {
+            out.writeShort(x[i]);
+            out.writeShort(y[i]);
+            out.writeByte(dirs[i].ordinal() | (alive[i] ? 4 : 0));
+        }
+        
+        int i = 0;
+        while (i < grid.length) {
+            byte owner = grid[i];
+            int run = 1;
+            while (i + run < grid.length && grid[i + run] == owner) {
+                run++;
+            }
+            writeVarInt(out, run);
+            out.writeByte(owner);
+            i += run;
+        }
+    }
+    
+    /**
+     * Replaces the state with a keyframe.
+     * 
+     * @param in A buffer positioned at the start of the keyframe.
+     */
+    void readKeyframe(ByteBuffer in) {
+        tick = in.getInt();
+        Direction[] values = Direction.values();
+        for (int i = 0; i < alive.length; i++) {
+            x[i] = in.getShort();
+            y[i] = in.getShort();
+            int flags = in.get();
+            dirs[i] = values[flags & 3];
+            alive[i] = (flags & 4) != 0;
+        }
+        
+        int i = 0;
+        while (i < grid.length) {
+            int run = readVarInt(in);
+            byte owner = in.get();
+            for (int end = i + run; i < end; i++) {
+                grid[i] = owner;
+            }
+        }
+    }
+    
+    /**
+     * Writes an unsigned int using 7 bits per byte.
+     * 
+     * @param out The output to write to.
+     * @param value The value to write.
+     * @throws IOException if the output fails.
+     */
+    static void writeVarInt(DataOutput out, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+    
+    /**
+     * Reads an unsigned int written by {@link #writeVarInt(DataOutput, int)}.
+     * 
+     * @param in The buffer to read from.
+     * @return The value that was read.
+     */
+    static int readVarInt(ByteBuffer in) {
+        int value = 0;
+        int shift = 0;
+        int b;
+        do {
+            b = in.get();
+            value |= (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+    
+    /**
+     * Gets the number of ticks the state has been through.
+     * 
+     * @return The current tick.
+     */
+    public int getTick() {
+        return tick;
+    }
+    
+    /**
+     * Gets the width of the grid.
+     * 
+     * @return The grid's width.
+     */
+    public int getWidth() {
+        return width;
+    }
+    
+    /**
+     * Gets the height of the grid.
+     * 
+     * @return The grid's height.
+     */
+    public int getHeight() {
+        return height;
+    }
+    
+    /**
+     * Gets the owner of a square.
+     * 
+     * @param x The horizontal position of the square.
+     * @param y The vertical position of the square.
+     * @return The ID of the player owning the square, or 0 if it's free.
+     */
+    public int getOwner(int x, int y) {
+        return grid[x * height + y] & 0xFF;
+    }
+    
+    /**
+     * Gets the number of players.
+     * 
+     * @return The number of players.
+     */
+    public int getPlayerCount() {
+        return alive.length;
+    }
+    
+    /**
+     * Gets the horizontal position of a player.
+     * 
+     * @param player The index of the player (ID - 1).
+     * @return The player's horizontal position.
+     */
+    public int getX(int player) {
+        return x[player];
+    }
+    
+    /**
+     * Gets the vertical position of a player.
+     * 
+     * @param player The index of the player (ID - 1).
+     * @return The player's vertical position.
+     */
+    public int getY(int player) {
+        return y[player];
+    }
+    
+    /**
+     * Gets the last direction of a player.
+     * 
+     * @param player The index of the player (ID - 1).
+     * @return The direction the player last moved in.
+     */
+    public Direction getDirection(int player) {
+        return dirs[player];
+    }
+    
+    /**
+     * Checks whether a player is alive.
+     * 
+     * @param player The index of the player (ID - 1).
+     * @return true if the player is alive.
+     */
+    public boolean isAlive(int player) {
+        return alive[player];
+    }
+}
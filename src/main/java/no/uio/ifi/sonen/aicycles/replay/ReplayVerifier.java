@@ -0,0 +1,254 @@
+/*
+ * Copyright (c) 2011, Åpen sone for eksperimentell informatikk
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *    - Redistributions of source code must retain the above copyright
+ *      notice, this list of conditions and the following disclaimer.
+ *    - Redistributions in binary form must reproduce the above copyright
+ *      notice, this list of conditions and the following disclaimer in the
+ *      documentation and/or other materials provided with the distribution.
+ *    - Neither the name of the <organization> nor the
+ *      names of its contributors may be used to endorse or promote products
+ *      derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package no.uio.ifi.sonen.aicycles.replay;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import no.uio.ifi.sonen.aicycles.Direction;
+import no.uio.ifi.sonen.aicycles.server.Arena;
+
+/**
+ * Checks that the game rules still produce the recorded matches.
+ * 
+ * Every replay is simulated again from its start positions,
+ * feeding the recorded directions to an {@link Arena},
+ * without any networking or waiting between ticks.
+ * The deaths in every tick and the final points and lengths
+ * must be exactly the same as in the recording.
+ * Replays are verified in parallel on all processors.
+ *
+ * @author Sigmund Hansen <sigmunha@ifi.uio.no>
+ */
+public class ReplayVerifier {
+    
+    /**
+     * The result of verifying a single replay.
+     */
+    public static class Result {
+        /** The replay file. */
+        private final File file;
+        /** The number of ticks simulated. */
+        private final int ticks;
+        /** What didn't match, or null if everything did. */
+        private final String error;
+        
+        /**
+         * Creates a result.
+         * 
+         * @param file The replay file.
+         * @param ticks The number of ticks simulated.
+         * @param error What didn't match, or null.
+         */
+        private Result(File file, int ticks, String error) {
+            this.file = file;
+            this.ticks = ticks;
+            this.error = error;
+        }
+        
+        /**
+         * Gets the replay file.
+         * 
+         * @return The file that was verified.
+         */
+        public File getFile() {
+            return file;
+        }
+        
+        /**
+         * Gets the number of ticks that were simulated.
+         * 
+         * @return The number of ticks.
+         */
+        public int getTicks() {
+            return ticks;
+        }
+        
+        /**
+         * Gets what didn't match the recording.
+         * 
+         * @return A description of the first difference, or null if there was none.
+         */
+        public String getError() {
+            return error;
+        }
+        
+        /**
+         * Checks whether the simulation matched the recording.
+         * 
+         * @return true if the simulation matched.
+         */
+        public boolean isOk() {
+            return error == null;
+        }
+    }
+    
+    /**
+     * Simulates a replay again and compares it to the recording.
+     * 
+     * @param file The replay file.
+     * @return The result of the comparison.
+     * @throws IOException if the replay can't be read.
+     */
+    public static Result verify(File file) throws IOException {
+        ReplayReader replay = new ReplayReader(file);
+        int n = replay.getNames().length;
+        int[] startX = new int[n];
+        int[] startY = new int[n];
+        for (int i = 0; i < n; i++) {
+            startX[i] = replay.getStartX(i);
+            startY[i] = replay.getStartY(i);
+        }
+        
+        Arena arena = new Arena(replay.getWidth(), replay.getHeight(), startX, startY);
+        final boolean[] died = new boolean[n];
+        Arena.Listener listener = new Arena.Listener() {
+            public void moved(int player, Direction dir) { }
+            
+            public void died(int player) {
+                died[player] = true;
+            }
+        };
+        
+        while (replay.step()) {
+            for (int i = 0; i < n; i++) {
+                died[i] = false;
+                if (arena.getCycle(i).isAlive()) {
+                    arena.getCycle(i).setDirection(replay.getMove(i));
+                }
+            }
+            
+            arena.step(listener);
+            for (int i = 0; i < n; i++) {
+                if (died[i] != replay.died(i)) {
+                    return new Result(file, arena.getTick(), String.format(
+                            "Tick %d: player %d %s, but %s in the recording.",
+                            arena.getTick(), i + 1, died[i] ? "died" : "lived",
+                            replay.died(i) ? "died" : "lived"));
+                }
+            }
+        }
+        
+        if (arena.getLiveCount() > 1) {
+            return new Result(file, arena.getTick(), String.format(
+                    "%d players still alive after the last tick (%d).",
+                    arena.getLiveCount(), arena.getTick()));
+        }
+        
+        arena.finish();
+        for (int i = 0; i < n; i++) {
+            if (arena.getPoints(i) != replay.getPoints(i)
+                || arena.getLength(i) != replay.getLength(i)) {
+                return new Result(file, arena.getTick(), String.format(
+                        "Player %d got %d points and length %d, but %d and %d in the recording.",
+                        i + 1, arena.getPoints(i), arena.getLength(i),
+                        replay.getPoints(i), replay.getLength(i)));
+            }
+        }
+        
+        return new Result(file, arena.getTick(), null);
+    }
+    
+    /**
+     * Finds replay files.
+     * 
+     * @param file A replay file or a directory to search for replays.
+     * @param replays The list to add the replays to.
+     */
+    private static void findReplays(File file, List<File> replays) {
+        if (file.isDirectory()) {
+            File[] children = file.listFiles();
+            if (children != null) {
+                for (File child : children) {
+                    findReplays(child, replays);
+                }
+            }
+        } else if (file.getName().endsWith(ReplayWriter.EXTENSION)) {
+            replays.add(file);
+        }
+    }
+    
+    /**
+     * Verifies replay files and directories of replays,
+     * exits with status 1 if any of them didn't match.
+     * 
+     * @param args The replay files and directories to verify.
+     */
+    public static void main(String[] args) {
+        if (args.length < 1) {
+            System.out.println("Usage: ReplayVerifier <replay file or directory>...");
+            System.exit(2);
+        }
+        
+        List<File> replays = new ArrayList<File>();
+        for (String arg : args) {
+            findReplays(new File(arg), replays);
+        }
+        
+        ExecutorService pool = Executors.newFixedThreadPool(
+                Runtime.getRuntime().availableProcessors());
+        List<Future<Result>> results = new ArrayList<Future<Result>>();
+        long start = System.nanoTime();
+        for (final File replay : replays) {
+            results.add(pool.submit(new Callable<Result>() {
+                public Result call() throws IOException {
+                    return verify(replay);
+                }
+            }));
+        }
+        
+        long ticks = 0;
+        int failed = 0;
+        for (int i = 0; i < replays.size(); i++) {
+            try {
+                Result r = results.get(i).get();
+                ticks += r.getTicks();
+                if (!r.isOk()) {
+                    failed++;
+                    System.out.printf("%s: %s%n", r.getFile(), r.getError());
+                }
+            } catch (ExecutionException e) {
+                failed++;
+                System.out.printf("%s: %s%n", replays.get(i), e.getCause().getMessage());
+            } catch (InterruptedException e) {
+                failed++;
+            }
+        }
+        pool.shutdown();
+        
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("%d replays, %d ticks in %.2f s (%.0f ticks/s), %d failed.%n",
+                          replays.size(), ticks, seconds, ticks / seconds, failed);
+        System.exit(failed == 0 ? 0 : 1);
+    }
+}
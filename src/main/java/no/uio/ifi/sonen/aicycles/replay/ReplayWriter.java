@@ -0,0 +1,443 @@
+/*
+ * Copyright (c) 2011, Åpen sone for eksperimentell informatikk
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *    - Redistributions of source code must retain the above copyright
+ *      notice, this list of conditions and the following disclaimer.
+ *    - Redistributions in binary form must reproduce the above copyright
+ *      notice, this list of conditions and the following disclaimer in the
+ *      documentation and/or other materials provided with the distribution.
+ *    - Neither the name of the <organization> nor the
+ *      names of its contributors may be used to endorse or promote products
+ *      derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package no.uio.ifi.sonen.aicycles.replay;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import no.uio.ifi.sonen.aicycles.Direction;
+
+/**
+ * Records a match to a compact binary replay file.
+ * 
+ * A replay file starts with a header containing the map size,
+ * the number of players, the random seed, the keyframe interval and the name
+ * and start position of every player.
+ * It's followed by a bit stream with one record per tick.
+ * A tick has 2 bits for the direction of every player alive when it started,
+ * in order of player ID, and a single bit telling if anyone died.
+ * If someone died, there's one more bit for every player alive when it started,
+ * set for those that died.
+ * Every keyframe interval ticks, the bit stream is padded to a whole byte
+ * and a keyframe with the full state is written (see {@link ReplayState}),
+ * prefixed by its length, so readers can start at any keyframe.
+ * The bit stream is padded to a whole byte and followed by a trailer
+ * with the number of ticks, the points and length of every player
+ * and the tick and position of every keyframe.
+ * The last 8 bytes of the file is the position of the trailer.
+ * 
+ * The tick thread only packs bits into a buffer,
+ * full buffers are written to the file by a shared background thread.
+ *
+ * @author Sigmund Hansen <sigmunha@ifi.uio.no>
+ */
+public class ReplayWriter {
+    
+    /** The magic number at the start of every replay file ("AICR"). */
+    public static final int MAGIC = 0x41494352;
+    /** The version of the file format. */
+    public static final int VERSION = 2;
+    /** The default number of ticks between keyframes. */
+    public static final int KEYFRAME_INTERVAL = 1024;
+    /** The file extension used for replays. */
+    public static final String EXTENSION = ".aicr";
+    /** The size of the buffers handed to the background thread. */
+    private static final int BUFFER_SIZE = 4096;
+    
+    /** The thread writing all replay files. */
+    private static final ExecutorService writer =
+            Executors.newSingleThreadExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "Replay writer");
+            t.setDaemon(true);
+            return t;
+        }
+    });
+    
+    /** The file being written. */
+    private final File file;
+    /** The stream writing to the file, only used by the background thread. */
+    private DataOutputStream out;
+    /** Whether writing has failed, after which everything is dropped. */
+    private volatile boolean failed = false;
+    /** Buffers that have been written and can be reused. */
+    private final ConcurrentLinkedQueue<byte[]> freeBuffers =
+            new ConcurrentLinkedQueue<byte[]>();
+    
+    /** The buffer bits are currently packed into. */
+    private byte[] buffer = new byte[BUFFER_SIZE];
+    /** The number of whole bytes in the buffer. */
+    private int position = 0;
+    /** The number of bytes handed to the background thread. */
+    private long written = 0;
+    /** The bits that haven't filled a byte yet. */
+    private int bits = 0;
+    /** The number of bits waiting to fill a byte. */
+    private int bitCount = 0;
+    
+    /** Whether each player is alive. */
+    private final boolean[] alive;
+    /** The direction of each player in the current tick. */
+    private final Direction[] directions;
+    /** Whether each player died in the current tick. */
+    private final boolean[] died;
+    /** Whether anyone died in the current tick. */
+    private boolean anyDied = false;
+    /** The number of ticks recorded. */
+    private int ticks = 0;
+    /** The number of ticks between keyframes. */
+    private final int keyframeInterval;
+    /** The state of the match, used for keyframes. */
+    private final ReplayState state;
+    /** The tick of every keyframe. */
+    private int[] keyframeTicks = new int[16];
+    /** The position of every keyframe in the file. */
+    private long[] keyframeOffsets = new long[16];
+    /** The number of keyframes written. */
+    private int keyframes = 0;
+    
+    /**
+     * Creates a replay file with the default keyframe interval and writes its header.
+     * 
+     * @param file The file to write the replay to.
+     * @param width The width of the map.
+     * @param height The height of the map.
+     * @param seed The random seed of the match.
+     * @param names The names of the players, in order of ID.
+     * @param startX The horizontal start position of every player.
+     * @param startY The vertical start position of every player.
+     */
+    public ReplayWriter(File file, int width, int height, int seed,
+                        String[] names, int[] startX, int[] startY) {
+        this(file, width, height, seed, names, startX, startY, KEYFRAME_INTERVAL);
+    }
+    
+    /**
+     * Creates a replay file and writes its header.
+     * 
+     * @param file The file to write the replay to.
+     * @param width The width of the map.
+     * @param height The height of the map.
+     * @param seed The random seed of the match.
+     * @param names The names of the players, in order of ID.
+     * @param startX The horizontal start position of every player.
+     * @param startY The vertical start position of every player.
+     * @param keyframeInterval The number of ticks between keyframes.
+     */
+    public ReplayWriter(File file, int width, int height, int seed,
+                        String[] names, int[] startX, int[] startY, int keyframeInterval) {
+        this.file = file;
+        this.keyframeInterval = keyframeInterval;
+        this.state = new ReplayState(width, height, startX, startY);
+        this.alive = new boolean[names.length];
+        this.directions = new Direction[names.length];
+        this.died = new boolean[names.length];
+        for (int i = 0; i < names.length; i++) {
+            alive[i] = true;
+            directions[i] = Direction.N;
+        }
+        
+        // The header is built here, so the positions of keyframes are known.
+        final ByteArrayOutputStream header = new ByteArrayOutputStream();
+        try {
+            DataOutputStream h = new DataOutputStream(header);
+            h.writeInt(MAGIC);
+            h.writeByte(VERSION);
+            h.writeShort(width);
+            h.writeShort(height);
+            h.writeByte(names.length);
+            h.writeInt(seed);
+            h.writeShort(keyframeInterval);
+            for (int i = 0; i < names.length; i++) {
+                h.writeUTF(names[i]);
+                h.writeShort(startX[i]);
+                h.writeShort(startY[i]);
+            }
+        } catch (IOException ioe) {
+            // Can't happen when writing to memory.
+            throw new IllegalStateException(ioe);
+        }
+        written = header.size();
+        
+        writer.execute(new Runnable() {
+            public void run() {
+                try {
+                    out = new DataOutputStream(new BufferedOutputStream(
+                            new FileOutputStream(ReplayWriter.this.file)));
+                    header.writeTo(out);
+                } catch (IOException ioe) {
+                    fail(ioe);
+                }
+            }
+        });
+    }
+    
+    /**
+     * Stops writing the replay after an error.
+     * 
+     * @param ioe The error that happened.
+     */
+    private void fail(IOException ioe) {
+        if (!failed) {
+            System.err.printf("Could not write replay %s:%n%s%n", file, ioe.getMessage());
+        }
+        failed = true;
+        if (out != null) {
+            try {
+                out.close();
+            } catch (IOException e) { }
+        }
+    }
+    
+    /**
+     * Hands the full part of the buffer to the background thread
+     * and gets a new buffer.
+     */
+    private void flush() {
+        final byte[] full = buffer;
+        final int length = position;
+        if (length == 0) {
+            return;
+        }
+        
+        buffer = freeBuffers.poll();
+        if (buffer == null) {
+            buffer = new byte[BUFFER_SIZE];
+        }
+        position = 0;
+        written += length;
+        
+        writer.execute(new Runnable() {
+            public void run() {
+                if (!failed) {
+                    try {
+                        out.write(full, 0, length);
+                    } catch (IOException ioe) {
+                        fail(ioe);
+                    }
+                }
+                freeBuffers.offer(full);
+            }
+        });
+    }
+    
+    /**
+     * Appends bits to the bit stream.
+     * 
+     * @param value The bits to append, in the lowest bits of the value.
+     * @param count The number of bits to append, at most 24.
+     */
+    private void writeBits(int value, int count) {
+        bits = (bits << count) | (value & ((1 << count) - 1));
+        bitCount += count;
+        while (bitCount >= 8) {
+            bitCount -= 8;
+            buffer[position++] = (byte) (bits >>> bitCount);
+            if (position == buffer.length) {
+                flush();
+            }
+        }
+        bits &= (1 << bitCount) - 1;
+    }
+    
+    /**
+     * Pads the bit stream to a whole byte.
+     */
+    private void padBits() {
+        if (bitCount > 0) {
+            writeBits(0, 8 - bitCount);
+        }
+    }
+    
+    /**
+     * Appends whole bytes to the stream, which must be padded.
+     * 
+     * @param bytes The bytes to append.
+     */
+    private void writeBytes(byte[] bytes) {
+        int offset = 0;
+        while (offset < bytes.length) {
+            int length = Math.min(bytes.length - offset, buffer.length - position);
+            System.arraycopy(bytes, offset, buffer, position, length);
+            position += length;
+            offset += length;
+            if (position == buffer.length) {
+                flush();
+            }
+        }
+    }
+    
+    /**
+     * Writes a keyframe of the current state and adds it to the index.
+     */
+    private void writeKeyframe() {
+        padBits();
+        if (keyframes == keyframeTicks.length) {
+            keyframeTicks = Arrays.copyOf(keyframeTicks, keyframes * 2);
+            keyframeOffsets = Arrays.copyOf(keyframeOffsets, keyframes * 2);
+        }
+        keyframeTicks[keyframes] = ticks;
+        keyframeOffsets[keyframes] = written + position;
+        keyframes++;
+        
+        ByteArrayOutputStream keyframe = new ByteArrayOutputStream();
+        try {
+            DataOutputStream k = new DataOutputStream(keyframe);
+            k.writeInt(0);
+            state.writeKeyframe(k);
+        } catch (IOException ioe) {
+            // Can't happen when writing to memory.
+            throw new IllegalStateException(ioe);
+        }
+        byte[] bytes = keyframe.toByteArray();
+        int length = bytes.length - 4;
+        bytes[0] = (byte) (length >>> 24);
+        bytes[1] = (byte) (length >>> 16);
+        bytes[2] = (byte) (length >>> 8);
+        bytes[3] = (byte) length;
+        writeBytes(bytes);
+    }
+    
+    /**
+     * Records a player's move in the current tick.
+     * 
+     * @param player The index of the player (ID - 1).
+     * @param dir The direction the player moved.
+     */
+    public void move(int player, Direction dir) {
+        directions[player] = dir;
+    }
+    
+    /**
+     * Records a player's death in the current tick.
+     * 
+     * @param player The index of the player (ID - 1).
+     */
+    public void kill(int player) {
+        died[player] = true;
+        anyDied = true;
+    }
+    
+    /**
+     * Ends the current tick, adding it to the bit stream.
+     * Players that died before moving keep the direction of their last move.
+     */
+    public void endTick() {
+        if (failed) {
+            return;
+        }
+        
+        for (int i = 0; i < alive.length; i++) {
+            if (alive[i]) {
+                writeBits(directions[i].ordinal(), 2);
+            }
+        }
+        
+        writeBits(anyDied ? 1 : 0, 1);
+        if (anyDied) {
+            for (int i = 0; i < alive.length; i++) {
+                if (alive[i]) {
+                    writeBits(died[i] ? 1 : 0, 1);
+                }
+            }
+        }
+        
+        state.apply(directions, died);
+        if (anyDied) {
+            for (int i = 0; i < alive.length; i++) {
+                if (died[i]) {
+                    alive[i] = false;
+                    died[i] = false;
+                }
+            }
+            anyDied = false;
+        }
+        
+        ticks++;
+        if (ticks % keyframeInterval == 0) {
+            writeKeyframe();
+        }
+    }
+    
+    /**
+     * Finishes the replay, writing the trailer and closing the file.
+     * 
+     * @param points The points of every player.
+     * @param lengths The length of every player.
+     */
+    public void close(final int[] points, final int[] lengths) {
+        padBits();
+        flush();
+        
+        final int tickCount = ticks;
+        final int keyframeCount = keyframes;
+        final int[] kfTicks = keyframeTicks;
+        final long[] kfOffsets = keyframeOffsets;
+        writer.execute(new Runnable() {
+            public void run() {
+                if (failed) {
+                    return;
+                }
+                
+                try {
+                    long trailer = out.size();
+                    out.writeInt(tickCount);
+                    for (int i = 0; i < points.length; i++) {
+                        out.writeInt(points[i]);
+                        out.writeInt(lengths[i]);
+                    }
+                    out.writeInt(keyframeCount);
+                    for (int i = 0; i < keyframeCount; i++) {
+                        out.writeInt(kfTicks[i]);
+                        out.writeLong(kfOffsets[i]);
+                    }
+                    out.writeLong(trailer);
+                    out.close();
+                } catch (IOException ioe) {
+                    fail(ioe);
+                }
+            }
+        });
+    }
+    
+    /**
+     * Gets the file the replay is written to.
+     * 
+     * @return The replay file.
+     */
+    public File getFile() {
+        return file;
+    }
+}
@@ -0,0 +1,333 @@
+/*
+ * Copyright (c) 2011, Åpen sone for eksperimentell informatikk
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *    - Redistributions of source code must retain the above copyright
+ *      notice, this list of conditions and the following disclaimer.
+ *    - Redistributions in binary form must reproduce the above copyright
+ *      notice, this list of conditions and the following disclaimer in the
+ *      documentation and/or other materials provided with the distribution.
+ *    - Neither the name of the <organization> nor the
+ *      names of its contributors may be used to endorse or promote products
+ *      derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package no.uio.ifi.sonen.aicycles.server;
+
+import no.uio.ifi.sonen.aicycles.Checksum;
+import no.uio.ifi.sonen.aicycles.Cycle;
+import no.uio.ifi.sonen.aicycles.Direction;
+
+/**
+ * The rules of the game, without any networking or timing.
+ * 
+ * Every tick, each live cycle moves one square in order of player ID.
+ * A cycle that moves into the wall or a claimed square dies,
+ * taking with it any live cycle with a higher ID standing on that square.
+ * Otherwise it claims the square it moved into.
+ * 
+ * The arena also keeps track of the order players died in,
+ * and uses it to hand out points and lengths when the match is finished.
+ *
+ * @author Sigmund Hansen <sigmunha@ifi.uio.no>
+ */
+public class Arena {
+    
+    /**
+     * Gets told about what happens during a tick.
+     */
+    public interface Listener {
+        
+        /**
+         * Called after a cycle has moved, before checking for collisions.
+         * 
+         * @param player The index of the player (ID - 1).
+         * @param dir The direction the cycle moved.
+         */
+        void moved(int player, Direction dir);
+        
+        /**
+         * Called after a cycle has died.
+         * 
+         * @param player The index of the player (ID - 1).
+         */
+        void died(int player);
+    }
+    
+    /** The map, holding the ID of the player owning each square or 0. */
+    private final int[][] map;
+    /** The cycles of the players, in order of ID. */
+    private final Cycle[] cycles;
+    /** The number of live cycles. */
+    private int liveCount;
+    /** The number of ticks that have been run. */
+    private int tick = 0;
+    /** The players in the order they died. */
+    private final int[] deathOrder;
+    /** The number of players that have died. */
+    private int deaths = 0;
+    /** The tick each player died in, its length. */
+    private final int[] lengths;
+    /** The points of each player, set when the match is finished. */
+    private final int[] points;
+    /** The XOR of the hashes of all claimed squares. */
+    private long gridHash = 0;
+    
+    /**
+     * Creates an arena with the given cycles on their start positions.
+     * 
+     * @param width The width of the map.
+     * @param height The height of the map.
+     * @param cycles The cycles of the players, in order of ID.
+     */
+    public Arena(int width, int height, Cycle[] cycles) {
+        this.map = new int[width][height];
+        this.cycles = cycles;
+        this.liveCount = cycles.length;
+        this.deathOrder = new int[cycles.length];
+        this.lengths = new int[cycles.length];
+        this.points = new int[cycles.length];
+        for (int i = 0; i < cycles.length; i++) {
+            claim(cycles[i].getX(), cycles[i].getY(), i + 1);
+        }
+    }
+    
+    /**
+     * Creates an arena with new cycles at the given start positions.
+     * 
+     * @param width The width of the map.
+     * @param height The height of the map.
+     * @param startX The horizontal start position of every player.
+     * @param startY The vertical start position of every player.
+     */
+    public Arena(int width, int height, int[] startX, int[] startY) {
+        this(width, height, createCycles(startX, startY));
+    }
+    
+    /**
+     * Creates cycles at the given positions.
+     * 
+     * @param x The horizontal position of every cycle.
+     * @param y The vertical position of every cycle.
+     * @return The cycles.
+     */
+    private static Cycle[] createCycles(int[] x, int[] y) {
+        Cycle[] cycles = new Cycle[x.length];
+        for (int i = 0; i < cycles.length; i++) {
+            cycles[i] = new Cycle(x[i], y[i]);
+        }
+        return cycles;
+    }
+    
+    /**
+     * Claims a square for a player.
+     * 
+     * @param x The horizontal position of the square.
+     * @param y The vertical position of the square.
+     * @param owner The ID of the player claiming the square.
+     */
+    private void claim(int x, int y, int owner) {
+        map[x][y] = owner;
+        gridHash ^= Checksum.square(x, y, owner);
+    }
+    
+    /**
+     * Kills a cycle and notes when it died.
+     * 
+     * @param player The index of the player.
+     * @param listener The listener to tell about the death.
+     */
+    private void kill(int player, Listener listener) {
+        cycles[player].kill();
+        lengths[player] = tick;
+        deathOrder[deaths++] = player;
+        liveCount--;
+        listener.died(player);
+    }
+    
+    /**
+     * Runs a single tick, moving all live cycles and killing colliding ones.
+     * 
+     * @param listener The listener to tell about moves and deaths.
+     * @return The number of live cycles after the tick.
+     */
+    public int step(Listener listener) {
+        for (int i = 0; i < cycles.length; i++) {
+            Cycle c = cycles[i];
+            if (!c.isAlive()) {
+                continue;
+            }
+            
+            Direction d = c.getDirection();
+            c.update();
+            listener.moved(i, d);
+            int x = c.getX();
+            int y = c.getY();
+            
+            if (x >= 0 && x < map.length
+                && y >= 0 && y < map[x].length
+                && map[x][y] == 0) {
+                claim(x, y, i + 1);
+                
+            } else {
+                for (int j = i + 1; j < cycles.length; j++) {
+                    Cycle c2 = cycles[j];
+                    if (c2.isAlive() && c2.getX() == x && c2.getY() == y) {
+                        kill(j, listener);
+                    }
+                }
+                kill(i, listener);
+            }
+        }
+        
+        tick++;
+        return liveCount;
+    }
+    
+    /**
+     * Finishes the match, killing the survivors and handing out points.
+     * Players get a point for every player that died before them,
+     * in the order the deaths were handled.
+     */
+    public void finish() {
+        for (int i = 0; i < cycles.length; i++) {
+            if (cycles[i].isAlive()) {
+                cycles[i].kill();
+                lengths[i] = tick;
+                deathOrder[deaths++] = i;
+                liveCount--;
+            }
+        }
+        
+        for (int i = 0; i < deaths; i++) {
+            points[deathOrder[i]] = i;
+        }
+    }
+    
+    /**
+     * Gets the number of ticks that have been run.
+     * 
+     * @return The current tick.
+     */
+    public int getTick() {
+        return tick;
+    }
+    
+    /**
+     * Gets the number of live cycles.
+     * 
+     * @return The number of cycles still alive.
+     */
+    public int getLiveCount() {
+        return liveCount;
+    }
+    
+    /**
+     * Gets a player's cycle.
+     * 
+     * @param player The index of the player (ID - 1).
+     * @return The player's cycle.
+     */
+    public Cycle getCycle(int player) {
+        return cycles[player];
+    }
+    
+    /**
+     * Gets the checksum of the current state,
+     * the claimed squares and the position and state of every cycle.
+     * 
+     * @return The state's checksum.
+     * @see Checksum
+     */
+    public long getChecksum() {
+        return gridHash ^ Checksum.cycles(cycles, 0);
+    }
+    
+    /**
+     * Gets the map itself, which must not be modified.
+     * 
+     * @return The owner of every square, indexed by x and then y.
+     */
+    int[][] getMap() {
+        return map;
+    }
+    
+    /**
+     * Gets the cycles of all players, which must not be modified.
+     * 
+     * @return The cycles, in order of player ID.
+     */
+    Cycle[] getCycles() {
+        return cycles;
+    }
+    
+    /**
+     * Gets the owner of a square.
+     * 
+     * @param x The horizontal position of the square.
+     * @param y The vertical position of the square.
+     * @return The ID of the player owning the square, or 0 if it's free.
+     */
+    public int getOwner(int x, int y) {
+        return map[x][y];
+    }
+    
+    /**
+     * Gets the width of the map.
+     * 
+     * @return The map's width.
+     */
+    public int getWidth() {
+        return map.length;
+    }
+    
+    /**
+     * Gets the height of the map.
+     * 
+     * @return The map's height.
+     */
+    public int getHeight() {
+        return map[0].length;
+    }
+    
+    /**
+     * Gets the number of players.
+     * 
+     * @return The number of players.
+     */
+    public int getPlayerCount() {
+        return cycles.length;
+    }
+    
+    /**
+     * Gets a player's length, the tick it died in.
+     * 
+     * @param player The index of the player (ID - 1).
+     * @return The player's length, 0 if it's still alive.
+     */
+    public int getLength(int player) {
+        return lengths[player];
+    }
+    
+    /**
+     * Gets a player's points, only set after the match is finished.
+     * 
+     * @param player The index of the player (ID - 1).
+     * @return The player's points.
+     */
+    public int getPoints(int player) {
+        return points[player];
+    }
+}
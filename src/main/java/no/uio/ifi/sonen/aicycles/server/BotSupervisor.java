@@ -0,0 +1,346 @@
+/*
+ * Copyright (c) 2011, Åpen sone for eksperimentell informatikk
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *    - Redistributions of source code must retain the above copyright
+ *      notice, this list of conditions and the following disclaimer.
+ *    - Redistributions in binary form must reproduce the above copyright
+ *      notice, this list of conditions and the following disclaimer in the
+ *      documentation and/or other materials provided with the distribution.
+ *    - Neither the name of the <organization> nor the
+ *      names of its contributors may be used to endorse or promote products
+ *      derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package no.uio.ifi.sonen.aicycles.server;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Scanner;
+import java.util.concurrent.TimeUnit;
+import no.uio.ifi.sonen.aicycles.metrics.Counter;
+import no.uio.ifi.sonen.aicycles.metrics.Gauge;
+import no.uio.ifi.sonen.aicycles.metrics.Metrics;
+
+/**
+ * Keeps one resident bot process for each team,
+ * which plays match after match instead of starting a new JVM for each,
+ * so the bots' first moves in a match are as fast as the rest.
+ * 
+ * The bots are listed in a file, one team on each line,
+ * followed by the command starting the team's bot,
+ * and lines starting with # are ignored:
+ * <pre>
+ * joe java -cp AICycles.jar no.uio.ifi.sonen.aicycles.AwesomeBot localhost resident
+ * </pre>
+ * 
+ * A resident bot prints {@link #STARTED} when its main method is entered,
+ * warms up, and prints {@link #READY}. After that, it connects to the server
+ * for every line written to its standard input, plays the match,
+ * and waits for the next line. When its standard input is closed, it exits.
+ * The time until the bot starts and the time it takes to warm up
+ * are printed and exported as metrics,
+ * and a bot that exits is started again.
+ * Anything else the bot prints is printed with the team's name in front.
+ *
+ * @author Sigmund Hansen <sigmunha@ifi.uio.no>
+ */
+public class BotSupervisor {
+    
+    /** Printed by a resident bot when it has started. */
+    public static final String STARTED = "started";
+    /** Printed by a resident bot when it has warmed up and waits for matches. */
+    public static final String READY = "ready";
+    /** The number of milliseconds to wait for a bot to be ready for a match. */
+    private static final long READY_TIMEOUT = Long.getLong("aicycles.botReadyTimeout", 120000);
+    /** The number of milliseconds to wait before starting a bot that exited. */
+    private static final long RESTART_DELAY = 1000;
+    /** The number of milliseconds to wait for the bots to exit when closing. */
+    private static final long EXIT_TIMEOUT = 5000;
+    
+    /** The resident bots, by team. */
+    private final Map<String, Resident> bots = new LinkedHashMap<String, Resident>();
+    /** Whether the supervisor has been closed, and bots should not be restarted. */
+    private volatile boolean closed = false;
+    
+    /**
+     * Reads the bots to run from a file.
+     * 
+     * @param config The file listing each team and the command starting its bot.
+     * @throws IOException if the file could not be read.
+     */
+    public BotSupervisor(File config) throws IOException {
+        Scanner s = new Scanner(config);
+        try {
+            while (s.hasNextLine()) {
+                String line = s.nextLine().trim();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                
+                String[] words = line.split("\\s+");
+                if (words.length < 2) {
+                    throw new IOException("No command for team " + words[0]);
+                }
+                bots.put(words[0], new Resident(words[0],
+                                                Arrays.asList(words).subList(1, words.length)));
+            }
+        } finally {
+            s.close();
+        }
+    }
+    
+    /**
+     * Starts every team's bot.
+     */
+    public void start() {
+        for (Resident r : bots.values()) {
+            r.launch();
+        }
+    }
+    
+    /**
+     * Tells the resident bots of the teams in a match to connect to it,
+     * waiting for any bots still warming up.
+     * Teams without a resident bot are left to connect on their own.
+     * 
+     * @param teams The teams in the match.
+     */
+    public void play(String[] teams) {
+        for (String team : teams) {
+            Resident r = bots.get(team);
+            if (r != null) {
+                r.play();
+            }
+        }
+    }
+    
+    /**
+     * Closes the standard input of every bot, so they exit,
+     * and kills the ones that don't.
+     */
+    public void close() {
+        closed = true;
+        for (Resident r : bots.values()) {
+            r.stop();
+        }
+    }
+    
+    /**
+     * A team's resident bot, and the process currently running it.
+     */
+    private class Resident {
+        
+        /** The name of the team. */
+        private final String team;
+        /** The command starting the bot. */
+        private final List<String> command;
+        /** The number of milliseconds from starting the process until the bot started. */
+        private final Gauge startup;
+        /** The number of milliseconds the bot took to warm up. */
+        private final Gauge warmup;
+        /** The number of times the bot has been started again after exiting. */
+        private final Counter restarts;
+        /** The process running the bot, or null before it's launched or if launching failed. */
+        private Process process;
+        /** The standard input of the process. */
+        private PrintStream input;
+        /** Whether the bot in the current process is ready for matches. */
+        private boolean ready = false;
+        
+        /**
+         * Creates a team's resident bot, without starting it.
+         * 
+         * @param team The name of the team.
+         * @param command The command starting the bot.
+         */
+        Resident(String team, List<String> command) {
+            this.team = team;
+            this.command = new ArrayList<String>(command);
+            String label = "{team=\"" + team.replace("\"", "") + "\"}";
+            startup = new Gauge("aicycles_bot_startup_milliseconds" + label,
+                                "Time from starting a bot process until its main method ran.");
+            warmup = new Gauge("aicycles_bot_warmup_milliseconds" + label,
+                               "Time a bot took to warm up before playing.");
+            restarts = new Counter("aicycles_bot_restarts_total" + label,
+                                   "Bot processes started again after exiting.");
+            Metrics.register(startup);
+            Metrics.register(warmup);
+            Metrics.register(restarts);
+        }
+        
+        /**
+         * Starts a process running the bot,
+         * and a thread reading what it prints and starting it again if it exits.
+         */
+        synchronized void launch() {
+            final long launched = System.nanoTime();
+            final Process p;
+            try {
+                p = new ProcessBuilder(command)
+                        .redirectError(ProcessBuilder.Redirect.INHERIT)
+                        .start();
+            } catch (IOException ioe) {
+                System.err.printf("Could not start the bot of %s:%n%s%n", team, ioe.getMessage());
+                process = null;
+                input = null;
+                ready = false;
+                notifyAll();
+                return;
+            }
+            
+            process = p;
+            input = new PrintStream(p.getOutputStream(), true);
+            ready = false;
+            new Thread(new Runnable() {
+                /**
+                 * Reads the bot's output until the process exits.
+                 */
+                public void run() {
+                    watch(p, launched);
+                }
+            }, "bot-" + team).start();
+        }
+        
+        /**
+         * Reads the output of a bot process, noting when it has started
+         * and warmed up, and starts the bot again when the process exits.
+         * 
+         * @param p The process.
+         * @param launched When the process was started, from System.nanoTime.
+         */
+        private void watch(Process p, long launched) {
+            long started = launched;
+            try {
+                BufferedReader out = new BufferedReader(new InputStreamReader(p.getInputStream()));
+                String line;
+                while ((line = out.readLine()) != null) {
+                    long now = System.nanoTime();
+                    if (STARTED.equals(line)) {
+                        started = now;
+                        startup.set((started - launched) / 1000000);
+                    } else if (READY.equals(line)) {
+                        warmup.set((now - started) / 1000000);
+                        System.out.printf("The bot of %s started in %d ms and warmed up in %d ms.%n",
+                                          team, startup.getValue(), warmup.getValue());
+                        synchronized (this) {
+                            ready = true;
+                            notifyAll();
+                        }
+                    } else {
+                        System.out.printf("[%s] %s%n", team, line);
+                    }
+                }
+                p.waitFor();
+            } catch (IOException ioe) {
+                p.destroyForcibly();
+            } catch (InterruptedException e) {
+                p.destroyForcibly();
+            }
+            
+            synchronized (this) {
+                ready = false;
+                notifyAll();
+            }
+            if (closed) {
+                return;
+            }
+            
+            // A process killed above may not have exited yet.
+            String status;
+            try {
+                status = String.valueOf(p.waitFor());
+            } catch (InterruptedException e) {
+                status = "an unknown status";
+            }
+            System.err.printf("The bot of %s exited with %s, starting it again.%n",
+                              team, status);
+            restarts.increment();
+            try {
+                Thread.sleep(RESTART_DELAY);
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (!closed) {
+                launch();
+            }
+        }
+        
+        /**
+         * Tells the bot to connect to the next match, once it's ready.
+         * A bot that could not be started is tried once more first.
+         */
+        synchronized void play() {
+            if (process == null && !closed) {
+                launch();
+            }
+            
+            long end = System.currentTimeMillis() + READY_TIMEOUT;
+            // A bot that has just died may not have been noticed yet.
+            while (process != null && (!ready || !process.isAlive()) && !closed) {
+                long left = end - System.currentTimeMillis();
+                if (left <= 0) {
+                    System.err.printf("The bot of %s isn't ready, playing without it.%n", team);
+                    return;
+                }
+                try {
+                    wait(left);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+            
+            if (process == null) {
+                System.err.printf("The bot of %s could not be started, playing without it.%n",
+                                  team);
+            } else if (ready && process.isAlive()) {
+                input.println();
+            }
+        }
+        
+        /**
+         * Closes the bot's standard input, and kills it if it doesn't exit.
+         */
+        void stop() {
+            Process p;
+            PrintStream in;
+            synchronized (this) {
+                p = process;
+                in = input;
+                notifyAll();
+            }
+            if (p == null) {
+                return;
+            }
+            
+            in.close();
+            try {
+                if (!p.waitFor(EXIT_TIMEOUT, TimeUnit.MILLISECONDS)) {
+                    p.destroyForcibly();
+                }
+            } catch (InterruptedException e) {
+                p.destroyForcibly();
+            }
+        }
+    }
+}
@@ -0,0 +1,193 @@
+/*
+ * Copyright (c) 2011, Åpen sone for eksperimentell informatikk
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *    - Redistributions of source code must retain the above copyright
+ *      notice, this list of conditions and the following disclaimer.
+ *    - Redistributions in binary form must reproduce the above copyright
+ *      notice, this list of conditions and the following disclaimer in the
+ *      documentation and/or other materials provided with the distribution.
+ *    - Neither the name of the <organization> nor the
+ *      names of its contributors may be used to endorse or promote products
+ *      derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package no.uio.ifi.sonen.aicycles.server;
+
+import no.uio.ifi.sonen.aicycles.net.Packet;
+
+/**
+ * The packets waiting to be broadcast to every client, in order.
+ * 
+ * The queue is a ring of reusable entries, which only grows
+ * if the broadcast falls far behind, and updates are queued
+ * as their fields rather than as packets,
+ * so the tick loop can queue a tick's packets without allocating.
+ * Update packets are created when they are taken from the queue,
+ * and only formatted as text by transports that can't encode them directly.
+ * 
+ * To wait for packets, synchronize on the queue.
+ *
+ * @author Sigmund Hansen <sigmunha@ifi.uio.no>
+ */
+class BroadcastQueue {
+    
+    /** The number of entries in a new queue. */
+    private static final int INITIAL_CAPACITY = 64;
+    
+    /** The entries, the queued ones starting at head, guarded by this. */
+    private Entry[] entries;
+    /** The index of the next entry to take, guarded by this. */
+    private int head = 0;
+    /** The number of queued entries, guarded by this. */
+    private int size = 0;
+    
+    /**
+     * Creates an empty queue.
+     */
+    BroadcastQueue() {
+        entries = new Entry[INITIAL_CAPACITY];
+        for (int i = 0; i < entries.length; i++) {
+            entries[i] = new Entry();
+        }
+    }
+    
+    /**
+     * Takes the next free entry, doubling the ring if it's full.
+     * The caller must hold the lock.
+     * 
+     * @return The entry at the tail of the queue.
+     */
+    private Entry append() {
+        if (size == entries.length) {
+            Entry[] grown = new Entry[entries.length * 2];
+            for (int i = 0; i < grown.length; i++) {
+                grown[i] = i < size ? entries[(head + i) % entries.length] : new Entry();
+            }
+            entries = grown;
+            head = 0;
+        }
+        
+        Entry e = entries[(head + size) % entries.length];
+        size++;
+        return e;
+    }
+    
+    /**
+     * Adds a packet to the end of the queue.
+     * 
+     * @param pkt The packet to broadcast.
+     */
+    synchronized void offer(Packet pkt) {
+        append().packet = pkt;
+    }
+    
+    /**
+     * Adds an update to the end of the queue.
+     * 
+     * @param tick The update's tick.
+     * @param checksums Whether the update has a checksum.
+     * @param checksum The checksum of the state after the tick.
+     * @param deadlines Whether the update has the tick's start and deadline.
+     * @param start When the tick started on the server's clock, in microseconds.
+     * @param deadline When the next tick starts, in microseconds.
+     */
+    synchronized void offerUpdate(int tick, boolean checksums, long checksum,
+                                  boolean deadlines, long start, long deadline) {
+        Entry e = append();
+        e.packet = null;
+        e.tick = tick;
+        e.checksums = checksums;
+        e.checksum = checksum;
+        e.deadlines = deadlines;
+        e.start = start;
+        e.deadline = deadline;
+    }
+    
+    /**
+     * Takes the packet at the head of the queue.
+     * 
+     * @return The packet, or null if the queue is empty.
+     */
+    Packet poll() {
+        int tick;
+        boolean checksums;
+        long checksum;
+        boolean deadlines;
+        long start;
+        long deadline;
+        synchronized (this) {
+            if (size == 0) {
+                return null;
+            }
+            
+            Entry e = entries[head];
+            head = (head + 1) % entries.length;
+            size--;
+            if (e.packet != null) {
+                Packet pkt = e.packet;
+                e.packet = null;
+                return pkt;
+            }
+            tick = e.tick;
+            checksums = e.checksums;
+            checksum = e.checksum;
+            deadlines = e.deadlines;
+            start = e.start;
+            deadline = e.deadline;
+        }
+        
+        return new Packet.UpdatePacket(tick, checksums, checksum, deadlines, start, deadline);
+    }
+    
+    /**
+     * Checks whether the queue is empty.
+     * 
+     * @return true if there is nothing to broadcast.
+     */
+    synchronized boolean isEmpty() {
+        return size == 0;
+    }
+    
+    /**
+     * Gets the number of packets waiting to be broadcast.
+     * 
+     * @return The length of the queue.
+     */
+    synchronized int size() {
+        return size;
+    }
+    
+    /**
+     * A slot in the ring, holding either a packet or the fields of an update.
+     */
+    private static class Entry {
+        
+        /** The packet, or null if this is an update. */
+        Packet packet;
+        /** The update's tick. */
+        int tick;
+        /** Whether the update has a checksum. */
+        boolean checksums;
+        /** The update's checksum. */
+        long checksum;
+        /** Whether the update has a start and deadline. */
+        boolean deadlines;
+        /** The update's start in microseconds. */
+        long start;
+        /** The update's deadline in microseconds. */
+        long deadline;
+    }
+}
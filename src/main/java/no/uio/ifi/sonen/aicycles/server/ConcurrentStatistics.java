@@ -0,0 +1,171 @@
+/*
+ * Copyright (c) 2011, Åpen sone for eksperimentell informatikk
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *    - Redistributions of source code must retain the above copyright
+ *      notice, this list of conditions and the following disclaimer.
+ *    - Redistributions in binary form must reproduce the above copyright
+ *      notice, this list of conditions and the following disclaimer in the
+ *      documentation and/or other materials provided with the distribution.
+ *    - Neither the name of the <organization> nor the
+ *      names of its contributors may be used to endorse or promote products
+ *      derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package no.uio.ifi.sonen.aicycles.server;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Tournament totals that many finishing matches can add their statistics to at once.
+ * 
+ * Every team has its own totals, guarded by its own lock,
+ * so matches only contend when they finish at the same time with the same teams.
+ * Reads take a snapshot into a plain {@link Statistics} object.
+ *
+ * @author Sigmund Hansen <sigmund@chickensoft.com>
+ */
+public class ConcurrentStatistics {
+    
+    /**
+     * The running totals for a single team.
+     */
+    private static class Totals {
+        /** The order in which the team was first seen, keeps snapshots stable. */
+        private final int order;
+        /** The summed points of the team, guarded by the totals' lock. */
+        private long points;
+        /** The summed length of the team's trails, guarded by the totals' lock. */
+        private long length;
+        /** The distribution of survived rounds, guarded by the totals' lock. */
+        private final QuantileSketch survival = new QuantileSketch();
+        /** The distribution of finishing places, guarded by the totals' lock. */
+        private final QuantileSketch place = new QuantileSketch();
+        
+        /**
+         * Creates empty totals.
+         * 
+         * @param order The order in which the team was first seen.
+         */
+        private Totals(int order) {
+            this.order = order;
+        }
+    }
+    
+    /** The totals of each team. */
+    private final ConcurrentMap<String, Totals> teams =
+            new ConcurrentHashMap<String, Totals>();
+    /** The number of teams that have been seen, used for ordering. */
+    private final AtomicInteger teamCount = new AtomicInteger();
+    /** The number of games that have been added. */
+    private final LongAdder gameCount = new LongAdder();
+    
+    /**
+     * Gets the totals of a team, creating them if the team is new.
+     * 
+     * @param name The name of the team.
+     * @return The team's totals.
+     */
+    private Totals getTotals(String name) {
+        Totals t = teams.get(name);
+        if (t == null) {
+            Totals created = new Totals(teamCount.getAndIncrement());
+            t = teams.putIfAbsent(name, created);
+            if (t == null) {
+                t = created;
+            }
+        }
+        return t;
+    }
+    
+    /**
+     * Adds the statistics of a match to the totals.
+     * Safe to call from several threads at once.
+     * 
+     * @param s The stats to add.
+     */
+    public void add(Statistics s) {
+        for (String name : s.getTeams()) {
+            Totals t = getTotals(name);
+            QuantileSketch survival = s.getSurvival(name);
+            QuantileSketch place = s.getPlace(name);
+            synchronized (t) {
+                t.points += s.getPoints(name);
+                t.length += s.getLength(name);
+                t.survival.merge(survival);
+                t.place.merge(place);
+            }
+        }
+        
+        gameCount.increment();
+    }
+    
+    /**
+     * Takes a snapshot of the current totals.
+     * Matches finishing while the snapshot is taken
+     * may or may not be part of it, but each team's totals are never torn.
+     * 
+     * @return A statistics object with the summed points and lengths of all teams.
+     */
+    public Statistics snapshot() {
+        List<Map.Entry<String, Totals>> entries =
+                new ArrayList<Map.Entry<String, Totals>>(teams.entrySet());
+        Collections.sort(entries, new Comparator<Map.Entry<String, Totals>>() {
+            public int compare(Map.Entry<String, Totals> a,
+                               Map.Entry<String, Totals> b) {
+                return a.getValue().order - b.getValue().order;
+            }
+        });
+        
+        Statistics s = new Statistics(0, 0, 0, entries.size());
+        for (Map.Entry<String, Totals> e : entries) {
+            Totals t = e.getValue();
+            synchronized (t) {
+                s.addTotals(e.getKey(), (int) t.points, (int) t.length);
+                s.setDistributions(e.getKey(), t.survival.copy(), t.place.copy());
+            }
+        }
+        s.setGameCount((int) gameCount.sum());
+        
+        return s;
+    }
+    
+    /**
+     * Gets the teams in order of their rank.
+     * 
+     * @return An array of team names ordered by the teams' rank.
+     * @see Statistics#getRankedTeams() 
+     */
+    public String[] getRankedTeams() {
+        return snapshot().getRankedTeams();
+    }
+    
+    /**
+     * Gets the number of games that have been added.
+     * 
+     * @return The number of games added so far.
+     */
+    public int getGameCount() {
+        return (int) gameCount.sum();
+    }
+}
@@ -26,16 +26,28 @@
  */
 package no.uio.ifi.sonen.aicycles.server;
 
+import no.uio.ifi.sonen.aicycles.metrics.Counter;
+import no.uio.ifi.sonen.aicycles.metrics.Gauge;
+import no.uio.ifi.sonen.aicycles.metrics.Metric;
+import no.uio.ifi.sonen.aicycles.metrics.Metrics;
 import no.uio.ifi.sonen.aicycles.net.Connection;
+import no.uio.ifi.sonen.aicycles.net.HashedWheelTimer;
+import no.uio.ifi.sonen.aicycles.net.LocalTransport;
 import no.uio.ifi.sonen.aicycles.net.MalformedPacketException;
+import no.uio.ifi.sonen.aicycles.net.MappedTransport;
 import no.uio.ifi.sonen.aicycles.net.Packet;
+import no.uio.ifi.sonen.aicycles.net.SharedGrid;
+import java.io.File;
 import java.io.IOException;
 import java.net.ServerSocket;
-import java.util.LinkedList;
-import java.util.Queue;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import no.uio.ifi.sonen.aicycles.Cycle;
 import no.uio.ifi.sonen.aicycles.Direction;
 import no.uio.ifi.sonen.aicycles.Viewer;
+import no.uio.ifi.sonen.aicycles.replay.ReplayWriter;
 
 /**
  * A single light cycle match with players and game state used by a simulation.
@@ -44,25 +56,112 @@ import no.uio.ifi.sonen.aicycles.Viewer;
  */
 public class Match implements Runnable {
 
-    /** The map. */
-    private int[][] map;
+    /** The game rules and map. */
+    private Arena arena;
     /** The match's players*/
     private Player[] players;
+    /** Clients watching the match. */
+    private final List<Player> spectators = new CopyOnWriteArrayList<Player>();
+    /** The map, seed and start positions, sent to every client. */
+    private final List<Packet> setupPackets = new ArrayList<Packet>();
+    /** Accepts players, spectators and players reconnecting during the match. */
+    private ServerSocket serverSocket;
+    /** Accepts connections on the server socket until it is closed. */
+    private Thread acceptor;
+    /** The grid published for bots on this host, or null until one asks for it. */
+    private volatile SharedGrid sharedGrid;
+    /** The number of players that have connected, guarded by players. */
+    private int connectedPlayers = 0;
+    /** Whether the match has started, guarded by players. */
+    private boolean started = false;
     /** Whether the simulation is over. */
     private boolean finished = false;
     /** The number of updates that have gone by. */
     private int updates = 0;
-    /** The number of milliseconds between updates. */
+    /** The number of milliseconds between updates, unless adapting to the bots. */
     private static final long TIMESTEP = 50;
+    /** Whether to adapt the time between updates to how fast the bots answer. */
+    private static final boolean ADAPTIVE = Boolean.getBoolean("aicycles.adaptive");
+    /** The shortest time between updates when adapting, in milliseconds. */
+    private static final long MIN_TIMESTEP = Long.getLong("aicycles.minTimestep", 20);
+    /** The longest time between updates when adapting, in milliseconds. */
+    private static final long MAX_TIMESTEP = Long.getLong("aicycles.maxTimestep", 200);
+    /** The milliseconds added to the slowest bot's response time when adapting. */
+    private static final long TIMESTEP_MARGIN = Long.getLong("aicycles.timestepMargin", 5);
+    /** The number of updates between adapting the time between updates. */
+    private static final int ADAPT_INTERVAL = 20;
+    /** The current number of milliseconds between updates. */
+    private long timestep = TIMESTEP;
+    /** The shortest time between updates used during the match. */
+    private long fastestTimestep = TIMESTEP;
+    /** The longest time between updates used during the match. */
+    private long slowestTimestep = TIMESTEP;
+    /** The number of milliseconds between connecting all players and the first update. */
+    private static final long START_DELAY = 1000;
+    /** The number of milliseconds a connecting client has to finish the handshake. */
+    private static final long HANDSHAKE_TIMEOUT = 2000;
+    /** Whether to send a checksum of the game state with every update. */
+    private static final boolean CHECKSUMS = Boolean.getBoolean("aicycles.checksums");
+    /** Whether to send the start and deadline of the tick with every update. */
+    private static final boolean DEADLINES = Boolean.getBoolean("aicycles.deadlines");
+    /** Whether clients on this host may use shared memory and the shared grid. */
+    private static final boolean SHARED_MEMORY = !"false".equals(
+            System.getProperty("aicycles.allowSharedMemory"));
+    /** The number of matches running. */
+    private static final Gauge ACTIVE_MATCHES = Metrics.gauge(
+            "aicycles_matches_active", "Matches currently running.");
+    /** The number of matches finished. */
+    private static final Counter FINISHED_MATCHES = Metrics.counter(
+            "aicycles_matches_finished_total", "Matches finished.");
+    /** The number of ticks run in all matches. */
+    private static final Counter TICKS = Metrics.counter(
+            "aicycles_ticks_total", "Ticks run in all matches.");
+    /** When the last tick was run, for noticing stalled matches. */
+    private static final Gauge LAST_TICK = Metrics.gauge(
+            "aicycles_last_tick_timestamp_ms", "When the last tick was run, in ms since the epoch.");
+    /** The current time between ticks. */
+    private static final Gauge TIMESTEP_MS = Metrics.gauge(
+            "aicycles_timestep_ms", "Milliseconds between ticks in the current match.");
+    /** The number of live cycles in the current match. */
+    private static final Gauge LIVE_CYCLES = Metrics.gauge(
+            "aicycles_live_cycles", "Live cycles in the current match.");
+    /** The number of connections that didn't become players or spectators. */
+    private static final Counter HANDSHAKE_FAILURES = Metrics.counter(
+            "aicycles_handshake_failures_total", "Connections that failed the handshake.");
+    /** Metrics belonging to this match, registered while it runs. */
+    private final List<Metric> matchMetrics = new ArrayList<Metric>();
     /** A queue of packets to send to clients. */
-    private final ConcurrentLinkedQueue<Packet> broadcastQueue =
-            new ConcurrentLinkedQueue<Packet>();
-    /** The graphical display of the game state. */
+    private final BroadcastQueue broadcastQueue = new BroadcastQueue();
+    /** The move packets of every player in every direction, by ID - 1 and direction. */
+    private final Packet.MovePacket[][] movePackets;
+    /** The die packets of every player, by ID - 1. */
+    private final Packet.IntPacket[] diePackets;
+    /** The line printed when each player dies, by ID - 1, as printing a string allocates. */
+    private final byte[][] deathNotices;
+    /** The graphical display of the game state, or null to run without one. */
     private Viewer viewer;
+    /** The port to accept players on, or negative to only take local players. */
+    private final int port;
     /** Statistics for this match. */
     private Statistics stats;
-    /** List of dead players, used to handle scores for statistics. */
-    private Queue<Player> deadPlayers = new LinkedList<Player>();
+    /** How late ticks started and how long ticks and broadcasts took. */
+    private final TickTimings timings = new TickTimings();
+    /** Never committed, only asked whether tick events are recorded. */
+    private final TickEvent tickEvents = new TickEvent();
+    /** Reacts to moves and deaths in the arena. */
+    private final Arena.Listener events = new Arena.Listener() {
+        public void moved(int player, Direction dir) {
+            move(players[player], dir);
+        }
+        
+        public void died(int player) {
+            kill(players[player]);
+        }
+    };
+    /** The random seed of the match. */
+    private int rand;
+    /** Records the match to a replay file, if enabled. */
+    private ReplayWriter recorder;
 
     /**
      * Creates a match with a map of the given size and the given players.
@@ -72,25 +171,61 @@ public class Match implements Runnable {
      * @param players The names of the players to play with.
      */
     public Match(int width, int height, int rand, String[] players, Viewer viewer) {
-        map = new int[width][height];
+        this(width, height, rand, players, viewer, Connection.PORT);
+    }
+
+    /**
+     * Creates a match with a map of the given size and the given players,
+     * accepting players on the given port.
+     * Several matches can run at once on different ports.
+     * With a negative port, no socket is opened,
+     * and players connect through {@link #connectLocal()}.
+     * 
+     * @param width The width of the game map.
+     * @param height The hight of the game map.
+     * @param rand The random seed of the match.
+     * @param players The names of the players to play with.
+     * @param viewer The viewer to display the match in, or null for none.
+     * @param port The port to accept players on, or negative for none.
+     */
+    public Match(int width, int height, int rand, String[] players, Viewer viewer, int port) {
+        this.port = port;
         int pW = width / 2 - 1;
         int pH = height / 2 - 1;
         double step = (Math.PI * 2) / players.length;
         this.players = new Player[players.length];
+        this.movePackets = new Packet.MovePacket[players.length][Direction.values().length];
+        this.diePackets = new Packet.IntPacket[players.length];
+        this.deathNotices = new byte[players.length][];
         this.viewer = viewer;
         this.stats = new Statistics(width, height, rand, players.length);
+        this.rand = rand;
 
-        broadcastQueue.offer(new Packet.MapPacket(width, height, players.length));
-        broadcastQueue.offer(new Packet.IntPacket(rand, Packet.RND_PKT));
+        setupPackets.add(new Packet.MapPacket(width, height, players.length));
+        setupPackets.add(new Packet.IntPacket(rand, Packet.RND_PKT));
 
         for (int i = 0; i < players.length; i++) {
             int x = (int)(-Math.cos(step * i) * pW) + pW + 1; // P1 starts on the left 
             int y = (int)(Math.sin(step * i) * pH) + pH + 1; // The first players start on the top half
             this.players[i] = new Player(i + 1, players[i], x, y);
             this.stats.addTeam(this.players[i]);
-            map[x][y] = i + 1;
-            broadcastQueue.offer(new Packet.PositionPacket(i + 1, x, y));
+            setupPackets.add(new Packet.PositionPacket(i + 1, x, y));
+            for (Direction d : Direction.values()) {
+                movePackets[i][d.ordinal()] = new Packet.MovePacket(i + 1, d);
+            }
+            diePackets[i] = new Packet.IntPacket(i + 1, Packet.DIE_PKT);
+            deathNotices[i] = ((i + 1) + " died" + System.lineSeparator())
+                    .getBytes(StandardCharsets.US_ASCII);
         }
+        for (Packet setup : setupPackets) {
+            broadcastQueue.offer(setup);
+        }
+        
+        Cycle[] cycles = new Cycle[players.length];
+        for (int i = 0; i < cycles.length; i++) {
+            cycles[i] = this.players[i].getCycle();
+        }
+        arena = new Arena(width, height, cycles);
     }
     
     /**
@@ -107,17 +242,7 @@ public class Match implements Runnable {
             public void run() {
                 while (!broadcastQueue.isEmpty() || !finished) {
                     if (!broadcastQueue.isEmpty()) {
-                        Packet pkt = broadcastQueue.poll();
-                        for (Player p : players) {
-                            try {
-                                p.sendPacket(pkt);
-                            } catch (IOException ioe) {
-                                System.err.printf("Connection problems for %s:%n%s%n",
-                                                  p.getName(), ioe.getMessage());
-                                p.disconnect();
-                            }
-                        }
-
+                        broadcast(broadcastQueue.poll());
                     } else {
                         synchronized (broadcastQueue) {
                             try {
@@ -131,53 +256,230 @@ public class Match implements Runnable {
                 }
 
                 // Disconnect players
+                List<Player> clients = new ArrayList<Player>(spectators);
                 for (Player p : players) {
+                    clients.add(p);
+                }
+                for (Player p : clients) {
                     final Player x = p;
-                    new Thread(new Runnable() {
+                    HashedWheelTimer.getShared().schedule(new Runnable() {
                         /**
                          * Ensures a player gets disconnected
                          * when the game is over.
                          */
                         public void run() {
-                            try {
-                                Thread.sleep(TIMESTEP);
-                            } catch (InterruptedException e) { }
                             x.disconnect();
                         }
-                    }).start();
+                    }, TIMESTEP);
                 }
             }
         }).start();
     }
 
+    /**
+     * Sends a packet taken from the broadcast queue to every client.
+     * 
+     * @param pkt The packet to send.
+     */
+    void broadcast(Packet pkt) {
+        long start = System.nanoTime();
+        for (Player p : players) {
+            send(p, pkt);
+        }
+        if (!spectators.isEmpty()) {
+            for (Player p : spectators) {
+                send(p, pkt);
+            }
+        }
+        timings.broadcast(start, System.nanoTime());
+    }
+
+    /**
+     * Sends a packet to a player or spectator,
+     * followed by any snapshot waiting for the update in the packet.
+     * 
+     * @param p The player or spectator to send to.
+     * @param pkt The packet to send.
+     */
+    private void send(Player p, Packet pkt) {
+        if (p.hasSharedGrid() && (pkt instanceof Packet.MovePacket
+                                  || pkt.getPacketType() == Packet.DIE_PKT)) {
+            return;
+        }
+        
+        try {
+            p.sendPacket(pkt);
+            if (pkt instanceof Packet.UpdatePacket) {
+                p.sendSnapshot(((Packet.UpdatePacket) pkt).getTick());
+            }
+        } catch (IOException ioe) {
+            System.err.printf("Connection problems for %s:%n%s%n",
+                              p.getName(), ioe.getMessage());
+            p.disconnect();
+        }
+    }
+
     /**
      * Connects all players,
      * starts the broadcast thread and runs the simulation.
      */
     public void run() {
-        viewer.reset(map.length, map[0].length, players);
+        registerMetrics();
+        startRecording();
+        if (viewer != null) {
+            viewer.reset(arena.getWidth(), arena.getHeight(), players);
+        }
         connectPlayers();
-        sendUpdate();
+        synchronized (players) {
+            started = true;
+        }
+        long start = System.nanoTime();
+        long first = start + (START_DELAY + TIMESTEP) * 1000000;
+        publishGrid();
+        sendUpdate(start, first);
         startBroadcast();
         
-        for (Player p : players) {
-            viewer.draw(p.getX(), p.getY(), p.getId());
-            new Thread(p).start();
+        if (viewer != null) {
+            for (Player p : players) {
+                viewer.draw(p.getX(), p.getY(), p.getId());
+            }
         }
 
         try {
-            Thread.sleep(1000);
+            Thread.sleep(START_DELAY);
         } catch (InterruptedException e) { }
         
-        simulate();
+        simulate(first);
 
         setPlayerStatistics();
+        stopRecording();
+        for (Player p : players) {
+            System.out.println(p.getCommandReport());
+        }
+        if (ADAPTIVE) {
+            System.out.printf("Time between updates: %d to %d ms, %d ms at the end%n",
+                              fastestTimestep, slowestTimestep, timestep);
+        }
+        System.out.printf("Tick timings (us): %s%n", timings);
 
         broadcastQueue.offer(new Packet.SimplePacket("End of line!", Packet.BYE_PKT));
         synchronized (broadcastQueue) {
             broadcastQueue.notify();
         }
         finished = true;
+        
+        if (serverSocket != null) {
+            try {
+                serverSocket.close();
+            } catch (IOException ioe) {
+                System.err.printf("Could not close server socket: %s%n", ioe.getMessage());
+            }
+            
+            // The port isn't released until the acceptor is out of accept,
+            // and until then, clients of the next match may end up in this one.
+            try {
+                acceptor.join();
+            } catch (InterruptedException e) { }
+        }
+        
+        if (sharedGrid != null) {
+            sharedGrid.close();
+        }
+        unregisterMetrics();
+    }
+    
+    /**
+     * Registers the metrics of this match:
+     * the depth of the broadcast queue,
+     * and the bytes sent to and received from each player.
+     */
+    private void registerMetrics() {
+        ACTIVE_MATCHES.add(1);
+        TIMESTEP_MS.set(timestep);
+        LIVE_CYCLES.set(arena.getLiveCount());
+        matchMetrics.add(new Gauge("aicycles_broadcast_queue_depth",
+                                   "Packets waiting to be broadcast.") {
+            @Override
+            public long getValue() {
+                return broadcastQueue.size();
+            }
+        });
+        
+        for (final Player p : players) {
+            String label = "{player=\"" + p.getName().replace("\"", "") + "\"}";
+            matchMetrics.add(new Counter("aicycles_player_bytes_received_total" + label,
+                                         "Bytes received from a player.") {
+                @Override
+                public long getValue() {
+                    return p.getBytesReceived();
+                }
+            });
+            matchMetrics.add(new Counter("aicycles_player_bytes_sent_total" + label,
+                                         "Bytes sent to a player.") {
+                @Override
+                public long getValue() {
+                    return p.getBytesSent();
+                }
+            });
+        }
+        
+        for (Metric m : matchMetrics) {
+            Metrics.register(m);
+        }
+    }
+    
+    /**
+     * Removes the metrics of this match, and counts it as finished.
+     */
+    private void unregisterMetrics() {
+        for (Metric m : matchMetrics) {
+            Metrics.unregister(m);
+        }
+        ACTIVE_MATCHES.add(-1);
+        FINISHED_MATCHES.increment();
+    }
+    
+    /**
+     * Starts recording a replay if the aicycles.replays property
+     * names a directory to store replays in.
+     */
+    private void startRecording() {
+        String dir = System.getProperty("aicycles.replays");
+        if (dir == null) {
+            return;
+        }
+        
+        String[] names = new String[players.length];
+        int[] startX = new int[players.length];
+        int[] startY = new int[players.length];
+        for (int i = 0; i < players.length; i++) {
+            names[i] = players[i].getName();
+            startX[i] = players[i].getX();
+            startY[i] = players[i].getY();
+        }
+        
+        new File(dir).mkdirs();
+        File file = new File(dir, String.format("%d-%d%s", System.currentTimeMillis(),
+                                                rand, ReplayWriter.EXTENSION));
+        recorder = new ReplayWriter(file, arena.getWidth(), arena.getHeight(), rand,
+                                    names, startX, startY);
+    }
+    
+    /**
+     * Finishes the replay with the final points and lengths of the players.
+     */
+    private void stopRecording() {
+        if (recorder == null) {
+            return;
+        }
+        
+        int[] points = new int[players.length];
+        int[] lengths = new int[players.length];
+        for (int i = 0; i < players.length; i++) {
+            points[i] = stats.getPoints(players[i].getName());
+            lengths[i] = stats.getLength(players[i].getName());
+        }
+        recorder.close(points, lengths);
     }
     
     /**
@@ -185,82 +487,173 @@ public class Match implements Runnable {
      * It also marks the last surviving player as dead (sets its final length).
      */
     private void setPlayerStatistics() {
-        Player previous = null;
-        int points = 0;
-        
+        List<Player> survivors = new ArrayList<Player>();
         for (Player p : players) {
             if (p.isAlive()) {
-                p.derez(updates);
-                viewer.setDead(p);
-                deadPlayers.offer(p);
+                survivors.add(p);
             }
         }
         
-        while (!deadPlayers.isEmpty()) {
-            Player p = deadPlayers.poll();
-            if (previous == null || p.getUpdates() != previous.getUpdates()) {
-                points = players.length - deadPlayers.size() - 1;
+        arena.finish();
+        for (Player p : survivors) {
+            p.derez(updates);
+            if (viewer != null) {
+                viewer.setDead(p);
             }
-            stats.setLength(p.getName(), p.getUpdates());
-            stats.setPoints(p.getName(), points);
+        }
+        
+        for (int i = 0; i < players.length; i++) {
+            stats.setLength(players[i].getName(), arena.getLength(i));
+            stats.setPoints(players[i].getName(), arena.getPoints(i));
         }
     }
 
     /**
-     * Waits for all players to connect.
-     * After connecting the players the server socket closes.
+     * Starts a thread accepting connections on the server socket,
+     * and waits for all players to connect.
+     * The socket stays open during the match, so players can reconnect
+     * and spectators can join, until the match is over.
+     * Without a port, only waits for the local players.
      */
     private void connectPlayers() {
-        int connectedPlayers = 0;
-        ServerSocket ss = null;
-
+        if (port >= 0) {
+            acceptPlayers();
+        }
+        
+        synchronized (players) {
+            while (connectedPlayers < players.length) {
+                try {
+                    players.wait();
+                } catch (InterruptedException e) { }
+            }
+        }
+    }
+    
+    /**
+     * Opens the server socket and starts a thread accepting connections on it.
+     */
+    private void acceptPlayers() {
         try {
-            ss = new ServerSocket(Connection.PORT);
+            serverSocket = new ServerSocket(port);
         } catch (IOException e) {
             System.err.printf("Could not create server socket: %n%s%n",
                               e.getMessage());
             System.exit(1);
         }
 
-        while (connectedPlayers < players.length) {
-            Connection c = null;
-            try {
-                c = new Connection(ss.accept());
-                if (connectPlayer(c)) {
-                    connectedPlayers++;
-                }
-
-            } catch (MalformedPacketException mpe) {
-                System.err.println("Connecting player sent malformed packet:");
-                System.err.println(mpe.getMessage());
-
-                if (c != null && !c.isDown()) {
-                    c.close();
-                }
-
-            } catch (IOException ioe) {
-                System.err.printf("Error connecting player: %n%s%n",
-                                  ioe.getMessage());
-
-                if (c != null && !c.isDown()) {
-                    c.close();
-                }
-
-                if (ss.isClosed()) {
-                    System.exit(2);
+        acceptor = new Thread(new Runnable() {
+            /**
+             * Accepts connections until the server socket is closed.
+             */
+            public void run() {
+                while (!serverSocket.isClosed()) {
+                    Connection c;
+                    try {
+                        c = new Connection(serverSocket.accept());
+                    } catch (IOException ioe) {
+                        if (serverSocket.isClosed()) {
+                            return;
+                        }
+                        
+                        HANDSHAKE_FAILURES.increment();
+                        System.err.printf("Error connecting player: %n%s%n",
+                                          ioe.getMessage());
+                        continue;
+                    }
+                    
+                    handshake(c);
                 }
             }
+        });
+        acceptor.start();
+    }
+    
+    /**
+     * Connects a client in this process, without the network.
+     * The packets are handed over as objects through a {@link LocalTransport},
+     * and the handshake runs as for a client connecting on the socket,
+     * so the client must send its name when greeted.
+     * This works with or without a port, also before the match is run.
+     * 
+     * @return The client's end of the connection,
+     *         which is closed if the match is over.
+     */
+    public Connection connectLocal() {
+        LocalTransport[] pair = LocalTransport.createPair();
+        final Connection server = new Connection(pair[1]);
+        if (finished) {
+            server.close();
+        } else {
+            new Thread(new Runnable() {
+                /**
+                 * Greets the local client.
+                 */
+                public void run() {
+                    handshake(server);
+                }
+            }).start();
         }
+        return new Connection(pair[0]);
+    }
+    
+    /**
+     * Greets a client and connects it as a player or spectator,
+     * closing the connection if it fails or is too slow to answer.
+     * 
+     * @param c The connection a client is trying to connect on.
+     */
+    private void handshake(final Connection c) {
+        HashedWheelTimer.Timeout deadline = HashedWheelTimer.getShared().schedule(new Runnable() {
+            /**
+             * Closes the connection if the handshake takes too long.
+             */
+            public void run() {
+                System.err.println("Connecting player was too slow to answer.");
+                c.close();
+            }
+        }, HANDSHAKE_TIMEOUT);
         
         try {
-            ss.close();
+            if (!connectPlayer(c)) {
+                HANDSHAKE_FAILURES.increment();
+            }
+
+        } catch (MalformedPacketException mpe) {
+            HANDSHAKE_FAILURES.increment();
+            System.err.println("Connecting player sent malformed packet:");
+            System.err.println(mpe.getMessage());
+
+            if (!c.isDown()) {
+                c.close();
+            }
+
         } catch (IOException ioe) {
-            System.err.printf("Could not close server socket: %s%n", ioe.getMessage());
+            if (finished) {
+                return;
+            }
+            
+            HANDSHAKE_FAILURES.increment();
+            System.err.printf("Error connecting player: %n%s%n",
+                              ioe.getMessage());
+
+            if (!c.isDown()) {
+                c.close();
+            }
+        } finally {
+            deadline.cancel();
         }
     }
 
     /**
-     * Tries to match a connection with a player based on its user name.
+     * Tries to match a connection with a player based on its user name,
+     * or adds it as a spectator if it gives the spectator name.
+     * 
+     * Clients connecting after the match has started,
+     * or replacing a lost connection with the token they were given,
+     * are sent the map and start positions,
+     * and a snapshot after the next update.
+     * 
+     * The handshake is recorded as a flight recorder event.
      * 
      * @param con The connection a player is trying to connect on.
      * @return true if the player was connected, false if not.
@@ -270,20 +663,116 @@ public class Match implements Runnable {
      *                                  doesn't match any of the protocol packets.
      */
     private boolean connectPlayer(Connection con) throws IOException, MalformedPacketException {
+        HandshakeEvent event = new HandshakeEvent();
+        event.begin();
+        try {
+            return identify(con, event);
+        } finally {
+            event.commit();
+        }
+    }
+    
+    /**
+     * Greets a client and connects it as the player or spectator it says it is.
+     * 
+     * @param con The connection a client is trying to connect on.
+     * @param event The handshake event to note the client's name and outcome in.
+     * @return true if the client was connected, false if not.
+     * @throws IOException if receiving or sending packets on the connection fail,
+     *                     or closing the connection upon problems fail.
+     * @throws MalformedPacketException if the packet received from the client
+     *                                  doesn't match any of the protocol packets.
+     */
+    private boolean identify(Connection con, HandshakeEvent event)
+            throws IOException, MalformedPacketException {
 
         con.sendPacket(new Packet.SimplePacket("You're in trouble now, program! Who's your user?",
                                                Packet.SHK_PKT));
         Packet pkt = con.receivePacket();
 
+        event.outcome = "rejected";
         if (pkt.getPacketType() == Packet.SHK_PKT) {
+            String name = pkt.getData();
+            boolean shm = false;
+            boolean view = false;
+            String token = null;
+            while (true) {
+                int space = name.lastIndexOf(' ');
+                if (name.endsWith(" " + Connection.SHARED_MEMORY)) {
+                    shm = true;
+                    name = name.substring(0, name.length() - Connection.SHARED_MEMORY.length() - 1);
+                } else if (name.endsWith(" " + Connection.SHARED_GRID)) {
+                    view = true;
+                    name = name.substring(0, name.length() - Connection.SHARED_GRID.length() - 1);
+                } else if (space >= 0 && name.startsWith(Connection.REJOIN, space + 1)) {
+                    token = name.substring(space + 1 + Connection.REJOIN.length());
+                    name = name.substring(0, space);
+                } else {
+                    break;
+                }
+            }
+            // Remote clients can't map the files, and asking is ignored.
+            boolean local = SHARED_MEMORY && con.getTransport().isLoopback();
+            if (local && shm) {
+                offerSharedMemory(con);
+            }
+            boolean viewing = local && view && offerSharedGrid(con);
+            
+            event.client = name;
+            if (Connection.SPECTATOR.equals(name)) {
+                Player s = new Player(0, Connection.SPECTATOR, -1, -1);
+                join(s, con);
+                spectators.add(s);
+                new Thread(s).start();
+                System.out.println("A spectator is watching.");
+                event.outcome = "spectator";
+                return true;
+            }
 
+            Player rejoining = null;
             for (Player p : players) {
-                if (p.getName().equals(pkt.getData()) && p.setConnection(con)) {
-                    p.sendPacket(new Packet.IntPacket(p.getId(), Packet.PID_PKT));
-                    System.out.printf("%s connected.%n", p.getName());
-                    viewer.setReady(p);
-                    return true;
+                if (!p.getName().equals(name)) {
+                    continue;
+                }
+                
+                synchronized (players) {
+                    if (!started && p.setConnection(con)) {
+                        p.setSharedGrid(viewing);
+                        p.sendPacket(new Packet.SimplePacket(p.getToken(), Packet.TOK_PKT));
+                        p.sendPacket(new Packet.IntPacket(p.getId(), Packet.PID_PKT));
+                        System.out.printf("%s connected.%n", p.getName());
+                        if (viewer != null) {
+                            viewer.setReady(p);
+                        }
+                        new Thread(p).start();
+                        connectedPlayers++;
+                        players.notifyAll();
+                        event.outcome = "connected";
+                        return true;
+                    }
+                    // The match sends the setup to every player when it starts,
+                    // so a second client with the same name is turned away.
+                    if (!started) {
+                        continue;
+                    }
                 }
+                
+                // Only the client holding the token can replace a connection,
+                // which may be half-open, so others can't take over the cycle.
+                if (p.admit(token)) {
+                    rejoining = p;
+                    break;
+                }
+            }
+            
+            if (rejoining != null) {
+                con.sendPacket(new Packet.SimplePacket(rejoining.getToken(), Packet.TOK_PKT));
+                join(rejoining, con);
+                rejoining.setSharedGrid(viewing);
+                new Thread(rejoining).start();
+                System.out.printf("%s reconnected.%n", rejoining.getName());
+                event.outcome = "reconnected";
+                return true;
             }
         }
 
@@ -291,6 +780,83 @@ public class Match implements Runnable {
         con.close();
         return false;
     }
+    
+    /**
+     * Moves a client on this host that asked for it to a shared memory transport.
+     * The path of the file is sent on the old transport,
+     * and the rest of the handshake continues on the new one.
+     * If the file can't be created, the client stays where it is.
+     * 
+     * @param con The connection of the client.
+     * @throws IOException if sending the path fails.
+     */
+    private void offerSharedMemory(Connection con) throws IOException {
+        MappedTransport shm;
+        try {
+            shm = MappedTransport.create(con.getTransport());
+        } catch (IOException ioe) {
+            System.err.printf("Could not create shared memory: %s%n", ioe.getMessage());
+            return;
+        }
+        
+        con.sendPacket(new Packet.SimplePacket(shm.getPath(), Packet.SHM_PKT));
+        con.upgrade(shm);
+    }
+    
+    /**
+     * Sends a client on this host that asked for it the path of the shared grid,
+     * creating the grid for the first client.
+     * 
+     * @param con The connection of the client.
+     * @return true if the path was sent, false if the grid couldn't be created.
+     * @throws IOException if sending the path fails.
+     */
+    private boolean offerSharedGrid(Connection con) throws IOException {
+        SharedGrid grid;
+        synchronized (players) {
+            if (sharedGrid == null) {
+                try {
+                    sharedGrid = SharedGrid.create(arena.getWidth(), arena.getHeight(),
+                                                   players.length);
+                } catch (IOException ioe) {
+                    System.err.printf("Could not create shared grid: %s%n", ioe.getMessage());
+                    return false;
+                }
+            }
+            grid = sharedGrid;
+        }
+        
+        con.sendPacket(new Packet.SimplePacket(grid.getPath(), Packet.VIW_PKT));
+        return true;
+    }
+    
+    /**
+     * Publishes the state of the arena in the shared grid, if any bot reads it.
+     * The whole grid is written the first time, after that only the new squares.
+     */
+    private void publishGrid() {
+        SharedGrid grid = sharedGrid;
+        if (grid != null) {
+            grid.publish(arena.getTick(), arena.getMap(), arena.getCycles());
+        }
+    }
+    
+    /**
+     * Sends a client joining a running match its ID and the setup packets,
+     * and then replaces the client's connection.
+     * The client gets a snapshot after the next update.
+     * 
+     * @param p The player or spectator joining.
+     * @param con The client's new connection.
+     * @throws IOException if sending packets on the connection fails.
+     */
+    private void join(Player p, Connection con) throws IOException {
+        con.sendPacket(new Packet.IntPacket(p.getId(), Packet.PID_PKT));
+        for (Packet setup : setupPackets) {
+            con.sendPacket(setup);
+        }
+        p.reconnect(con);
+    }
 
     /**
      * Kills a player and adds a die packet to the broadcast queue.
@@ -302,10 +868,15 @@ public class Match implements Runnable {
     private void kill(Player p) {
         boolean wakeup = broadcastQueue.isEmpty();
         p.derez(updates);
-        viewer.setDead(p);
-        deadPlayers.offer(p);
-        System.out.printf("%d died%n", p.getId());
-        broadcastQueue.offer(new Packet.IntPacket(p.getId(), Packet.DIE_PKT));
+        if (viewer != null) {
+            viewer.setDead(p);
+        }
+        byte[] notice = deathNotices[p.getId() - 1];
+        System.out.write(notice, 0, notice.length);
+        if (recorder != null) {
+            recorder.kill(p.getId() - 1);
+        }
+        broadcastQueue.offer(diePackets[p.getId() - 1]);
 
         if (wakeup) {
             synchronized (broadcastQueue) {
@@ -315,17 +886,22 @@ public class Match implements Runnable {
     }
 
     /**
-     * Moves a player and adds a move packet to the broadcast queue.
+     * Handles a player's move by adding a move packet to the broadcast queue.
      * It wakes up the broadcast thread
      * if the queue was empty prior to this call.
      * 
-     * @param p The player whose position to update.
+     * @param p The player who moved.
+     * @param d The direction the player moved.
      */
-    private void move(Player p) {
+    private void move(Player p, Direction d) {
         boolean wakeup = broadcastQueue.isEmpty();
-        Direction d = p.update();
-        broadcastQueue.offer(new Packet.MovePacket(p.getId(), d));
-        viewer.draw(p.getX(), p.getY(), p.getId());
+        if (recorder != null) {
+            recorder.move(p.getId() - 1, d);
+        }
+        broadcastQueue.offer(movePackets[p.getId() - 1][d.ordinal()]);
+        if (viewer != null) {
+            viewer.draw(p.getX(), p.getY(), p.getId());
+        }
 
         if (wakeup) {
             synchronized (broadcastQueue) {
@@ -335,13 +911,37 @@ public class Match implements Runnable {
     }
 
     /**
-     * Notifies clients that the server has finished updating the state.
+     * Notifies clients that the server has finished updating the state,
+     * with a checksum of the state if the aicycles.checksums property is true,
+     * and the tick's start and deadline if the aicycles.deadlines property is true.
+     * Players that have asked for a snapshot get one after the update.
      * It wakes up the broadcast thread
      * if the queue was empty prior to this call.
+     * 
+     * @param start When the update started being computed, from System.nanoTime.
+     * @param deadline When the next update starts being computed, from System.nanoTime.
      */
-    private void sendUpdate() {
+    private void sendUpdate(long start, long deadline) {
         boolean wakeup = broadcastQueue.isEmpty();
-        broadcastQueue.offer(new Packet.IntPacket(updates, Packet.UPD_PKT));
+        Packet.SnapshotPacket snp = null;
+        for (Player p : players) {
+            p.setTick(updates, start);
+            if (p.takeResyncRequest()) {
+                snp = snapshot(snp);
+                p.setSnapshot(snp);
+            }
+        }
+        if (!spectators.isEmpty()) {
+            for (Player p : spectators) {
+                if (p.takeResyncRequest()) {
+                    snp = snapshot(snp);
+                    p.setSnapshot(snp);
+                }
+            }
+        }
+        
+        broadcastQueue.offerUpdate(updates, CHECKSUMS, CHECKSUMS ? arena.getChecksum() : 0,
+                                   DEADLINES, start / 1000, deadline / 1000);
 
         if (wakeup) {
             synchronized (broadcastQueue) {
@@ -350,62 +950,149 @@ public class Match implements Runnable {
         }
     }
 
+    /**
+     * Takes a snapshot of the game state, unless one was already taken.
+     * 
+     * @param snp The snapshot taken during this update, or null.
+     * @return A snapshot of the game state.
+     */
+    private Packet.SnapshotPacket snapshot(Packet.SnapshotPacket snp) {
+        if (snp != null) {
+            return snp;
+        }
+        
+        return new Packet.SnapshotPacket(updates, arena.getMap(), arena.getCycles());
+    }
+
+    /**
+     * Sets the time between updates from the response times of the bots,
+     * to the 99th percentile of the slowest live bot plus a margin,
+     * kept within the aicycles.minTimestep and aicycles.maxTimestep properties.
+     * Bots that haven't sent enough tagged commands are left out,
+     * and if no bot has, the time between updates is left alone.
+     */
+    private void adaptTimestep() {
+        long slowest = -1;
+        for (Player p : players) {
+            if (p.isAlive() && p.isConnected()) {
+                slowest = Math.max(slowest, p.getLatency(0.99));
+            }
+        }
+        if (slowest < 0) {
+            return;
+        }
+        
+        long step = (slowest + 999) / 1000 + TIMESTEP_MARGIN;
+        timestep = Math.max(MIN_TIMESTEP, Math.min(MAX_TIMESTEP, step));
+        fastestTimestep = Math.min(fastestTimestep, timestep);
+        slowestTimestep = Math.max(slowestTimestep, timestep);
+    }
+
     /**
      * Runs the game.
      * Every timestep the game state is updated,
      * moving all live players and killing any colliding players.
+     * Each tick is due one timestep after the one before it,
+     * however long the tick itself took,
+     * unless the simulation fell a whole timestep behind,
+     * in which case it starts counting from the late tick
+     * rather than rushing to catch up.
+     * 
+     * @param next When the first tick should run, from System.nanoTime.
      */
-    private void simulate() {
-        int liveCount = players.length;
-        long lastUpdate = System.nanoTime() / 1000000;
-
-        while (liveCount > 1) {
-            long delta = (System.nanoTime() / 1000000) - lastUpdate;
-            if (delta < TIMESTEP) {
+    private void simulate(long next) {
+        while (arena.getLiveCount() > 1) {
+            long wait = next - System.nanoTime();
+            if (wait > 0) {
                 synchronized (this) {
                     try {
-                        this.wait(TIMESTEP - delta);
+                        this.wait(wait / 1000000, (int) (wait % 1000000));
                     } catch (InterruptedException e) {
                     }
                 }
                 continue;
             }
 
-            for (Player p : players) {
-                if (!p.isAlive()) {
-                    continue;
-                }
-
-                move(p);
-                int x = p.getX();
-                int y = p.getY();
-
-                if (x >= 0 && x < map.length
-                    && y >= 0 && y < map[x].length
-                    && map[x][y] == 0) {
-                    map[x][y] = p.getId();
-
-                } else {
-                    for (Player p2 : players) {
-                        if (p2.getId() <= p.getId() || !p2.isAlive()) {
-                            continue;
-                        }
-
-                        if (p2.getX() == x && p2.getY() == y) {
-                            kill(p2);
-                            liveCount--;
-                        }
-                    }
-                    kill(p);
-                    liveCount--;
-                }
-            }
+            next = tick(System.nanoTime(), next);
+        }
+    }
+    
+    /**
+     * Runs a single tick, moving the cycles and queueing the tick's packets.
+     * A tick allocates nothing, and broadcasting it only the update packet,
+     * which the allocation budget in the benchmarks keeps track of.
+     * 
+     * @param start When the tick started, from System.nanoTime.
+     * @param due When the tick was due, from System.nanoTime.
+     * @return When the next tick is due, from System.nanoTime.
+     */
+    long tick(long start, long due) {
+        TickEvent event = null;
+        if (tickEvents.isEnabled()) {
+            event = new TickEvent();
+            event.begin();
+        }
+        timings.tickStarted(due, start);
+        for (Player p : players) {
+            p.applyDirection();
+        }
+        int liveCount = arena.step(events);
+        publishGrid();
 
-            updates++;
-            sendUpdate();
-            lastUpdate += TIMESTEP;
+        if (recorder != null) {
+            recorder.endTick();
+        }
+        updates++;
+        if (ADAPTIVE && updates % ADAPT_INTERVAL == 0) {
+            adaptTimestep();
+            TIMESTEP_MS.set(timestep);
+        }
+        TICKS.increment();
+        LAST_TICK.set(System.currentTimeMillis());
+        LIVE_CYCLES.set(liveCount);
+        long next = due + timestep * 1000000;
+        if (next <= start) {
+            next = start + timestep * 1000000;
+        }
+        sendUpdate(start, next);
+        timings.tickFinished(start, System.nanoTime());
+        if (event != null && event.shouldCommit()) {
+            event.tick = updates;
+            event.liveCycles = liveCount;
+            event.lateness = (start - due) / 1000;
+            event.commit();
+        }
+        if (viewer != null) {
             viewer.draw();
         }
+        return next;
+    }
+    
+    /**
+     * Gets the rules of the game this match is played by.
+     * 
+     * @return The arena.
+     */
+    Arena getArena() {
+        return arena;
+    }
+    
+    /**
+     * Gets the players of the match.
+     * 
+     * @return The players, in order of their IDs.
+     */
+    Player[] getPlayers() {
+        return players;
+    }
+    
+    /**
+     * Gets the packets waiting to be broadcast.
+     * 
+     * @return The broadcast queue.
+     */
+    BroadcastQueue getBroadcastQueue() {
+        return broadcastQueue;
     }
     
     /**
@@ -416,4 +1103,22 @@ public class Match implements Runnable {
     public Statistics getStatistics() {
         return stats;
     }
+    
+    /**
+     * Gets the number of updates that have been sent.
+     * 
+     * @return The number of ticks run.
+     */
+    public int getUpdates() {
+        return updates;
+    }
+    
+    /**
+     * Gets the tick timings for this match.
+     * 
+     * @return How late ticks started and how long ticks and broadcasts took.
+     */
+    public TickTimings getTimings() {
+        return timings;
+    }
 }
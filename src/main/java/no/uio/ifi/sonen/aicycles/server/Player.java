@@ -27,9 +27,15 @@
 package no.uio.ifi.sonen.aicycles.server;
 
 import no.uio.ifi.sonen.aicycles.net.Connection;
+import no.uio.ifi.sonen.aicycles.net.HashedWheelTimer;
 import no.uio.ifi.sonen.aicycles.net.MalformedPacketException;
 import no.uio.ifi.sonen.aicycles.net.Packet;
+import no.uio.ifi.sonen.aicycles.net.RateLimiter;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.concurrent.atomic.AtomicReference;
 import no.uio.ifi.sonen.aicycles.Cycle;
 import no.uio.ifi.sonen.aicycles.Direction;
 
@@ -43,6 +49,10 @@ public class Player implements Runnable {
     private int id;
     /** The name of the player. */
     private String name;
+    /** The secret the player's client must give to rejoin the match. */
+    private final String token = Long.toHexString(TOKENS.nextLong());
+    /** Whether a client has been given the token, guarded by this. */
+    private boolean claimed = false;
     /** The number of updates this player has performed. */
     private int updates = 0;
     
@@ -50,9 +60,68 @@ public class Player implements Runnable {
     private Cycle cycle;
     
     /** The network connection of the player. */
-    private Connection con;
+    private volatile Connection con;
     /** Whether the connection was closed cleanly. */
-    private boolean cleanDisconnect;
+    private volatile boolean cleanDisconnect;
+    /** Whether the client is rejoining and waiting for a snapshot. */
+    private volatile boolean joining;
+    /** Whether the client has asked for a snapshot of the game state. */
+    private volatile boolean resyncRequested;
+    /** Whether the client reads the moves from the shared grid instead of packets. */
+    private volatile boolean sharedGrid;
+    /** The number of updates remembered for measuring how late commands are. */
+    private static final int TICK_HISTORY = 64;
+    /** Makes the rejoin tokens, which other clients must not be able to guess. */
+    private static final SecureRandom TOKENS = new SecureRandom();
+    /** The number of packets per second a client may send, and its burst. */
+    private static final long MAX_PACKET_RATE = Long.getLong("aicycles.maxPacketRate", 100);
+    /** The number of bytes per second a client may send, and its burst. */
+    private static final long MAX_BYTE_RATE = Long.getLong("aicycles.maxByteRate", 4096);
+    
+    /** The latest direction from the client, waiting for the next tick. */
+    private final AtomicReference<Direction> mailbox = new AtomicReference<Direction>();
+    /** Limits how many packets are handled from the client. */
+    private final RateLimiter packetLimit = new RateLimiter(MAX_PACKET_RATE, MAX_PACKET_RATE);
+    /** The number of nanoseconds the client's packets have been held back. */
+    private volatile long throttledNanos = 0;
+    /** The number of malformed packets from the client, only the first is logged. */
+    private volatile int malformedPackets = 0;
+    /** The number of bytes received on earlier connections. */
+    private long oldBytes = 0;
+    /** The number of bytes sent on earlier connections. */
+    private long oldBytesSent = 0;
+    /** The throttling time on earlier connections, in nanoseconds. */
+    private long oldThrottledNanos = 0;
+    
+    /** The last update sent to the client. */
+    private volatile int tick = 0;
+    /** When each of the last updates was computed, in nanoseconds. */
+    private final long[] tickStarts = new long[TICK_HISTORY];
+    /** The highest update a command has answered, guarded by this. */
+    private int lastTag = -1;
+    /** A command waiting for a later update, guarded by this. */
+    private Direction queuedDir;
+    /** The update the waiting command answers, guarded by this. */
+    private int queuedTag;
+    /** The number of direction commands received, guarded by this. */
+    private int commands = 0;
+    /** The number of commands that came after their tick was run. */
+    private int lateCommands = 0;
+    /** The number of commands dropped for answering an older update than the last. */
+    private int staleCommands = 0;
+    /** How late the late commands were, in microseconds, guarded by this. */
+    private final QuantileSketch lateness = new QuantileSketch(1000000);
+    /** The number of response times in each latency window. */
+    private static final int LATENCY_WINDOW = 200;
+    /** The number of response times needed before the latency is known. */
+    private static final int MIN_LATENCY_SAMPLES = 20;
+    /** How long commands took to answer their update, in microseconds, guarded by this. */
+    private QuantileSketch latency = new QuantileSketch(1000000);
+    /** The response times of the previous window, guarded by this. */
+    private QuantileSketch oldLatency = new QuantileSketch(1000000);
+    /** A snapshot waiting to be sent after the update it was taken at. */
+    private final AtomicReference<Packet.SnapshotPacket> snapshot =
+            new AtomicReference<Packet.SnapshotPacket>();
 
     /**
      * Creates a player with the given ID and name.
@@ -75,14 +144,100 @@ public class Player implements Runnable {
      * @return true if the connection was set,
      *         false if the player is already connected.
      */
-    public boolean setConnection(Connection con) {
+    public synchronized boolean setConnection(Connection con) {
         if (this.con != null) {
             return false;
         }
 
+        prepare(con);
         this.con = con;
+        claimed = true;
+        return true;
+    }
+    
+    /**
+     * Lets a client take over the player if it gave the player's token,
+     * or if no client has been given the token, as when it missed the start.
+     * 
+     * @param given The token the client gave, or null if it gave none.
+     * @return true if the client may replace the player's connection.
+     */
+    synchronized boolean admit(String given) {
+        if (claimed && !hasToken(given)) {
+            return false;
+        }
+        claimed = true;
         return true;
     }
+    
+    /**
+     * Limits how fast a new connection can receive bytes,
+     * watches it for silence and adds up the counts of the old connection.
+     * 
+     * @param con The new connection.
+     */
+    private synchronized void prepare(Connection con) {
+        con.setReceiveLimit(new RateLimiter(MAX_BYTE_RATE, MAX_BYTE_RATE));
+        con.watch(HashedWheelTimer.getShared(), Connection.PING_INTERVAL,
+                  Connection.IDLE_TIMEOUT);
+        if (this.con != null) {
+            oldBytes += this.con.getBytesReceived();
+            oldBytesSent += this.con.getBytesSent();
+            oldThrottledNanos += this.con.getThrottledNanos();
+        }
+    }
+    
+    /**
+     * Checks whether the player has a working connection.
+     * 
+     * @return true if the player is connected.
+     */
+    boolean isConnected() {
+        return con != null && !con.isDown();
+    }
+    
+    /**
+     * Replaces the player's connection with a new one from its client.
+     * The old connection is closed, as the client may have given up on it
+     * before the server noticed it was lost.
+     * Until the client has been sent a snapshot of the game state,
+     * it gets none of the broadcast packets.
+     * 
+     * @param con The new connection to the player client.
+     */
+    synchronized void reconnect(Connection con) {
+        Connection old = this.con;
+        prepare(con);
+        joining = true;
+        resyncRequested = true;
+        cleanDisconnect = false;
+        this.con = con;
+        if (old != null) {
+            old.close();
+        }
+    }
+
+    /**
+     * Gets the token the player's client must give to rejoin the match.
+     * 
+     * @return The player's token.
+     */
+    public String getToken() {
+        return token;
+    }
+    
+    /**
+     * Checks whether a client gave the player's token,
+     * in constant time so the token can't be guessed from how long it takes.
+     * 
+     * @param given The token the client gave, or null if it gave none.
+     * @return true if the client gave the player's token.
+     */
+    boolean hasToken(String given) {
+        return given != null
+               && MessageDigest.isEqual(token.getBytes(StandardCharsets.US_ASCII),
+                                        given.getBytes(StandardCharsets.US_ASCII));
+    }
 
     /**
      * Gets the player's ID.
@@ -93,6 +248,25 @@ public class Player implements Runnable {
         return id;
     }
 
+    /**
+     * Sets whether the client reads the moves from the shared grid,
+     * so it isn't sent move and death packets.
+     * 
+     * @param sharedGrid true if the client has mapped the shared grid.
+     */
+    public void setSharedGrid(boolean sharedGrid) {
+        this.sharedGrid = sharedGrid;
+    }
+    
+    /**
+     * Checks whether the client reads the moves from the shared grid.
+     * 
+     * @return true if the client isn't sent move and death packets.
+     */
+    public boolean hasSharedGrid() {
+        return sharedGrid;
+    }
+
     /**
      * Gets the player's name.
      * 
@@ -111,6 +285,15 @@ public class Player implements Runnable {
         return cycle.getDirection();
     }
     
+    /**
+     * Gets the player's cycle.
+     * 
+     * @return The cycle the player is riding.
+     */
+    Cycle getCycle() {
+        return cycle;
+    }
+    
     /**
      * Gets the number of updates performed by this player.
      * 
@@ -148,13 +331,214 @@ public class Player implements Runnable {
      * @see Connection#sendPacket(no.uio.ifi.sonen.aicycles.Packet) 
      */
     public void sendPacket(Packet p) throws IOException {
-        if (con.isDown()) {
+        if (joining || con.isDown()) {
             return;
         }
         
         con.sendPacket(p);
     }
     
+    /**
+     * Handles a direction command from the client.
+     * 
+     * Untagged commands are applied right away.
+     * A command answering the last update is on time and applied,
+     * one answering an earlier update is late, but still applied,
+     * unless a command answering a later update has already been seen,
+     * in which case it's stale and dropped.
+     * Commands answering updates the server hasn't sent yet
+     * wait until it has.
+     * 
+     * @param dp The direction packet.
+     */
+    private synchronized void command(Packet.DirectionPacket dp) {
+        commands++;
+        int tag = dp.getTick();
+        if (tag < 0) {
+            mailbox.set(dp.getDirection());
+            return;
+        }
+        
+        if (tag < lastTag) {
+            staleCommands++;
+            return;
+        }
+        lastTag = tag;
+        
+        int now = tick;
+        if (tag <= now && now - tag < TICK_HISTORY) {
+            recordLatency((System.nanoTime() - tickStarts[tag % TICK_HISTORY]) / 1000);
+        }
+        if (tag > now) {
+            queuedDir = dp.getDirection();
+            queuedTag = tag;
+            return;
+        }
+        
+        if (tag < now) {
+            lateCommands++;
+            if (now - tag <= TICK_HISTORY) {
+                // The command was meant for the tick right after the one it answers.
+                long missed = tickStarts[(tag + 1) % TICK_HISTORY];
+                lateness.record((System.nanoTime() - missed) / 1000);
+            }
+        }
+        queuedDir = null;
+        mailbox.set(dp.getDirection());
+    }
+    
+    /**
+     * Records how long a command took to answer its update.
+     * The times are kept in two windows, and the oldest window
+     * is thrown away when the newest is full,
+     * so the latency follows changes in how fast the client is.
+     * 
+     * @param micros The response time in microseconds.
+     */
+    private void recordLatency(long micros) {
+        if (latency.getCount() >= LATENCY_WINDOW) {
+            QuantileSketch full = latency;
+            latency = oldLatency;
+            latency.reset();
+            oldLatency = full;
+        }
+        latency.record(micros);
+    }
+    
+    /**
+     * Gets a quantile of the client's recent response times,
+     * from computing an update to receiving the command answering it.
+     * 
+     * @param q The quantile, between 0 and 1.
+     * @return The response time in microseconds,
+     *         or -1 if too few tagged commands have been received.
+     */
+    synchronized long getLatency(double q) {
+        if (latency.getCount() + oldLatency.getCount() < MIN_LATENCY_SAMPLES) {
+            return -1;
+        }
+        
+        QuantileSketch recent = latency.copy();
+        recent.merge(oldLatency);
+        return recent.getQuantile(q);
+    }
+    
+    /**
+     * Notes that an update has been computed and is about to be sent,
+     * applying any command that was waiting for it.
+     * 
+     * @param tick The number of the update.
+     * @param start When the update was computed, from System.nanoTime.
+     */
+    synchronized void setTick(int tick, long start) {
+        tickStarts[tick % TICK_HISTORY] = start;
+        this.tick = tick;
+        if (queuedDir != null && queuedTag <= tick) {
+            mailbox.set(queuedDir);
+            queuedDir = null;
+        }
+    }
+    
+    /**
+     * Turns the cycle in the latest direction the client asked for, if any.
+     * Only the tick loop should call this,
+     * so the direction can't change while the arena is stepped.
+     */
+    void applyDirection() {
+        Direction dir = mailbox.getAndSet(null);
+        if (dir != null) {
+            cycle.setDirection(dir);
+        }
+    }
+    
+    /**
+     * Gets the number of bytes received from the client on all its connections.
+     * 
+     * @return The number of bytes received.
+     */
+    synchronized long getBytesReceived() {
+        Connection c = con;
+        return c == null ? oldBytes : oldBytes + c.getBytesReceived();
+    }
+    
+    /**
+     * Gets the number of bytes sent to the client on all its connections.
+     * 
+     * @return The number of bytes sent.
+     */
+    synchronized long getBytesSent() {
+        Connection c = con;
+        return c == null ? oldBytesSent : oldBytesSent + c.getBytesSent();
+    }
+    
+    /**
+     * Describes how many of the player's commands came late or stale,
+     * and how late they were.
+     * 
+     * @return A line with the player's command counts.
+     */
+    synchronized String getCommandReport() {
+        long bytes = getBytesReceived();
+        long throttled = oldThrottledNanos + throttledNanos;
+        if (con != null) {
+            throttled += con.getThrottledNanos();
+        }
+        
+        String late = "";
+        if (lateCommands > 0) {
+            late = String.format(" (p50 %.1f ms, p99 %.1f ms, max %.1f ms)",
+                                 lateness.getQuantile(0.5) / 1000.0,
+                                 lateness.getQuantile(0.99) / 1000.0,
+                                 lateness.getMax() / 1000.0);
+        }
+        
+        return String.format("%s: %d commands, %d late%s, %d stale, %d malformed, "
+                             + "%d bytes received, throttled for %d ms",
+                             name, commands, lateCommands, late, staleCommands,
+                             malformedPackets, bytes, throttled / 1000000);
+    }
+    
+    /**
+     * Checks whether the client has asked for a snapshot since the last call.
+     * 
+     * @return true if the client wants a snapshot.
+     */
+    boolean takeResyncRequest() {
+        if (!resyncRequested) {
+            return false;
+        }
+        
+        resyncRequested = false;
+        return true;
+    }
+    
+    /**
+     * Sets a snapshot to send to the client
+     * once the update it was taken at has been sent.
+     * 
+     * @param snp The snapshot to send.
+     */
+    void setSnapshot(Packet.SnapshotPacket snp) {
+        snapshot.set(snp);
+    }
+    
+    /**
+     * Sends the waiting snapshot if it was taken at or before the given update.
+     * A rejoining client gets broadcast packets again after this.
+     * 
+     * @param tick The update that was just sent to the client.
+     * @throws IOException if the connection throws an IOException.
+     */
+    void sendSnapshot(int tick) throws IOException {
+        Packet.SnapshotPacket snp = snapshot.get();
+        if (snp != null && snp.getTick() <= tick && snapshot.compareAndSet(snp, null)) {
+            if (!con.isDown()) {
+                con.sendPacket(snp);
+            }
+            joining = false;
+        }
+    }
+    
     /**
      * Disconnects this player.
      * 
@@ -169,6 +553,8 @@ public class Player implements Runnable {
      * Reads network packets from a client.
      */
     public void run() {
+        // A reconnect replaces the field, and starts a new reader for it.
+        Connection con = this.con;
         if (con == null) {
             throw new IllegalStateException("Player is not connected");
         }
@@ -176,35 +562,44 @@ public class Player implements Runnable {
         while (true) {
             try {
                 Packet p = con.receivePacket();
+                throttledNanos += packetLimit.acquire(1);
                 if (p instanceof Packet.DirectionPacket) {
-                    Packet.DirectionPacket dp = (Packet.DirectionPacket) p;
-                    cycle.setDirection(dp.getDirection());
+                    command((Packet.DirectionPacket) p);
+                } else if (p.getPacketType() == Packet.RSY_PKT) {
+                    resyncRequested = true;
                 } else if (p.getPacketType() == Packet.BYE_PKT) {
                     System.out.printf("%s disconnected: %s%n",
                                       name, p.getData());
-                    disconnect();
+                    cleanDisconnect = true;
+                    con.close();
                     break;
                 }
 
             } catch (MalformedPacketException mpe) {
-                System.err.printf("Malformed packet from %s%n", name);
-                System.err.println(mpe.getMessage());
+                // Garbage counts against the packet rate like any other packet.
+                throttledNanos += packetLimit.acquire(1);
+                if (malformedPackets++ == 0) {
+                    System.err.printf("Malformed packet from %s, "
+                                      + "more are only counted%n", name);
+                    System.err.println(mpe.getMessage());
+                }
                 
                 if (con.isDown()) {
                     return;
                 }
 
             } catch (IOException ioe) {
-                if (cleanDisconnect) {
+                // A replaced connection was closed by the reconnect.
+                if (cleanDisconnect || this.con != con) {
                     return;
                 }
                 
                 System.err.printf("IO problems with #%s's connection.%n", name);
                 System.err.println(ioe.getMessage());
                 
-                if (con.isDown()) {
-                    return;
-                }
+                // The stream has ended, so close it to let the player reconnect.
+                con.close();
+                return;
             }
         }
     }
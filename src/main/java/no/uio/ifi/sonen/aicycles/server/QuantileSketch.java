@@ -0,0 +1,244 @@
+/*
+ * Copyright (c) 2011, Åpen sone for eksperimentell informatikk
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *    - Redistributions of source code must retain the above copyright
+ *      notice, this list of conditions and the following disclaimer.
+ *    - Redistributions in binary form must reproduce the above copyright
+ *      notice, this list of conditions and the following disclaimer in the
+ *      documentation and/or other materials provided with the distribution.
+ *    - Neither the name of the <organization> nor the
+ *      names of its contributors may be used to endorse or promote products
+ *      derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package no.uio.ifi.sonen.aicycles.server;
+
+import java.util.Arrays;
+
+/**
+ * A mergeable sketch of a distribution of non-negative values,
+ * used to get quantiles like the median or 99th percentile.
+ * 
+ * Values are counted in logarithmic buckets,
+ * each power of two split into {@link #SUB_BUCKETS} linear buckets,
+ * so quantiles are within about 3% of the real value
+ * and small values are counted exactly.
+ * The number of buckets only depends on the largest value recorded,
+ * never on the number of values, so memory use is bounded.
+ * Recording a value below the highest expected value never allocates.
+ * 
+ * Sketches are not thread safe.
+ *
+ * @author Sigmund Hansen <sigmund@chickensoft.com>
+ */
+public class QuantileSketch {
+    
+    /** The number of bits used for the linear buckets within a power of two. */
+    private static final int SUB_BITS = 5;
+    /** The number of linear buckets within a power of two. */
+    public static final int SUB_BUCKETS = 1 << SUB_BITS;
+    
+    /** The number of values in each bucket. */
+    private long[] counts;
+    /** The total number of values recorded. */
+    private long count;
+    /** The smallest value recorded. */
+    private long min = Long.MAX_VALUE;
+    /** The largest value recorded. */
+    private long max = Long.MIN_VALUE;
+    
+    /**
+     * Creates an empty sketch that grows as needed.
+     */
+    public QuantileSketch() {
+        this(SUB_BUCKETS - 1);
+    }
+    
+    /**
+     * Creates an empty sketch with room for values up to the given value.
+     * 
+     * @param highestValue The highest value expected,
+     *                     larger values are allowed but make the sketch grow.
+     */
+    public QuantileSketch(long highestValue) {
+        counts = new long[indexOf(Math.max(0, highestValue)) + 1];
+    }
+    
+    /**
+     * Finds the bucket of a value.
+     * 
+     * @param value A non-negative value.
+     * @return The index of the value's bucket.
+     */
+    private static int indexOf(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int shift = exponent - SUB_BITS;
+        return ((shift + 1) << SUB_BITS) + (int) ((value >>> shift) & (SUB_BUCKETS - 1));
+    }
+    
+    /**
+     * Finds the highest value that falls into a bucket.
+     * 
+     * @param index The index of a bucket.
+     * @return The bucket's highest value.
+     */
+    private static long highestValueOf(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        
+        int shift = (index >> SUB_BITS) - 1;
+        long lowest = ((long) (SUB_BUCKETS | (index & (SUB_BUCKETS - 1)))) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+    
+    /**
+     * Records a value, negative values are counted as 0.
+     * 
+     * @param value The value to record.
+     */
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        
+        int index = indexOf(value);
+        if (index >= counts.length) {
+            counts = Arrays.copyOf(counts, index + 1);
+        }
+        counts[index]++;
+        count++;
+        if (value < min) {
+            min = value;
+        }
+        if (value > max) {
+            max = value;
+        }
+    }
+    
+    /**
+     * Adds all values of another sketch to this sketch.
+     * 
+     * @param other The sketch to merge into this one.
+     */
+    public void merge(QuantileSketch other) {
+        if (other.count == 0) {
+            return;
+        }
+        
+        if (other.counts.length > counts.length) {
+            counts = Arrays.copyOf(counts, other.counts.length);
+        }
+        for (int i = 0; i < other.counts.length; i++) {
+            counts[i] += other.counts[i];
+        }
+        count += other.count;
+        min = Math.min(min, other.min);
+        max = Math.max(max, other.max);
+    }
+    
+    /**
+     * Removes all recorded values, keeping the allocated buckets.
+     */
+    public void reset() {
+        Arrays.fill(counts, 0);
+        count = 0;
+        min = Long.MAX_VALUE;
+        max = Long.MIN_VALUE;
+    }
+    
+    /**
+     * Creates a copy of this sketch.
+     * 
+     * @return A sketch with the same values as this.
+     */
+    public QuantileSketch copy() {
+        QuantileSketch copy = new QuantileSketch();
+        copy.merge(this);
+        return copy;
+    }
+    
+    /**
+     * Gets the number of values recorded.
+     * 
+     * @return The number of values.
+     */
+    public long getCount() {
+        return count;
+    }
+    
+    /**
+     * Gets the smallest value recorded.
+     * 
+     * @return The smallest value, or 0 if the sketch is empty.
+     */
+    public long getMin() {
+        return count == 0 ? 0 : min;
+    }
+    
+    /**
+     * Gets the largest value recorded.
+     * 
+     * @return The largest value, or 0 if the sketch is empty.
+     */
+    public long getMax() {
+        return count == 0 ? 0 : max;
+    }
+    
+    /**
+     * Gets the value at the given quantile.
+     * The value returned is the highest value of the bucket the quantile falls in,
+     * but never higher than the largest value recorded.
+     * 
+     * @param q The quantile, between 0 and 1 (0.5 for the median).
+     * @return The value at the quantile, or 0 if the sketch is empty.
+     */
+    public long getQuantile(double q) {
+        if (count == 0) {
+            return 0;
+        }
+        
+        long rank = (long) Math.ceil(Math.min(1, Math.max(0, q)) * count);
+        if (rank < 1) {
+            rank = 1;
+        }
+        
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.max(min, Math.min(max, highestValueOf(i)));
+            }
+        }
+        return max;
+    }
+    
+    /**
+     * Converts the sketch to a string with its most common quantiles.
+     * 
+     * @return The median, 90th and 99th percentile and the maximum value.
+     */
+    @Override
+    public String toString() {
+        return String.format("p50=%d p90=%d p99=%d max=%d",
+                             getQuantile(0.5), getQuantile(0.9),
+                             getQuantile(0.99), getMax());
+    }
+}
@@ -0,0 +1,255 @@
+/*
+ * Copyright (c) 2011, Åpen sone for eksperimentell informatikk
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *    - Redistributions of source code must retain the above copyright
+ *      notice, this list of conditions and the following disclaimer.
+ *    - Redistributions in binary form must reproduce the above copyright
+ *      notice, this list of conditions and the following disclaimer in the
+ *      documentation and/or other materials provided with the distribution.
+ *    - Neither the name of the <organization> nor the
+ *      names of its contributors may be used to endorse or promote products
+ *      derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package no.uio.ifi.sonen.aicycles.server;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Glicko style ratings for the teams in a tournament.
+ * 
+ * Ratings are updated incrementally after every match,
+ * treating all the other players in the match as one opponent
+ * with their mean rating, so an update is linear in the number of players.
+ * A team's score in a match is the share of the other players it outlived.
+ * New teams have a large rating deviation and move quickly towards their
+ * real strength, the deviation shrinks as they play more matches.
+ * 
+ * The ratings are not written anywhere on their own,
+ * they are rebuilt from the statistics file when the server starts.
+ *
+ * @author Sigmund Hansen <sigmund@chickensoft.com>
+ */
+public class Ratings {
+    
+    /** The rating of a team that has not played any matches. */
+    public static final double INITIAL_RATING = 1500;
+    /** The rating deviation of a team that has not played any matches. */
+    public static final double INITIAL_DEVIATION = 350;
+    /** The lowest the rating deviation can get, keeps ratings from freezing. */
+    public static final double MIN_DEVIATION = 30;
+    /** Glicko's scaling constant, ln(10) / 400. */
+    private static final double Q = Math.log(10) / 400;
+    
+    /**
+     * The rating of a single team.
+     */
+    public static class Rating {
+        /** The name of the team. */
+        private final String name;
+        /** The team's rating. */
+        private double rating = INITIAL_RATING;
+        /** The deviation of the rating. */
+        private double deviation = INITIAL_DEVIATION;
+        /** The number of matches the rating is based on. */
+        private int matches;
+        
+        /**
+         * Creates an initial rating.
+         * 
+         * @param name The name of the team.
+         */
+        private Rating(String name) {
+            this.name = name;
+        }
+        
+        /**
+         * Gets the name of the team.
+         * 
+         * @return The team's name.
+         */
+        public String getName() {
+            return name;
+        }
+        
+        /**
+         * Gets the team's rating.
+         * 
+         * @return The rating.
+         */
+        public double getRating() {
+            return rating;
+        }
+        
+        /**
+         * Gets the deviation of the team's rating.
+         * 
+         * @return The rating deviation, lower means more certain.
+         */
+        public double getDeviation() {
+            return deviation;
+        }
+        
+        /**
+         * Gets the number of matches the rating is based on.
+         * 
+         * @return The number of rated matches.
+         */
+        public int getMatches() {
+            return matches;
+        }
+        
+        /**
+         * Converts the rating to a string.
+         * 
+         * @return The name, rating, deviation and number of matches.
+         */
+        @Override
+        public String toString() {
+            return String.format("%s %.0f (±%.0f, %d matches)",
+                                 name, rating, deviation, matches);
+        }
+    }
+    
+    /** The ratings of all teams that have played. */
+    private final Map<String, Rating> ratings = new LinkedHashMap<String, Rating>();
+    
+    /**
+     * Gets a team's rating, creating an initial rating for new teams.
+     * 
+     * @param name The name of the team.
+     * @return The team's rating.
+     */
+    private Rating get(String name) {
+        Rating r = ratings.get(name);
+        if (r == null) {
+            r = new Rating(name);
+            ratings.put(name, r);
+        }
+        return r;
+    }
+    
+    /**
+     * Glicko's g function, which reduces the impact of uncertain opponents.
+     * 
+     * @param deviation The opponent's rating deviation.
+     * @return The weight of the opponent.
+     */
+    private static double g(double deviation) {
+        return 1 / Math.sqrt(1 + 3 * Q * Q * deviation * deviation / (Math.PI * Math.PI));
+    }
+    
+    /**
+     * Updates the ratings of the teams that played a match.
+     * 
+     * @param s The statistics of a single match.
+     */
+    public synchronized void update(Statistics s) {
+        Collection<String> names = s.getTeams();
+        int n = names.size();
+        if (n < 2) {
+            return;
+        }
+        
+        Rating[] teams = new Rating[n];
+        int[] points = new int[n];
+        double ratingSum = 0;
+        double varianceSum = 0;
+        int i = 0;
+        for (String name : names) {
+            teams[i] = get(name);
+            points[i] = s.getPoints(name);
+            ratingSum += teams[i].rating;
+            varianceSum += teams[i].deviation * teams[i].deviation;
+            i++;
+        }
+        
+        // Calculate everything before changing anything,
+        // so the order of the teams doesn't matter.
+        int others = n - 1;
+        double[] newRatings = new double[n];
+        double[] newDeviations = new double[n];
+        for (i = 0; i < n; i++) {
+            Rating r = teams[i];
+            double opponent = (ratingSum - r.rating) / others;
+            double opponentDeviation = Math.sqrt(Math.max(0,
+                    (varianceSum - r.deviation * r.deviation) / others));
+            double weight = g(opponentDeviation);
+            double expected = 1 / (1 + Math.pow(10, -weight * (r.rating - opponent) / 400));
+            double score = Math.min(1, Math.max(0, points[i] / (double) others));
+            
+            double information = others * Q * Q * weight * weight * expected * (1 - expected);
+            double precision = 1 / (r.deviation * r.deviation) + information;
+            newRatings[i] = r.rating + Q / precision * others * weight * (score - expected);
+            newDeviations[i] = Math.max(MIN_DEVIATION, Math.sqrt(1 / precision));
+        }
+        
+        for (i = 0; i < n; i++) {
+            teams[i].rating = newRatings[i];
+            teams[i].deviation = newDeviations[i];
+            teams[i].matches++;
+        }
+    }
+    
+    /**
+     * Gets the current rating of a team.
+     * 
+     * @param name The name of the team.
+     * @return The team's rating, or null if it hasn't played any matches.
+     */
+    public synchronized Rating getRating(String name) {
+        return ratings.get(name);
+    }
+    
+    /**
+     * Gets the ratings of all teams, best first.
+     * 
+     * @return A list of ratings ordered by rating.
+     */
+    public synchronized List<Rating> getRatings() {
+        List<Rating> sorted = new ArrayList<Rating>(ratings.values());
+        Collections.sort(sorted, new Comparator<Rating>() {
+            public int compare(Rating a, Rating b) {
+                int diff = Double.compare(b.rating, a.rating);
+                if (diff == 0) {
+                    diff = Double.compare(a.deviation, b.deviation);
+                }
+                return diff;
+            }
+        });
+        return sorted;
+    }
+    
+    /**
+     * Gets the teams in order of their rating.
+     * 
+     * @return An array of team names ordered by the teams' rating.
+     */
+    public String[] getRankedTeams() {
+        List<Rating> sorted = getRatings();
+        String[] rankedNames = new String[sorted.size()];
+        for (int i = 0; i < rankedNames.length; i++) {
+            rankedNames[i] = sorted.get(i).name;
+        }
+        return rankedNames;
+    }
+}
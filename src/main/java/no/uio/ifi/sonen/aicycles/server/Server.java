@@ -36,6 +36,11 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.Scanner;
 import no.uio.ifi.sonen.aicycles.Viewer;
+import no.uio.ifi.sonen.aicycles.history.MatchHistory;
+import no.uio.ifi.sonen.aicycles.metrics.Counter;
+import no.uio.ifi.sonen.aicycles.metrics.Gauge;
+import no.uio.ifi.sonen.aicycles.metrics.Metrics;
+import no.uio.ifi.sonen.aicycles.metrics.MetricsServer;
 
 /**
  * AICycles simulator/server.
@@ -44,8 +49,27 @@ import no.uio.ifi.sonen.aicycles.Viewer;
  */
 public class Server implements Runnable {
 
+    /** The number of matches played in the tournament, including earlier runs. */
+    private static final Counter MATCHES_PLAYED = Metrics.counter(
+            "aicycles_tournament_matches_played_total", "Tournament matches played.");
+    /** The number of rounds left after the current one. */
+    private static final Gauge ROUNDS_LEFT = Metrics.gauge(
+            "aicycles_tournament_rounds_left", "Tournament rounds left after the current one.");
+    /** The number of matches finished in the current round. */
+    private static final Gauge ROUND_FINISHED = Metrics.gauge(
+            "aicycles_tournament_round_matches_finished", "Matches finished in the current round.");
+    /** The number of matches in the current round. */
+    private static final Gauge ROUND_MATCHES = Metrics.gauge(
+            "aicycles_tournament_round_matches", "Matches in the current round.");
+
     /** Statistics for an entire tournament. */
-    private Statistics totalStats = new Statistics(0, 0, 0, 0);
+    private ConcurrentStatistics totalStats = new ConcurrentStatistics();
+    /** Ratings for all teams, rebuilt from the statistics file on start up. */
+    private Ratings ratings = new Ratings();
+    /** Columnar history of all match results, if enabled. */
+    private MatchHistory history;
+    /** Whether to seed rounds by rating instead of by total points. */
+    private boolean seedByRating = "rating".equals(System.getProperty("aicycles.seeding"));
     /** The name of the file containing statistics. */
     private String statsFile;
     /** A list of teams that participate in the tournament. */
@@ -54,6 +78,8 @@ public class Server implements Runnable {
     private List<Round> rounds = new LinkedList<Round>();
     /** The round currently being played. */
     private Round currentRound;
+    /** Keeps the teams' bots running between matches, or null if they start themselves. */
+    private BotSupervisor supervisor;
 
     /**
      * Creates a runnable tournament server.
@@ -62,8 +88,42 @@ public class Server implements Runnable {
      * @param statsFile 
      */
     public Server(String configFile, String statsFile) {
+        this(configFile, statsFile, null);
+    }
+
+    /**
+     * Creates a runnable tournament server, running the teams' bots.
+     * 
+     * @param configFile The name of the configuration file.
+     * @param statsFile The name of the statistics file.
+     * @param botsFile The name of the file with the command running each team's bot,
+     *                 or null if the bots start themselves.
+     * @see BotSupervisor
+     */
+    public Server(String configFile, String statsFile, String botsFile) {
         this.statsFile = statsFile;
 
+        if (botsFile != null) {
+            try {
+                supervisor = new BotSupervisor(new File(botsFile));
+            } catch (IOException ioe) {
+                System.err.printf("Couldn't read bots file '%s':%n%s%n",
+                                  botsFile, ioe.getMessage());
+                System.exit(19);
+            }
+        }
+
+        String historyDir = System.getProperty("aicycles.history");
+        if (historyDir != null) {
+            try {
+                history = new MatchHistory(new File(historyDir));
+            } catch (IOException ioe) {
+                System.err.printf("Couldn't open match history '%s':%n%s%n",
+                                  historyDir, ioe.getMessage());
+                System.exit(23);
+            }
+        }
+
         try {
             Scanner s = new Scanner(new File(configFile));
             int teamCount = s.nextInt();
@@ -100,19 +160,16 @@ public class Server implements Runnable {
 
         try {
             currentRound = rounds.remove(0);
+            ROUNDS_LEFT.set(rounds.size());
+            ROUND_MATCHES.set(currentRound.matches.length);
             Scanner s = new Scanner(new File(statsFile));
             s.useDelimiter("[;\\s]+");
             while (s.hasNext()) {
-                int playerCount = 0;
-                Statistics stats = new Statistics(s.nextInt(), s.nextInt(),
-                                                  s.nextInt(), playerCount = s.nextInt());
-                for (int i = 0; i < playerCount; i++) {
-                    stats.addTeam(s.next(), s.nextInt(), s.nextInt(),
-                                  s.nextInt(), s.nextInt());
-                }
-                
+                Statistics stats = Statistics.read(s);
                 totalStats.add(stats);
+                ratings.update(stats);
                 advance();
+                MATCHES_PLAYED.increment();
             }
         } catch (IOException ioe) {
             System.err.printf("Couldn't open statistics file '%s':%n%s%nStarting from first round.",
@@ -130,6 +187,7 @@ public class Server implements Runnable {
      * @param args Command line arguments.
      */
     public static void main(String[] args) {
+        MetricsServer metrics = Metrics.export();
         if (args.length < 2) {
             System.out.println("Hello, bots!");
             Viewer v = new Viewer(false);
@@ -137,10 +195,14 @@ public class Server implements Runnable {
                                 new String[]{"joe", "sigmunha"}, v);
             m.run();
         } else {
-            Server s = new Server(args[0], args[1]);
+            Server s = new Server(args[0], args[1], args.length > 2 ? args[2] : null);
             System.out.println("Ready to go!");
             s.run();
         }
+        
+        if (metrics != null) {
+            metrics.stop();
+        }
     }
 
     /**
@@ -150,15 +212,35 @@ public class Server implements Runnable {
     public void run() {
         String[] matchTeams;
         Viewer v = new Viewer(true);
+        if (supervisor != null) {
+            supervisor.start();
+        }
         
         while ((matchTeams = getMatch()) != null) {
+            MatchEvent event = new MatchEvent();
+            event.begin();
+            int seed = (int) (Math.random() * Integer.MAX_VALUE);
             Match m = new Match(currentRound.size.width, currentRound.size.height,
-                                (int) (Math.random() * Integer.MAX_VALUE), matchTeams, v);
+                                seed, matchTeams, v);
+            if (supervisor != null) {
+                supervisor.play(matchTeams);
+            }
             m.run();
             Statistics s = m.getStatistics();
             totalStats.add(s);
+            ratings.update(s);
             writeStats(s);
+            writeTimings(s, m.getTimings());
+            if (event.shouldCommit()) {
+                event.width = s.getWidth();
+                event.height = s.getHeight();
+                event.seed = seed;
+                event.teams = String.join(",", matchTeams);
+                event.ticks = m.getUpdates();
+                event.commit();
+            }
             advance();
+            MATCHES_PLAYED.increment();
         }
         
         try {
@@ -167,6 +249,9 @@ public class Server implements Runnable {
             
         }
         
+        if (supervisor != null) {
+            supervisor.close();
+        }
         v.close();
     }
     
@@ -184,6 +269,34 @@ public class Server implements Runnable {
                 System.err.printf("Could not find statistics file: %s%n%s%n", statsFile, ex.getMessage());
                 System.exit(74);
             }
+            
+            if (history != null) {
+                try {
+                    history.append(s);
+                } catch (IOException ioe) {
+                    System.err.printf("Could not add match to history:%n%s%n", ioe.getMessage());
+                }
+            }
+    }
+    
+    /**
+     * Appends a match's tick timings to the timing file,
+     * named like the statistics file with .timing added.
+     * Each line starts with the size and seed of the match,
+     * followed by the timings in microseconds.
+     * 
+     * @param s The statistics of the match.
+     * @param t The tick timings of the match.
+     */
+    private void writeTimings(Statistics s, TickTimings t) {
+        String timingFile = statsFile + ".timing";
+        try {
+            PrintWriter pw = new PrintWriter(new FileOutputStream(timingFile, true));
+            pw.printf("%d;%d;%d;%s%n", s.getWidth(), s.getHeight(), s.getRandomSeed(), t);
+            pw.close();
+        } catch (FileNotFoundException ex) {
+            System.err.printf("Could not write timing file: %s%n%s%n", timingFile, ex.getMessage());
+        }
     }
     
     /**
@@ -191,16 +304,32 @@ public class Server implements Runnable {
      */
     private void advance() {
         if (!currentRound.finishMatch()) {
+            ROUND_FINISHED.set(currentRound.finishedMatches);
             return;
         }
         
         if (rounds.isEmpty()) {
             currentRound = null;
+            ROUND_FINISHED.set(0);
+            ROUND_MATCHES.set(0);
             return;
         }
         
-        String[] ranking = totalStats.getRankedTeams();
+        String[] ranking = seedByRating ? ratings.getRankedTeams()
+                                        : totalStats.getRankedTeams();
+        System.out.println("Ratings after round:");
+        for (Ratings.Rating r : ratings.getRatings()) {
+            System.out.println(r);
+        }
+        Statistics totals = totalStats.snapshot();
+        for (String team : totals.getTeams()) {
+            System.out.printf("%s survival: %s place: %s%n", team,
+                              totals.getSurvival(team), totals.getPlace(team));
+        }
         currentRound = rounds.remove(0);
+        ROUNDS_LEFT.set(rounds.size());
+        ROUND_FINISHED.set(0);
+        ROUND_MATCHES.set(currentRound.matches.length);
         teams.clear();
         
         // This keeps only the best teams.
@@ -225,7 +354,7 @@ public class Server implements Runnable {
      * A small structure to hold the width, height and number of players
      * a match in a given round should have.
      */
-    private class MatchSize {
+    static class MatchSize {
 
         /** The width of the map. */
         public final int width;
@@ -252,7 +381,7 @@ public class Server implements Runnable {
      * Used to handle rounds in the tournament,
      * mainly setting up permutations of teams for each match in a round.
      */
-    private class Round {
+    static class Round {
 
         /** The size of matches one round. */
         private MatchSize size;
@@ -26,10 +26,12 @@
  */
 package no.uio.ifi.sonen.aicycles.server;
 
+import java.util.Collection;
 import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.PriorityQueue;
 import java.util.Queue;
+import java.util.Scanner;
 
 /**
  *
@@ -51,6 +53,10 @@ public class Statistics {
         private int length;
         /** The number of points the player has scored (number of players it has survived). */
         private int points;
+        /** The distribution of survived rounds, only kept for summed stats. */
+        private QuantileSketch survival;
+        /** The distribution of finishing places, only kept for summed stats. */
+        private QuantileSketch place;
         
         /**
          * Creates a new team with the given start position.
@@ -129,6 +135,26 @@ public class Statistics {
         this.teams = new LinkedHashMap<String, Team>(playerCount);
     }
     
+    /**
+     * Reads the statistics of a single match written by {@link #toString()}.
+     * 
+     * @param s A scanner using semicolons and whitespace as delimiters.
+     * @return The statistics that were read.
+     * @throws java.util.NoSuchElementException if the scanner runs out of input.
+     * @throws java.util.InputMismatchException if the input is malformed.
+     */
+    public static Statistics read(Scanner s) {
+        int playerCount = 0;
+        Statistics stats = new Statistics(s.nextInt(), s.nextInt(),
+                                          s.nextInt(), playerCount = s.nextInt());
+        for (int i = 0; i < playerCount; i++) {
+            stats.addTeam(s.next(), s.nextInt(), s.nextInt(),
+                          s.nextInt(), s.nextInt());
+        }
+        
+        return stats;
+    }
+    
     /**
      * Adds a team to the list of teams.
      * 
@@ -188,17 +214,228 @@ public class Statistics {
      */
     public void add(Statistics s) {
         for (Map.Entry<String, Team> teamEntry : s.teams.entrySet()) {
-            if (!teams.containsKey(teamEntry.getKey())) {
-                teams.put(teamEntry.getKey(), teamEntry.getValue());
-            } else {
-                Team t = teams.get(teamEntry.getKey());
-                t.length += teamEntry.getValue().length;
-                t.points += teamEntry.getValue().points;
+            Team other = teamEntry.getValue();
+            Team t = teams.get(teamEntry.getKey());
+            if (t == null) {
+                // Copy the team, so later additions don't change the other stats.
+                t = new Team(other.startX, other.startY, other.name);
+                teams.put(teamEntry.getKey(), t);
             }
+            t.length += other.length;
+            t.points += other.points;
+            
+            if (t.survival == null) {
+                t.survival = new QuantileSketch();
+                t.place = new QuantileSketch();
+            }
+            t.survival.merge(s.getSurvival(teamEntry.getKey()));
+            t.place.merge(s.getPlace(teamEntry.getKey()));
         }
         
         gameCount++;
     }
+    
+    /**
+     * Adds a team's totals to these stats, creating the team if necessary.
+     * Used when turning aggregated totals back into a statistics object.
+     * 
+     * @param name The name of the team.
+     * @param points The points to add to the team.
+     * @param length The length to add to the team.
+     */
+    void addTotals(String name, int points, int length) {
+        Team t = teams.get(name);
+        if (t == null) {
+            t = new Team(0, 0, name);
+            teams.put(name, t);
+        }
+        t.points += points;
+        t.length += length;
+    }
+    
+    /**
+     * Gets the names of the teams in these stats.
+     * 
+     * @return The names of the teams in the order they were added.
+     */
+    public Collection<String> getTeams() {
+        return teams.keySet();
+    }
+    
+    /**
+     * Gets the points scored by a team.
+     * 
+     * @param name The name of the team.
+     * @return The team's points, or 0 if the team is unknown.
+     */
+    public int getPoints(String name) {
+        Team t = teams.get(name);
+        return t == null ? 0 : t.points;
+    }
+    
+    /**
+     * Gets the length of a team's trail.
+     * 
+     * @param name The name of the team.
+     * @return The team's length, or 0 if the team is unknown.
+     */
+    public int getLength(String name) {
+        Team t = teams.get(name);
+        return t == null ? 0 : t.length;
+    }
+    
+    /**
+     * Gets the horizontal start position of a team.
+     * 
+     * @param name The name of the team.
+     * @return The team's start position on the x axis, or 0 if the team is unknown.
+     */
+    public int getStartX(String name) {
+        Team t = teams.get(name);
+        return t == null ? 0 : t.startX;
+    }
+    
+    /**
+     * Gets the vertical start position of a team.
+     * 
+     * @param name The name of the team.
+     * @return The team's start position on the y axis, or 0 if the team is unknown.
+     */
+    public int getStartY(String name) {
+        Team t = teams.get(name);
+        return t == null ? 0 : t.startY;
+    }
+    
+    /**
+     * Gets the width of the map that was played.
+     * 
+     * @return The width of the map.
+     */
+    public int getWidth() {
+        return width;
+    }
+    
+    /**
+     * Gets the height of the map that was played.
+     * 
+     * @return The height of the map.
+     */
+    public int getHeight() {
+        return height;
+    }
+    
+    /**
+     * Gets the random seed used for the game.
+     * 
+     * @return The random seed.
+     */
+    public int getRandomSeed() {
+        return randomSeed;
+    }
+    
+    /**
+     * Gets the number of players in the game.
+     * 
+     * @return The number of players.
+     */
+    public int getPlayerCount() {
+        return playerCount;
+    }
+    
+    /**
+     * Gets the distribution of a team's survived rounds.
+     * For the stats of a single match, this is just the team's length.
+     * 
+     * @param name The name of the team.
+     * @return A sketch of the team's survived rounds, empty if the team is unknown.
+     */
+    QuantileSketch getSurvival(String name) {
+        Team t = teams.get(name);
+        if (t == null) {
+            return new QuantileSketch();
+        } else if (t.survival != null) {
+            return t.survival;
+        }
+        
+        QuantileSketch single = new QuantileSketch();
+        single.record(t.length);
+        return single;
+    }
+    
+    /**
+     * Gets the distribution of a team's finishing places, where 1 is the winner.
+     * For the stats of a single match, this is just the team's place.
+     * 
+     * @param name The name of the team.
+     * @return A sketch of the team's places, empty if the team is unknown.
+     */
+    QuantileSketch getPlace(String name) {
+        Team t = teams.get(name);
+        if (t == null) {
+            return new QuantileSketch();
+        } else if (t.place != null) {
+            return t.place;
+        }
+        
+        QuantileSketch single = new QuantileSketch();
+        single.record(playerCount - t.points);
+        return single;
+    }
+    
+    /**
+     * Sets the distributions of a team's survived rounds and finishing places.
+     * 
+     * @param name The name of the team.
+     * @param survival The distribution of survived rounds.
+     * @param place The distribution of finishing places.
+     */
+    void setDistributions(String name, QuantileSketch survival, QuantileSketch place) {
+        Team t = teams.get(name);
+        if (t != null) {
+            t.survival = survival;
+            t.place = place;
+        }
+    }
+    
+    /**
+     * Gets a quantile of the number of rounds a team has survived.
+     * 
+     * @param name The name of the team.
+     * @param q The quantile, between 0 and 1 (0.9 for the 90th percentile).
+     * @return The number of rounds at the given quantile.
+     */
+    public long getSurvivalQuantile(String name, double q) {
+        return getSurvival(name).getQuantile(q);
+    }
+    
+    /**
+     * Gets a quantile of a team's finishing places, where 1 is the winner.
+     * 
+     * @param name The name of the team.
+     * @param q The quantile, between 0 and 1 (0.9 for the 90th percentile).
+     * @return The place at the given quantile.
+     */
+    public long getPlaceQuantile(String name, double q) {
+        return getPlace(name).getQuantile(q);
+    }
+    
+    /**
+     * Gets the number of games that have been added to these stats.
+     * 
+     * @return The number of games added.
+     */
+    int getGameCount() {
+        return gameCount;
+    }
+    
+    /**
+     * Sets the number of games these stats represent.
+     * 
+     * @param gameCount The number of games.
+     */
+    void setGameCount(int gameCount) {
+        this.gameCount = gameCount;
+    }
 
     /**
      * Gets the teams in order of their rank.
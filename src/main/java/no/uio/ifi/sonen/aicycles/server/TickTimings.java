@@ -0,0 +1,134 @@
+/*
+ * Copyright (c) 2011, Åpen sone for eksperimentell informatikk
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *    - Redistributions of source code must retain the above copyright
+ *      notice, this list of conditions and the following disclaimer.
+ *    - Redistributions in binary form must reproduce the above copyright
+ *      notice, this list of conditions and the following disclaimer in the
+ *      documentation and/or other materials provided with the distribution.
+ *    - Neither the name of the <organization> nor the
+ *      names of its contributors may be used to endorse or promote products
+ *      derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package no.uio.ifi.sonen.aicycles.server;
+
+/**
+ * Timings of a match's ticks, in microseconds.
+ * 
+ * Keeps three distributions:
+ * how late each tick started compared to when it was due,
+ * how long it took to run a tick and queue its update,
+ * and how long it took to send a packet to every client.
+ * The sketches are allocated up front for values up to {@link #MAX_MICROS},
+ * and longer times are counted as that, so recording never allocates
+ * and can be done on every tick.
+ *
+ * @author Sigmund Hansen <sigmunha@ifi.uio.no>
+ */
+public class TickTimings {
+    
+    /** The longest time recorded, ten seconds in microseconds. */
+    public static final long MAX_MICROS = 10000000;
+    
+    /** How late ticks started. */
+    private final QuantileSketch jitter = new QuantileSketch(MAX_MICROS);
+    /** How long ticks took to run. */
+    private final QuantileSketch simulate = new QuantileSketch(MAX_MICROS);
+    /** How long packets took to send to every client. */
+    private final QuantileSketch broadcast = new QuantileSketch(MAX_MICROS);
+    
+    /**
+     * Converts nanoseconds to microseconds, capped at {@link #MAX_MICROS}.
+     * 
+     * @param nanos The time in nanoseconds.
+     * @return The time in microseconds.
+     */
+    private static long micros(long nanos) {
+        return Math.min(MAX_MICROS, nanos / 1000);
+    }
+    
+    /**
+     * Records how late a tick started.
+     * 
+     * @param due When the tick was due, from System.nanoTime.
+     * @param start When the tick started, from System.nanoTime.
+     */
+    public synchronized void tickStarted(long due, long start) {
+        jitter.record(micros(start - due));
+    }
+    
+    /**
+     * Records how long a tick took to run.
+     * 
+     * @param start When the tick started, from System.nanoTime.
+     * @param end When the tick's update was queued, from System.nanoTime.
+     */
+    public synchronized void tickFinished(long start, long end) {
+        simulate.record(micros(end - start));
+    }
+    
+    /**
+     * Records how long it took to send a packet to every client.
+     * 
+     * @param start When sending started, from System.nanoTime.
+     * @param end When the packet had been sent to everyone, from System.nanoTime.
+     */
+    public synchronized void broadcast(long start, long end) {
+        broadcast.record(micros(end - start));
+    }
+    
+    /**
+     * Gets a copy of the tick start jitter.
+     * 
+     * @return How late ticks started, in microseconds.
+     */
+    public synchronized QuantileSketch getJitter() {
+        return jitter.copy();
+    }
+    
+    /**
+     * Gets a copy of the tick durations.
+     * 
+     * @return How long ticks took to run, in microseconds.
+     */
+    public synchronized QuantileSketch getSimulate() {
+        return simulate.copy();
+    }
+    
+    /**
+     * Gets a copy of the broadcast durations.
+     * 
+     * @return How long packets took to send to every client, in microseconds.
+     */
+    public synchronized QuantileSketch getBroadcast() {
+        return broadcast.copy();
+    }
+    
+    /**
+     * Describes the timings on one line,
+     * with the number of values and their quantiles for each distribution.
+     * 
+     * @return The timings, in microseconds.
+     */
+    @Override
+    public synchronized String toString() {
+        return String.format("jitter n=%d %s; simulate n=%d %s; broadcast n=%d %s",
+                             jitter.getCount(), jitter,
+                             simulate.getCount(), simulate,
+                             broadcast.getCount(), broadcast);
+    }
+}
@@ -65,11 +65,19 @@ class Connection:
                 
                 self.old = self.old.lstrip()
 
+                if pkt_type == PNG_PKT:
+                    # Answer heartbeats, or the server will drop the connection.
+                    self.send(Packet(PON_PKT, data))
+                    continue
+
                 if (pkt_type == PID_PKT
                     or pkt_type == RND_PKT
-                    or pkt_type == UPD_PKT
                     or pkt_type == DIE_PKT):
                     packets.append(IntPacket(pkt_type, data=data))
+                elif pkt_type == UPD_PKT:
+                    packets.append(UpdatePacket(data=data))
+                elif pkt_type == SNP_PKT:
+                    packets.append(SnapshotPacket(data))
                 elif pkt_type == MAP_PKT:
                     packets.append(MapPacket(data=data))
                 elif pkt_type == MOV_PKT:
@@ -102,28 +110,33 @@ class BotBase(threading.Thread):
 
         self.cycles = []
         self.grid = []
+        self.grid_hash = 0
+        self.tick = 0
+        self.resyncing = False
+        self.rejoin_token = None
         self.bye_msg = bye_msg
 
     def north(self):
-        self.connection.send(Packet(DIR_PKT, "N"))
+        self.move("N")
     def south(self):
-        self.connection.send(Packet(DIR_PKT, "S"))
+        self.move("S")
     def west(self):
-        self.connection.send(Packet(DIR_PKT, "W"))
+        self.move("W")
     def east(self):
-        self.connection.send(Packet(DIR_PKT, "E"))
+        self.move("E")
     def move(self, d):
-        self.connection.send(Packet(DIR_PKT, d))
+        # Tag the command with the update it answers, so the server can tell if it's late.
+        self.connection.send(Packet(DIR_PKT, "%s %d" % (d, self.tick)))
 
     def turn_left(self):
         index = directions.index(self.cycles[self.myid - 1].direction)
         index = (index + 3) % 4
-        self.connection.send(Packet(DIR_PKT, directions[index]))
+        self.move(directions[index])
 
     def turn_right(self):
         index = directions.index(self.cycles[self.myid - 1].direction)
         index = (index + 1) % 4
-        self.connection.send(Packet(DIR_PKT, directions[index]))
+        self.move(directions[index])
 
     def move_cycle(self, player, direction):
         cycle = self.cycles[player - 1]
@@ -136,7 +149,50 @@ class BotBase(threading.Thread):
             cycle.x = cycle.x + 1
         elif direction == 'W':
             cycle.x = cycle.x - 1
-        self.grid[cycle.x][cycle.y] = player
+        self.claim(cycle.x, cycle.y, player)
+
+    def claim(self, x, y, player):
+        # Like on the server, the first player to reach a square keeps it.
+        if self.grid[x][y] == 0:
+            self.grid[x][y] = player
+            self.grid_hash ^= square_hash(x - 1, y - 1, player)
+
+    def checksum(self):
+        checksum = self.grid_hash
+        for i, cycle in enumerate(self.cycles):
+            checksum ^= cycle_hash(i + 1, cycle.x - 1, cycle.y - 1, cycle.alive)
+        return checksum
+
+    def verify(self, packet):
+        """
+        Asks the server for a snapshot if the state doesn't match
+        the checksum of an update.
+        """
+        if packet.checksum is None or self.resyncing:
+            return
+        if packet.checksum != self.checksum():
+            print "Lost track of the game grid at update", packet.tick
+            self.resyncing = True
+            self.connection.send(Packet(RSY_PKT, str(packet.tick)))
+
+    def restore(self, packet):
+        """
+        Replaces the grid and cycles with a snapshot from the server.
+        """
+        self.grid_hash = 0
+        self.tick = 0
+        self.grid[1:self.width + 1, 1:self.height + 1] = 0
+        for x in xrange(packet.width):
+            for y in xrange(packet.height):
+                if packet.grid[x][y] != 0:
+                    self.claim(x + 1, y + 1, packet.grid[x][y])
+        for i, (x, y, direction, alive) in enumerate(packet.cycles):
+            cycle = self.cycles[i]
+            cycle.x = x + 1
+            cycle.y = y + 1
+            cycle.direction = direction
+            cycle.alive = alive
+        self.resyncing = False
 
     def run(self):
         """
@@ -182,10 +238,13 @@ class BotBase(threading.Thread):
             elif packet.pkt_type == POS_PKT:
                 self.cycles[packet.player - 1].x = packet.x + 1
                 self.cycles[packet.player - 1].y = packet.y + 1
-                self.grid[packet.x + 1][packet.y + 1] = packet.player
+                self.claim(packet.x + 1, packet.y + 1, packet.player)
 
             elif packet.pkt_type == RND_PKT:
                 random.seed(packet.int_value)
+            elif packet.pkt_type == TOK_PKT:
+                # The server wants this back from a bot rejoining the match.
+                self.rejoin_token = packet.data
             else:
                 print "We are in trouble:", packet
                 
@@ -201,6 +260,12 @@ class BotBase(threading.Thread):
                 self.move_cycle(packet.player, packet.direction)
             elif packet.pkt_type == DIE_PKT:
                 self.cycles[packet.int_value - 1].alive = False
+            elif packet.pkt_type == UPD_PKT:
+                self.verify(packet)
+                self.tick = packet.tick
+            elif packet.pkt_type == SNP_PKT:
+                self.restore(packet)
+                self.tick = packet.tick
             elif packet.pkt_type == BYE_PKT:
                 self.cycles[self.myid - 1].alive = False
 
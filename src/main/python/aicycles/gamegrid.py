@@ -9,3 +9,26 @@ class Cycle:
 def dump_grid(grid):
     return "\n".join([" ".join(["%2i" % int(grid[x][y]) for x in xrange(len(grid))]) \
                           for y in xrange(len(grid[0]))])
+
+# Game state checksums, see no.uio.ifi.sonen.aicycles.Checksum.
+# Coordinates are the server's, starting at 0 inside the border.
+MASK = 0xFFFFFFFFFFFFFFFF
+
+def mix(k):
+    k &= MASK
+    k ^= k >> 33
+    k = (k * 0xff51afd7ed558ccd) & MASK
+    k ^= k >> 33
+    k = (k * 0xc4ceb9fe1a85ec53) & MASK
+    k ^= k >> 33
+    return k
+
+def square_hash(x, y, owner):
+    return mix((owner << 48) ^ ((x & 0xFFFFFF) << 24) ^ (y & 0xFFFFFF))
+
+def cycle_hash(player, x, y, alive):
+    if alive:
+        state = 1 << 62
+    else:
+        state = 1 << 63
+    return mix(state ^ (player << 48) ^ ((x & 0xFFFFFF) << 24) ^ (y & 0xFFFFFF))
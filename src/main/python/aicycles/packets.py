@@ -5,12 +5,19 @@ PID_PKT = 101
 MAP_PKT = 102
 POS_PKT = 103
 RND_PKT = 104
+PNG_PKT = 105
+PON_PKT = 106
+SHM_PKT = 107
+VIW_PKT = 108
+TOK_PKT = 109
 BYE_PKT = 199
 
 MOV_PKT = 400
 DIR_PKT = 401
 UPD_PKT = 402
+SNP_PKT = 403
 DIE_PKT = 404
+RSY_PKT = 405
 
 class Packet:
     pkt_type = 0
@@ -82,3 +89,60 @@ class MovePacket(Packet):
         self.direction = kwargs['direction']
         self.pkt_type = MOV_PKT
         self.data = "%d %s" % (self.player, self.direction)
+
+class UpdatePacket(Packet):
+    tick = 0
+    checksum = None
+    start = None
+    deadline = None
+    regex = re.compile('(?P<tick>[0-9]+)(?P<fields>( [^ =]+=[^ ]*)*)$', re.MULTILINE)
+
+    def __init__(self, *args, **kwargs):
+        if 'data' in kwargs:
+            kwargs = self.regex.match(kwargs['data']).groupdict()
+            fields = dict(f.split('=', 1) for f in kwargs['fields'].split())
+            if 'sum' in fields:
+                kwargs['checksum'] = int(fields['sum'], 16)
+            # Tick start and deadline in microseconds on the server's clock.
+            if 'start' in fields:
+                kwargs['start'] = int(fields['start'])
+                kwargs['deadline'] = int(fields['deadline'])
+
+        self.tick = int(kwargs['tick'])
+        self.checksum = kwargs.get('checksum')
+        self.start = kwargs.get('start')
+        self.deadline = kwargs.get('deadline')
+        self.pkt_type = UPD_PKT
+        if self.checksum is None:
+            self.data = "%d" % self.tick
+        else:
+            self.data = "%d sum=%016x" % (self.tick, self.checksum)
+        if self.start is not None:
+            self.data += " start=%d deadline=%d" % (self.start, self.deadline)
+
+class SnapshotPacket(Packet):
+    tick = 0
+    width = 0
+    height = 0
+    cycles = []
+    grid = []
+
+    def __init__(self, data):
+        values = data.split()
+        self.tick = int(values[0])
+        self.width = int(values[1])
+        self.height = int(values[2])
+        players = int(values[3])
+        self.cycles = []
+        for i in xrange(players):
+            x, y, d, alive = values[4 + i * 4:8 + i * 4]
+            self.cycles.append((int(x), int(y), d, alive != '0'))
+        # The squares are run-length encoded column by column,
+        # as pairs of a run length and an owner.
+        squares = []
+        for i in xrange(4 + players * 4, len(values), 2):
+            squares.extend([int(values[i + 1])] * int(values[i]))
+        self.grid = [squares[x * self.height:(x + 1) * self.height]
+                     for x in xrange(self.width)]
+        self.pkt_type = SNP_PKT
+        self.data = data